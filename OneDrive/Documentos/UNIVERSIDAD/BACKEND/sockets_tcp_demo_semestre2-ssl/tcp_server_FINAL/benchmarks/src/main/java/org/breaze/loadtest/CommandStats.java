@@ -0,0 +1,61 @@
+package org.breaze.loadtest;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Latencias de un comando en microsegundos. Cada conexión llena las suyas y al final se suman.
+final class CommandStats {
+    private static final long MAX_LATENCY_US = 60L * 60 * 1_000_000; // 1 hora
+
+    final String command;
+    final Histogram histogram = new Histogram(MAX_LATENCY_US, 3);
+    long errors;
+
+    CommandStats(String command) {
+        this.command = command;
+    }
+
+    // expectedIntervalUs > 0 en modo con tasa fija: completa las muestras que el cliente no llegó a enviar
+    // mientras esperaba una respuesta lenta (coordinated omission)
+    void record(long latencyUs, boolean error, long expectedIntervalUs) {
+        long value = Math.min(Math.max(1, latencyUs), MAX_LATENCY_US);
+        if (expectedIntervalUs > 0) histogram.recordValueWithExpectedInterval(value, expectedIntervalUs);
+        else histogram.recordValue(value);
+        if (error) errors++;
+    }
+
+    void add(CommandStats other) {
+        histogram.add(other.histogram);
+        errors += other.errors;
+    }
+
+    void printRow(PrintStream out, double seconds) {
+        long n = histogram.getTotalCount();
+        out.printf("%-12s %9d %7d %10.1f %9.2f %9.2f %9.2f %9.2f %10.2f%n",
+                command, n, errors, n / seconds,
+                ms(histogram.getValueAtPercentile(50)), ms(histogram.getValueAtPercentile(95)),
+                ms(histogram.getValueAtPercentile(99)), ms(histogram.getValueAtPercentile(99.9)),
+                ms(histogram.getMaxValue()));
+    }
+
+    static void printHeader(PrintStream out) {
+        out.printf("%-12s %9s %7s %10s %9s %9s %9s %9s %10s%n",
+                "command", "count", "errors", "ops/s", "p50 ms", "p95 ms", "p99 ms", "p99.9 ms", "max ms");
+    }
+
+    // Distribución completa en el formato .hgrm de HdrHistogram (valores en ms), para comparar entre builds
+    void writeHgrm(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        try (PrintStream ps = new PrintStream(Files.newOutputStream(dir.resolve(command.toLowerCase() + ".hgrm")))) {
+            histogram.outputPercentileDistribution(ps, 1000.0);
+        }
+    }
+
+    private static double ms(long us) {
+        return us / 1000.0;
+    }
+}
@@ -0,0 +1,65 @@
+package org.breaze.loadtest;
+
+import org.breaze.protocol.BinaryFrames;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// Una conexión TLS de cliente, igual que el cliente real: writeUTF/readUTF con "COMANDO|k=v|...",
+// o tramas binarias si se negoció el protocolo 2 con HELLO. Un pedido a la vez (sin pipeline).
+final class LoadConnection implements Closeable {
+    private final SSLSocket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private boolean binary;
+    private int nextCorrelation = 1;
+
+    LoadConnection(SSLSocketFactory factory, String host, int port, int protocolVersion) throws IOException {
+        socket = (SSLSocket) factory.createSocket(host, port);
+        socket.setTcpNoDelay(true);
+        socket.startHandshake();
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        if (protocolVersion == BinaryFrames.VERSION) {
+            String hello = request("HELLO", Map.of("protocol", String.valueOf(BinaryFrames.VERSION)));
+            if (!hello.startsWith("OK;hello;protocol=" + BinaryFrames.VERSION)) {
+                throw new IOException("server rejected protocol " + protocolVersion + ": " + hello);
+            }
+            binary = true;
+        }
+    }
+
+    String request(String command, Map<String, String> fields) throws IOException {
+        if (binary) {
+            out.write(BinaryFrames.encodeRequest(nextCorrelation++, command, fields));
+            out.flush();
+            int length = in.readInt();
+            if (length < 5 || length > BinaryFrames.MAX_FRAME_BYTES) throw new IOException("bad frame length " + length);
+            in.readUnsignedByte(); // estado: también va al inicio del texto (OK/ERROR)
+            in.readInt();          // id de correlación: un pedido a la vez, no hace falta compararlo
+            byte[] body = new byte[length - 5];
+            in.readFully(body);
+            return new String(body, StandardCharsets.UTF_8);
+        }
+        StringBuilder sb = new StringBuilder(command);
+        for (Map.Entry<String, String> e : fields.entrySet()) {
+            sb.append('|').append(e.getKey()).append('=').append(e.getValue());
+        }
+        out.writeUTF(sb.toString()); // límite de 65535 bytes por mensaje en el protocolo de texto
+        out.flush();
+        return in.readUTF();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            request("EXIT", Map.of()); // el servidor responde BYE y cierra
+        } catch (IOException ignored) {
+        } finally {
+            socket.close();
+        }
+    }
+}
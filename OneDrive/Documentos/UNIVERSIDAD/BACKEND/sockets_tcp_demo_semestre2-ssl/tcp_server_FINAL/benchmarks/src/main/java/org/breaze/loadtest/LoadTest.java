@@ -0,0 +1,375 @@
+package org.breaze.loadtest;
+
+import org.breaze.protocol.BenchData;
+import org.breaze.protocol.BinaryFrames;
+import org.breaze.protocol.ServerProtocol;
+import org.breaze.server.ServerOptions;
+import org.breaze.server.TCPServer;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+
+// Prueba de carga de punta a punta: N conexiones TLS concurrentes contra TCPServer con una mezcla de
+// CREATE/GET/UPDATE/DEACTIVATE, y latencia p50/p95/p99/max por comando.
+// Sin --port arranca el servidor en este mismo proceso con un keystore PKCS12 generado con keytool y
+// datos en una carpeta temporal; con --host/--port/--truststore mide un servidor ya levantado.
+public final class LoadTest {
+    enum Command { CREATE, GET, UPDATE, DEACTIVATE }
+
+    private static final String KEYSTORE_PASSWORD = "loadtest";
+
+    private final Map<String, String> args;
+    private final PrintStream report;
+    private final int connections;
+    private final int durationSec;
+    private final int warmupSec;
+    private final double rate;
+    private final int protocolVersion;
+    private final int seedPatients;
+    private final int fastaMin;
+    private final int fastaMax;
+    private final Command[] commands;
+    private final int[] cumulativeWeights;
+    private final PatientPool pool = new PatientPool();
+
+    private LoadTest(Map<String, String> args, PrintStream report) {
+        this.args = args;
+        this.report = report;
+        this.connections = Integer.parseInt(args.getOrDefault("connections", "32"));
+        this.durationSec = Integer.parseInt(args.getOrDefault("duration", "30"));
+        this.warmupSec = Integer.parseInt(args.getOrDefault("warmup", "5"));
+        this.rate = Double.parseDouble(args.getOrDefault("rate", "0"));
+        this.protocolVersion = Integer.parseInt(args.getOrDefault("protocol", "1"));
+        this.seedPatients = Integer.parseInt(args.getOrDefault("seed-patients", "200"));
+        String[] fasta = args.getOrDefault("fasta-bases", "1000").split("-");
+        this.fastaMin = Integer.parseInt(fasta[0].trim());
+        this.fastaMax = Integer.parseInt(fasta[fasta.length - 1].trim());
+        if (protocolVersion != BinaryFrames.VERSION && fastaMax > 60_000) {
+            throw new IllegalArgumentException("--fasta-bases > 60000 no cabe en writeUTF; usa --protocol 2");
+        }
+
+        // --mix CREATE=20,GET=60,UPDATE=15,DEACTIVATE=5
+        Map<Command, Integer> mix = new EnumMap<>(Command.class);
+        for (String part : args.getOrDefault("mix", "CREATE=20,GET=60,UPDATE=15,DEACTIVATE=5").split(",")) {
+            String[] kv = part.split("=");
+            int weight = Integer.parseInt(kv[1].trim());
+            if (weight > 0) mix.put(Command.valueOf(kv[0].trim().toUpperCase(Locale.ROOT)), weight);
+        }
+        if (mix.isEmpty()) throw new IllegalArgumentException("--mix sin comandos");
+        this.commands = mix.keySet().toArray(new Command[0]);
+        this.cumulativeWeights = new int[commands.length];
+        int sum = 0;
+        for (int i = 0; i < commands.length; i++) cumulativeWeights[i] = (sum += mix.get(commands[i]));
+    }
+
+    public static void main(String[] argv) throws Exception {
+        Map<String, String> args = parseArgs(argv);
+        if (args.containsKey("help")) {
+            usage();
+            return;
+        }
+        PrintStream report = System.out;
+        int exit;
+        try {
+            exit = new LoadTest(args, report).run();
+        } catch (IllegalArgumentException e) {
+            report.println("❌ " + e.getMessage());
+            usage();
+            exit = 2;
+        }
+        System.exit(exit);
+    }
+
+    private int run() throws Exception {
+        Path work = null;
+        TCPServer server = null;
+        ServerProtocol protocol = null;
+        String host = args.getOrDefault("host", "localhost");
+        int port;
+        try {
+            if (args.containsKey("port")) {
+                port = Integer.parseInt(args.get("port"));
+                String trustStore = args.get("truststore");
+                if (trustStore == null) throw new IllegalArgumentException("--port requiere --truststore y --password");
+                useTrustStore(Paths.get(trustStore), args.getOrDefault("password", ""));
+            } else {
+                work = Files.createTempDirectory("breaze-load-");
+                Path keyStore = generateKeyStore(work);
+                useKeyStore(keyStore);
+                Path base = BenchData.createBase(0, 20, 42);
+                Files.move(base, work.resolve("data"));
+                PrintStream stdout = BenchData.quiet(work.resolve("data"));
+                if (args.containsKey("verbose")) System.setOut(stdout);
+
+                port = freePort();
+                Properties p = new Properties();
+                p.setProperty("SERVER_PORT", String.valueOf(port));
+                p.setProperty("SERVER_IO", args.getOrDefault("io", "BLOCKING"));
+                p.setProperty("SERVER_EXECUTION", args.getOrDefault("execution", "VIRTUAL"));
+                p.setProperty("SERVER_MAX_CONNECTIONS", String.valueOf(Math.max(connections * 2, 256)));
+                if (args.containsKey("pool-size")) p.setProperty("SERVER_POOL_SIZE", args.get("pool-size"));
+                protocol = new ServerProtocol(work.resolve("data"));
+                protocol.start();
+                server = new TCPServer(ServerOptions.fromProperties(p), protocol);
+                TCPServer started = server;
+                Thread t = new Thread(started::start, "load-test-server");
+                t.setDaemon(true);
+                t.start();
+                waitForPort(host, port);
+            }
+            return drive(host, port);
+        } finally {
+            if (server != null) server.stop();
+            if (protocol != null) protocol.close();
+            if (work != null) BenchData.deleteRecursively(work);
+        }
+    }
+
+    private int drive(String host, int port) throws Exception {
+        SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+        List<LoadConnection> conns = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) conns.add(new LoadConnection(factory, host, port, protocolVersion));
+
+        try (ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor()) {
+            // Pacientes iniciales para GET/UPDATE/DEACTIVATE (no se miden)
+            List<Future<?>> seeding = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                LoadConnection conn = conns.get(i);
+                int count = seedPatients / connections + (i < seedPatients % connections ? 1 : 0);
+                SplittableRandom rnd = new SplittableRandom(1000 + i);
+                seeding.add(workers.submit(() -> {
+                    for (int n = 0; n < count; n++) create(conn, rnd);
+                    return null;
+                }));
+            }
+            for (Future<?> f : seeding) f.get();
+
+            long start = System.nanoTime();
+            long measureFrom = start + warmupSec * 1_000_000_000L;
+            long end = measureFrom + durationSec * 1_000_000_000L;
+            List<Future<Map<Command, CommandStats>>> results = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                LoadConnection conn = conns.get(i);
+                SplittableRandom rnd = new SplittableRandom(i);
+                results.add(workers.submit(() -> worker(conn, rnd, start, measureFrom, end)));
+            }
+
+            Map<Command, CommandStats> total = new EnumMap<>(Command.class);
+            for (Command c : commands) total.put(c, new CommandStats(c.name()));
+            for (Future<Map<Command, CommandStats>> f : results) {
+                for (Map.Entry<Command, CommandStats> e : f.get().entrySet()) total.get(e.getKey()).add(e.getValue());
+            }
+            printReport(total);
+            if (args.containsKey("hgrm-dir")) {
+                Path dir = Paths.get(args.get("hgrm-dir"));
+                for (CommandStats s : total.values()) s.writeHgrm(dir);
+                report.println("Distribuciones .hgrm en " + dir.toAbsolutePath());
+            }
+            long errors = total.values().stream().mapToLong(s -> s.errors).sum();
+            return errors == 0 ? 0 : 1;
+        } finally {
+            for (LoadConnection c : conns) {
+                try { c.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    // Bucle de una conexión. Sin --rate es lazo cerrado (un pedido apenas llega la respuesta);
+    // con --rate cada conexión envía a intervalos fijos y la latencia se mide desde el momento previsto.
+    private Map<Command, CommandStats> worker(LoadConnection conn, SplittableRandom rnd,
+                                              long start, long measureFrom, long end) {
+        Map<Command, CommandStats> stats = new EnumMap<>(Command.class);
+        for (Command c : commands) stats.put(c, new CommandStats(c.name()));
+        long intervalNs = rate > 0 ? (long) (connections * 1_000_000_000L / rate) : 0;
+        long intended = start + (intervalNs > 0 ? rnd.nextLong(intervalNs) : 0);
+        while (true) {
+            long now = System.nanoTime();
+            if (intervalNs > 0) {
+                if (intended > now) LockSupport.parkNanos(intended - now);
+            } else {
+                intended = now;
+            }
+            if (intended >= end) break;
+            Command command = pick(rnd);
+            boolean error;
+            try {
+                error = !execute(conn, command, rnd).startsWith("OK");
+            } catch (IOException e) {
+                error = true;
+            }
+            long latencyUs = (System.nanoTime() - intended) / 1000;
+            if (intended >= measureFrom) stats.get(command).record(latencyUs, error, intervalNs / 1000);
+            if (intervalNs > 0) intended += intervalNs;
+        }
+        return stats;
+    }
+
+    private Command pick(SplittableRandom rnd) {
+        int r = rnd.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (r < cumulativeWeights[i]) return commands[i];
+        }
+        return commands[commands.length - 1];
+    }
+
+    private String execute(LoadConnection conn, Command command, SplittableRandom rnd) throws IOException {
+        switch (command) {
+            case GET: {
+                String id = pool.random(rnd);
+                if (id == null) return create(conn, rnd);
+                return conn.request("GET_PATIENT", Map.of("patient_id", id));
+            }
+            case UPDATE: {
+                String id = pool.random(rnd);
+                if (id == null) return create(conn, rnd);
+                return conn.request("UPDATE_PATIENT", Map.of("patient_id", id,
+                        "age", String.valueOf(rnd.nextInt(90)), "clinical_notes", "load-" + rnd.nextInt(1000)));
+            }
+            case DEACTIVATE: {
+                String id = pool.take(rnd); // un paciente desactivado ya no sirve para GET/UPDATE
+                if (id == null) return create(conn, rnd);
+                return conn.request("DEACTIVATE_PATIENT", Map.of("patient_id", id));
+            }
+            default:
+                return create(conn, rnd);
+        }
+    }
+
+    private String create(LoadConnection conn, SplittableRandom rnd) throws IOException {
+        int bases = fastaMin + (fastaMax > fastaMin ? rnd.nextInt(fastaMax - fastaMin + 1) : 0);
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("full_name", "Load " + rnd.nextInt(1_000_000));
+        fields.put("document_id", "L" + rnd.nextInt(1_000_000));
+        fields.put("age", String.valueOf(rnd.nextInt(90)));
+        fields.put("sex", rnd.nextBoolean() ? "M" : "F");
+        if (bases > 0) fields.put("fasta_content", BenchData.randomBases(rnd, bases));
+        String response = conn.request("CREATE_PATIENT", fields);
+        String[] parts = response.split(";");
+        if (response.startsWith("OK;patient_created;") && parts.length > 2) pool.add(parts[2]);
+        return response;
+    }
+
+    private void printReport(Map<Command, CommandStats> total) {
+        report.println();
+        report.printf("connections=%d protocol=%d duration=%ds warmup=%ds rate=%s fasta_bases=%d-%d%n",
+                connections, protocolVersion, durationSec, warmupSec,
+                rate > 0 ? String.valueOf(rate) : "closed-loop", fastaMin, fastaMax);
+        CommandStats all = new CommandStats("TOTAL");
+        CommandStats.printHeader(report);
+        for (CommandStats s : total.values()) {
+            s.printRow(report, durationSec);
+            all.add(s);
+        }
+        all.printRow(report, durationSec);
+    }
+
+    // ---- TLS y servidor en proceso ----
+
+    private static Path generateKeyStore(Path dir) throws IOException, InterruptedException {
+        Path keyStore = dir.resolve("loadtest.p12");
+        Path keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool");
+        Process p = new ProcessBuilder(keytool.toString(), "-genkeypair", "-alias", "server",
+                "-keyalg", "RSA", "-keysize", "2048", "-validity", "2", "-dname", "CN=localhost",
+                "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+                "-keystore", keyStore.toString(), "-storepass", KEYSTORE_PASSWORD, "-keypass", KEYSTORE_PASSWORD)
+                .redirectErrorStream(true).start();
+        String output = new String(p.getInputStream().readAllBytes());
+        if (p.waitFor() != 0) throw new IOException("keytool falló: " + output);
+        return keyStore;
+    }
+
+    // Mismas propiedades que Main: el servidor y el cliente usan el contexto SSL por defecto
+    private static void useKeyStore(Path keyStore) {
+        System.setProperty("javax.net.ssl.keyStore", keyStore.toString());
+        System.setProperty("javax.net.ssl.keyStorePassword", KEYSTORE_PASSWORD);
+        System.setProperty("javax.net.ssl.keyStoreType", "PKCS12");
+        useTrustStore(keyStore, KEYSTORE_PASSWORD);
+    }
+
+    private static void useTrustStore(Path trustStore, String password) {
+        System.setProperty("javax.net.ssl.trustStore", trustStore.toString());
+        System.setProperty("javax.net.ssl.trustStorePassword", password);
+        System.setProperty("javax.net.ssl.trustStoreType", "PKCS12");
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static void waitForPort(String host, int port) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress(host, port), 200);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    // ---- argumentos ----
+
+    private static Map<String, String> parseArgs(String[] argv) {
+        Map<String, String> args = new HashMap<>();
+        for (int i = 0; i < argv.length; i++) {
+            if (!argv[i].startsWith("--")) throw new IllegalArgumentException("argumento inesperado: " + argv[i]);
+            String key = argv[i].substring(2);
+            boolean flag = i + 1 >= argv.length || argv[i + 1].startsWith("--");
+            args.put(key, flag ? "true" : argv[++i]);
+        }
+        return args;
+    }
+
+    private static void usage() {
+        System.out.println(String.join("\n",
+                "Uso: java -cp target/benchmarks.jar org.breaze.loadtest.LoadTest [opciones]",
+                "  --connections N        conexiones TLS concurrentes (32)",
+                "  --duration S           segundos medidos (30); --warmup S segundos previos sin medir (5)",
+                "  --mix C=w,...          pesos por comando (CREATE=20,GET=60,UPDATE=15,DEACTIVATE=5)",
+                "  --fasta-bases N|A-B    bases del FASTA sintético de CREATE (1000)",
+                "  --rate R               pedidos/s totales a tasa fija; sin esto, lazo cerrado",
+                "  --protocol 1|2         texto writeUTF (1) o tramas binarias negociadas con HELLO (2)",
+                "  --seed-patients N      pacientes creados antes de medir (200)",
+                "  --hgrm-dir DIR         guarda la distribución de cada comando en formato .hgrm",
+                "  servidor en proceso:   --io BLOCKING|NIO  --execution VIRTUAL|POOL  --pool-size N  --verbose",
+                "  servidor externo:      --host H --port P --truststore archivo.p12 --password X"));
+    }
+
+    // Ids de pacientes creados durante la prueba, para elegir al azar en GET/UPDATE/DEACTIVATE
+    private static final class PatientPool {
+        private final ArrayList<String> ids = new ArrayList<>();
+
+        synchronized void add(String id) {
+            ids.add(id);
+        }
+
+        synchronized String random(SplittableRandom rnd) {
+            return ids.isEmpty() ? null : ids.get(rnd.nextInt(ids.size()));
+        }
+
+        synchronized String take(SplittableRandom rnd) {
+            if (ids.isEmpty()) return null;
+            int i = rnd.nextInt(ids.size());
+            String id = ids.get(i);
+            ids.set(i, ids.get(ids.size() - 1));
+            ids.remove(ids.size() - 1);
+            return id;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.breaze.protocol;
+
+import org.breaze.logging.AuditLogger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+// Datos sintéticos para los benchmarks y la prueba de carga: carpeta temporal con la misma estructura src/main/... que usa el servidor
+public final class BenchData {
+    static final String PATIENT_HEADER = "patient_id,full_name,document_id,F,contact_email,registration_date,"
+            + "age,sex,clinical_notes,checksum_fasta,file_size_bytes,fasta_path,active";
+    static final String DETECTIONS_HEADER = "detection_id,patient_id,disease_id,disease_name,pattern,created_at";
+    private static final char[] BASES = { 'A', 'C', 'G', 'T' };
+
+    private BenchData() {}
+
+    // Carpeta base con catálogo, firmas y patiens.csv/detections.csv de 'patients' filas
+    public static Path createBase(int patients, int signatures, long seed) throws IOException {
+        return createBase(patients, signatures, seed, "");
+    }
+
+    // 'signatureColumns' se agrega a cada firma: "" = exactas, ",1,hamming" o ",2,edit" = aproximadas
+    public static Path createBase(int patients, int signatures, long seed, String signatureColumns) throws IOException {
+        Path base = Files.createTempDirectory("breaze-bench-");
+        Path db = Files.createDirectories(base.resolve("src/main/disease_db"));
+        Files.createDirectories(db.resolve("FASTAS"));
+        Path data = Files.createDirectories(base.resolve("src/main/data_storage/patiens"));
+
+        SplittableRandom rnd = new SplittableRandom(seed);
+        int diseases = Math.max(1, Math.min(signatures, 50));
+        try (BufferedWriter w = Files.newBufferedWriter(db.resolve("catalog.csv"), StandardCharsets.UTF_8)) {
+            w.write("disease_id,name,severity,fasta_file\n");
+            for (int d = 0; d < diseases; d++) w.write(diseaseId(d) + ",Disease " + d + "," + (d % 10) + ",\n");
+        }
+        try (BufferedWriter w = Files.newBufferedWriter(db.resolve("signatures.csv"), StandardCharsets.UTF_8)) {
+            w.write("pattern,disease_id,max_mismatches,mode\n");
+            for (int s = 0; s < signatures; s++) {
+                w.write(randomBases(rnd, 6 + rnd.nextInt(10)) + "," + diseaseId(s % diseases) + signatureColumns + "\n");
+            }
+        }
+        try (BufferedWriter w = Files.newBufferedWriter(data.resolve("patiens.csv"), StandardCharsets.UTF_8);
+             BufferedWriter dw = Files.newBufferedWriter(data.resolve("detections.csv"), StandardCharsets.UTF_8)) {
+            w.write(PATIENT_HEADER + "\n");
+            dw.write(DETECTIONS_HEADER + "\n");
+            for (int i = 0; i < patients; i++) {
+                String pid = patientId(i);
+                w.write(pid + ",Patient " + i + "," + documentId(i) + "," + diseaseId(i % diseases)
+                        + ",p" + i + "@mail.com,2025-01-01T00:00:00," + (i % 90) + "," + (i % 2 == 0 ? "M" : "F")
+                        + ",notes,,,,true\n");
+                if (i % 4 == 0) {
+                    dw.write("D-" + i + "," + pid + "," + diseaseId(i % diseases) + ",Disease " + (i % diseases)
+                            + ",ACGTAC,2025-01-01T00:00:00\n");
+                }
+            }
+        }
+        return base;
+    }
+
+    public static String patientId(int i) { return "P-" + (1_000_000_000L + i); }
+    public static String documentId(int i) { return "DOC" + (i / 2); } // dos pacientes por documento
+    public static String diseaseId(int d) { return String.format("D%03d", d + 1); }
+
+    public static String randomBases(SplittableRandom rnd, int length) {
+        char[] c = new char[length];
+        for (int i = 0; i < length; i++) c[i] = BASES[rnd.nextInt(4)];
+        return new String(c);
+    }
+
+    // FASTA como lo manda un cliente: encabezado, líneas de 60, minúsculas y algún carácter inválido
+    public static String rawFasta(SplittableRandom rnd, int bases) {
+        StringBuilder sb = new StringBuilder(bases + bases / 60 + 32).append(">sample\n");
+        for (int i = 0; i < bases; i++) {
+            char b = BASES[rnd.nextInt(4)];
+            sb.append(i % 7 == 0 ? Character.toLowerCase(b) : b);
+            if (i % 60 == 59) sb.append('\n');
+            if (i % 997 == 0) sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    // El log de auditoría va a la carpeta temporal y los println del servidor no llegan a la consola
+    // (se siguen formateando, solo se descarta la salida)
+    public static PrintStream quiet(Path base) {
+        Properties p = new Properties();
+        p.setProperty("AUDIT_LOG_PATH", base.resolve("src/main/data_storage/patiens/server.log").toString());
+        AuditLogger.configure(p);
+        PrintStream original = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        return original;
+    }
+
+    public static void deleteRecursively(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
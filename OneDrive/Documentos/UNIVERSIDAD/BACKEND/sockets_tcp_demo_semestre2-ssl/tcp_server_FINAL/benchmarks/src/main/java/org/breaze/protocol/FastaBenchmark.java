@@ -0,0 +1,40 @@
+package org.breaze.protocol;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Limpieza y checksum del FASTA que llega en CREATE_PATIENT / UPDATE_PATIENT, según el largo de la secuencia
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FastaBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    int fastaBases;
+
+    private String rawFasta;
+    private PackedSequence packed;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SplittableRandom rnd = new SplittableRandom(11);
+        rawFasta = BenchData.rawFasta(rnd, fastaBases);
+        packed = PackedSequence.clean(rawFasta);
+    }
+
+    @Benchmark
+    public PackedSequence packedClean() {
+        return PackedSequence.clean(rawFasta);
+    }
+
+    // checksum_fasta y sequence_sha256 en una pasada, como los calcula FastaStore al guardar la secuencia
+    @Benchmark
+    public String checksum() {
+        return FastaStore.digest("P-BENCH", packed).fastaChecksum();
+    }
+}
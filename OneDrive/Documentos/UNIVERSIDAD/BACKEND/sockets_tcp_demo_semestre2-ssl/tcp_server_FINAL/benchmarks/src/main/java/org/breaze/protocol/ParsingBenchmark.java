@@ -0,0 +1,66 @@
+package org.breaze.protocol;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Parseo que corre en cada pedido o fila leída: fila CSV con comillas (CsvRecord, como GET_PATIENT) y las claves k=v del mensaje
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParsingBenchmark {
+
+    private Path rowFile;
+    private FileChannel rowChannel;
+    private final CsvRecord record = new CsvRecord();
+    private String createRequest;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        String patientRow = "P-1757131920807,\"Pérez, Luis\",124145151,D001,hola@gmial.com,2025-09-05T23:12:00.8231654,"
+                + "8,M,\"nota con \"\"comillas\"\" y, coma\",f6817de30ff62bb662ebb03fb7ea3face4556b10efd2157b3bf98e58877bb888,"
+                + "29,src/main/disease_db/FASTAS/patient_P-1757131920807.fasta,true";
+        rowFile = Files.createTempFile("parsing-bench", ".csv");
+        Files.write(rowFile, (patientRow + "\n").getBytes(StandardCharsets.UTF_8));
+        rowChannel = FileChannel.open(rowFile, StandardOpenOption.READ);
+        createRequest = "CREATE_PATIENT|full_name=Juan Perez|document_id=123456|contact_email=juan@mail.com"
+                + "|age=34|sex=M|clinical_notes=control anual|fasta_content="
+                + BenchData.randomBases(new SplittableRandom(11), 200);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        rowChannel.close();
+        Files.deleteIfExists(rowFile);
+    }
+
+    // Lee la fila por offset y la separa completa (sin decodificar campos)
+    @Benchmark
+    public int readRow() throws IOException {
+        record.readAt(rowChannel, 0);
+        return record.fieldCount();
+    }
+
+    // Lee la fila y decodifica el campo con comillas y "" escapadas
+    @Benchmark
+    public String readQuotedField() throws IOException {
+        record.readAt(rowChannel, 0);
+        return record.field(8);
+    }
+
+    @Benchmark
+    public Map<String, String> parseKeyValues() {
+        return ServerProtocol.parseKeyValues(createRequest, createRequest.indexOf('|') + 1);
+    }
+}
@@ -0,0 +1,116 @@
+package org.breaze.protocol;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// processMessage completo (parseo, handler, CSV, índices y auditoría) sobre una carpeta temporal con N pacientes.
+// Los pedidos que escriben hacen crecer patiens.csv durante la medición, igual que en el servidor real.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ProcessMessageBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    int patients;
+
+    private Path base;
+    private PrintStream stdout;
+    ServerProtocol protocol;
+    private String createRequest;
+    private String batchCreateRequest;
+    private String batchGetRequest;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        base = BenchData.createBase(patients, 20, 42);
+        stdout = BenchData.quiet(base);
+        protocol = new ServerProtocol(base);
+
+        SplittableRandom rnd = new SplittableRandom(3);
+        String fasta = BenchData.randomBases(rnd, 1000);
+        createRequest = "CREATE_PATIENT|full_name=Bench|document_id=BENCH|age=30|sex=F|fasta_content=" + fasta;
+
+        StringBuilder batch = new StringBuilder("BATCH_CREATE_PATIENT");
+        for (int i = 1; i <= 100; i++) {
+            batch.append('|').append(i).append(".full_name=Bench ").append(i)
+                    .append('|').append(i).append(".document_id=BATCH").append(i);
+        }
+        batchCreateRequest = batch.toString();
+
+        StringBuilder ids = new StringBuilder("BATCH_GET_PATIENT|patient_ids=");
+        for (int i = 0; i < 100; i++) {
+            if (i > 0) ids.append(',');
+            ids.append(BenchData.patientId(rnd.nextInt(patients)));
+        }
+        batchGetRequest = ids.toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        protocol.close();
+        System.setOut(stdout);
+        BenchData.deleteRecursively(base);
+    }
+
+    private int randomPatient() {
+        return ThreadLocalRandom.current().nextInt(patients);
+    }
+
+    @Benchmark
+    public String createPatient() {
+        return protocol.processMessage(createRequest);
+    }
+
+    @Benchmark
+    public String getPatient() {
+        return protocol.processMessage("GET_PATIENT|patient_id=" + BenchData.patientId(randomPatient()));
+    }
+
+    @Benchmark
+    public String getPatientsByDocument() {
+        return protocol.processMessage("GET_PATIENTS_BY_DOCUMENT|document_id=" + BenchData.documentId(randomPatient()));
+    }
+
+    @Benchmark
+    public String updatePatient() {
+        int i = randomPatient();
+        return protocol.processMessage("UPDATE_PATIENT|patient_id=" + BenchData.patientId(i) + "|age=" + (i % 90));
+    }
+
+    // Cada invocación desactiva un paciente recién creado (la creación queda fuera de la medición)
+    @State(Scope.Thread)
+    public static class FreshPatient {
+        String patientId;
+
+        @Setup(Level.Invocation)
+        public void create(ProcessMessageBenchmark bench) {
+            String response = bench.protocol.processMessage("CREATE_PATIENT|full_name=Tmp|document_id=TMP");
+            patientId = response.split(";")[2];
+        }
+    }
+
+    @Benchmark
+    public String deactivatePatient(FreshPatient fresh) {
+        return protocol.processMessage("DEACTIVATE_PATIENT|patient_id=" + fresh.patientId);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public String batchCreatePatient() {
+        return protocol.processMessage(batchCreateRequest);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public String batchGetPatient() {
+        return protocol.processMessage(batchGetRequest);
+    }
+}
@@ -0,0 +1,55 @@
+package org.breaze.protocol;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// detectAllSignatures: costo por secuencia según cantidad de firmas, largo de la secuencia y tipo de firma
+// (exactas por Aho-Corasick o aproximadas con Shift-And/Myers)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureDetectionBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int signatures;
+
+    @Param({"1000", "100000", "1000000"})
+    int sequenceLength;
+
+    // columnas max_mismatches,mode de signatures.csv
+    @Param({"exact", "1,hamming", "2,hamming", "1,edit"})
+    String matching;
+
+    private Path base;
+    private PrintStream stdout;
+    private ServerProtocol protocol;
+    private PackedSequence sequence;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        base = BenchData.createBase(0, signatures, 42, matching.equals("exact") ? "" : "," + matching);
+        stdout = BenchData.quiet(base);
+        protocol = new ServerProtocol(base);
+        sequence = PackedSequence.clean(BenchData.randomBases(new SplittableRandom(7), sequenceLength));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        protocol.close();
+        System.setOut(stdout);
+        BenchData.deleteRecursively(base);
+    }
+
+    @Benchmark
+    public List<String[]> detectAllSignatures() {
+        return protocol.detectAllSignatures(sequence);
+    }
+}
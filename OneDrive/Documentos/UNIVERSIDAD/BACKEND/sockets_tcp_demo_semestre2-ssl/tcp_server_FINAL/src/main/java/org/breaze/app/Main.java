@@ -20,6 +20,7 @@ public class Main {
         } catch (IOException ex) {
             Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
         }
+        org.breaze.logging.AuditLogger.configure(p);
         String certificateRoute = p.getProperty("SSL_CERTIFICATE_ROUTE");
         String certificatePassword = p.getProperty("SSL_PASSWORD");
         System.setProperty("javax.net.ssl.keyStore",certificateRoute);
@@ -28,7 +29,9 @@ public class Main {
         System.setProperty("javax.net.ssl.trustStore", certificateRoute);
         System.setProperty("javax.net.ssl.trustStorePassword", certificatePassword);
         System.setProperty("javax.net.ssl.trustStoreType", "PKCS12");
-        org.breaze.server.TCPServer server = new org.breaze.server.TCPServer(2020);
+        org.breaze.protocol.ServerProtocol protocol = new org.breaze.protocol.ServerProtocol(java.nio.file.Paths.get(""), p);
+        protocol.start();
+        org.breaze.server.TCPServer server = new org.breaze.server.TCPServer(org.breaze.server.ServerOptions.fromProperties(p), protocol);
         server.start();
     }
 }
\ No newline at end of file
@@ -1,18 +1,88 @@
 package org.breaze.logging;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class AuditLogger {
-    private static final Path LOG_PATH = Paths.get("src/main/data_storage/patiens/server.log");
+    private static volatile Path LOG_PATH = Paths.get("src/main/data_storage/patiens/server.log");
     private static final ThreadLocal<String> REMOTE = new ThreadLocal<>();
 
+    // ===== Modo asíncrono (AUDIT_ASYNC=true) =====
+    // Los hilos de clientes solo formatean la línea y la encolan en un ring buffer sin locks;
+    // un único hilo escritor la vacía por lotes sobre un canal que queda abierto.
+    public enum Overflow { BLOCK, DROP, COUNT } // COUNT: descarta y deja una línea AUDIT_DROPPED en el log
+    public enum Flush { BATCH, INTERVAL }       // BATCH: escribe apenas hay eventos; INTERVAL: cada AUDIT_FLUSH_INTERVAL_MS
+
+    private static volatile AuditRingBuffer queue;     // null = modo síncrono original
+    private static volatile Overflow overflow = Overflow.BLOCK;
+    private static volatile Flush flush = Flush.BATCH;
+    private static volatile boolean fsync;
+    private static volatile long flushIntervalNanos = 200_000_000L;
+    private static volatile long blockTimeoutNanos = 1_000_000_000L;
+    private static volatile int batchSize = 512;
+    private static volatile Thread writer;
+    private static volatile boolean writerParked;
+    private static volatile boolean running;
+
+    private static final AtomicLong DROPPED = new AtomicLong();       // total descartados
+    private static final AtomicLong PENDING_DROPS = new AtomicLong(); // descartados aún no informados en el log (COUNT)
+    private static final AtomicLong WRITTEN = new AtomicLong();
+    private static final AtomicLong BATCHES = new AtomicLong();
+
     public static void setRemote(String remote) { REMOTE.set(remote); }
     public static void clearRemote() { REMOTE.remove(); }
 
+    // Lee la configuración de auditoría desde configuration.properties; sin claves AUDIT_* queda el modo síncrono
+    public static synchronized void configure(Properties p) {
+        String path = p.getProperty("AUDIT_LOG_PATH");
+        if (path != null && !path.isBlank()) LOG_PATH = Paths.get(path.trim());
+        if (!Boolean.parseBoolean(p.getProperty("AUDIT_ASYNC", "false").trim())) return;
+
+        overflow = Overflow.valueOf(p.getProperty("AUDIT_OVERFLOW", "BLOCK").trim().toUpperCase(Locale.ROOT));
+        flush = Flush.valueOf(p.getProperty("AUDIT_FLUSH", "BATCH").trim().toUpperCase(Locale.ROOT));
+        fsync = Boolean.parseBoolean(p.getProperty("AUDIT_FSYNC", "false").trim());
+        flushIntervalNanos = Long.parseLong(p.getProperty("AUDIT_FLUSH_INTERVAL_MS", "200").trim()) * 1_000_000L;
+        blockTimeoutNanos = Long.parseLong(p.getProperty("AUDIT_BLOCK_TIMEOUT_MS", "1000").trim()) * 1_000_000L;
+        batchSize = Integer.parseInt(p.getProperty("AUDIT_BATCH_SIZE", "512").trim());
+        startAsync(Integer.parseInt(p.getProperty("AUDIT_QUEUE_CAPACITY", "8192").trim()));
+    }
+
+    private static void startAsync(int capacity) {
+        if (writer != null) return;
+        queue = new AuditRingBuffer(capacity);
+        running = true;
+        Thread t = new Thread(AuditLogger::drainLoop, "audit-writer");
+        t.setDaemon(true);
+        writer = t;
+        t.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(AuditLogger::shutdown, "audit-shutdown"));
+    }
+
+    // Detiene el escritor vaciando lo que quede en la cola
+    public static void shutdown() {
+        Thread t = writer;
+        if (t == null) return;
+        running = false;
+        LockSupport.unpark(t);
+        try { t.join(5000); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+
+    // Contadores del modo asíncrono
+    public static boolean isAsync() { return queue != null; }
+    public static int queueDepth() { AuditRingBuffer q = queue; return q == null ? 0 : q.size(); }
+    public static int queueCapacity() { AuditRingBuffer q = queue; return q == null ? 0 : q.capacity(); }
+    public static long droppedCount() { return DROPPED.get(); }
+    public static long writtenCount() { return WRITTEN.get(); }
+    public static long batchCount() { return BATCHES.get(); }
+
     private static void ensureFile() {
         try {
             Files.createDirectories(LOG_PATH.getParent());
@@ -28,31 +98,145 @@ public class AuditLogger {
     public static void warn(String action, Map<String, String> kv) { write("WARN", action, kv); }
     public static void error(String action, Map<String, String> kv) { write("ERROR", action, kv); }
 
-    private static synchronized void write(String level, String action, Map<String,String> kv) {
+    private static void write(String level, String action, Map<String,String> kv) {
+        AuditRingBuffer q = queue;
+        if (q == null || !running) { // sin escritor (modo síncrono, tras shutdown() o si el hilo murió)
+            writeSync(level, action, kv);
+            return;
+        }
+        String line;
         try {
-            ensureFile();
-            String ts = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
-            String remote = Optional.ofNullable(REMOTE.get()).orElse("-");
-            StringBuilder sb = new StringBuilder();
-            sb.append(ts).append(" ")
-                    .append(level).append(" ")
-                    .append(action).append(" ")
-                    .append("remote=").append(remote);
-
-            if (kv != null) {
-                for (Map.Entry<String, String> e : kv.entrySet()) {
-                    sb.append(" ").append(e.getKey()).append("=")
-                            .append(e.getValue() == null ? "" : sanitize(e.getValue()));
+            line = format(level, action, kv);
+        } catch (Exception ignored) {
+            return; // nunca tumbar por logging
+        }
+        if (q.offer(line)) {
+            if (writerParked && flush == Flush.BATCH) LockSupport.unpark(writer);
+            return;
+        }
+        switch (overflow) {
+            case BLOCK:
+                long deadline = System.nanoTime() + blockTimeoutNanos;
+                while (!q.offer(line)) {
+                    if (!running) { // el escritor ya no va a liberar espacio
+                        writeSync(level, action, kv);
+                        return;
+                    }
+                    if (System.nanoTime() - deadline >= 0) { // escritor trabado (disco lento o lleno): se descarta
+                        PENDING_DROPS.incrementAndGet();
+                        DROPPED.incrementAndGet();
+                        return;
+                    }
+                    LockSupport.unpark(writer);
+                    LockSupport.parkNanos(50_000L); // espera breve a que el escritor libere espacio
                 }
-            }
-            sb.append(System.lineSeparator());
-            Files.write(LOG_PATH, Collections.singletonList(sb.toString()),
+                break;
+            case COUNT:
+                PENDING_DROPS.incrementAndGet();
+                DROPPED.incrementAndGet();
+                break;
+            default:
+                DROPPED.incrementAndGet();
+        }
+    }
+
+    private static synchronized void writeSync(String level, String action, Map<String,String> kv) {
+        try {
+            ensureFile();
+            Files.write(LOG_PATH, Collections.singletonList(format(level, action, kv)),
                     StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
         } catch (Exception ignored) {
             // nunca tumbar por logging
         }
     }
 
+    private static String format(String level, String action, Map<String,String> kv) {
+        String ts = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        String remote = Optional.ofNullable(REMOTE.get()).orElse("-");
+        StringBuilder sb = new StringBuilder();
+        sb.append(ts).append(" ")
+                .append(level).append(" ")
+                .append(action).append(" ")
+                .append("remote=").append(remote);
+
+        if (kv != null) {
+            for (Map.Entry<String, String> e : kv.entrySet()) {
+                sb.append(" ").append(e.getKey()).append("=")
+                        .append(e.getValue() == null ? "" : sanitize(e.getValue()));
+            }
+        }
+        sb.append(System.lineSeparator());
+        return sb.toString();
+    }
+
+    // Hilo escritor; si termina (shutdown() o un error inesperado) los productores pasan a escribir directo
+    private static void drainLoop() {
+        try {
+            drain();
+        } finally {
+            running = false;
+            // Lo que quedó en la cola (solo si el hilo murió con eventos pendientes) se cuenta como descartado
+            AuditRingBuffer q = queue;
+            long lost = 0;
+            while (q.poll() != null) lost++;
+            DROPPED.addAndGet(lost);
+        }
+    }
+
+    // Bucle del escritor: junta hasta batchSize eventos, los escribe en una sola llamada y opcionalmente hace fsync
+    private static void drain() {
+        FileChannel ch = null;
+        StringBuilder batch = new StringBuilder(16 * 1024);
+        long lastWrite = System.nanoTime();
+        long batchEvents = 0; // eventos acumulados en 'batch' (en INTERVAL pueden juntarse varias vueltas)
+        while (true) {
+            AuditRingBuffer q = queue;
+            boolean stopping = !running;
+            int n = 0;
+            String e;
+            while (n < batchSize && (e = q.poll()) != null) {
+                batch.append(e);
+                n++;
+            }
+            batchEvents += n;
+            long pending = PENDING_DROPS.getAndSet(0);
+            if (pending > 0) {
+                batch.append(format("WARN", "AUDIT_DROPPED", Map.of("count", String.valueOf(pending))));
+            }
+
+            boolean due = flush == Flush.BATCH || System.nanoTime() - lastWrite >= flushIntervalNanos
+                    || batch.length() >= 1 << 20 || stopping;
+            if (batch.length() > 0 && due) {
+                try {
+                    if (ch == null) {
+                        ensureFile();
+                        ch = FileChannel.open(LOG_PATH, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                    }
+                    ByteBuffer buf = StandardCharsets.UTF_8.encode(batch.toString());
+                    while (buf.hasRemaining()) ch.write(buf);
+                    if (fsync) ch.force(false);
+                    WRITTEN.addAndGet(batchEvents);
+                    BATCHES.incrementAndGet();
+                } catch (IOException ex) {
+                    // nunca tumbar por logging; se reintenta abrir en el siguiente lote
+                    try { if (ch != null) ch.close(); } catch (IOException ignored) {}
+                    ch = null;
+                }
+                batch.setLength(0);
+                batchEvents = 0;
+                lastWrite = System.nanoTime();
+            }
+
+            if (stopping && q.size() == 0) break;
+            if (n < batchSize) { // nada más por ahora: dormir hasta que un productor despierte o venza el intervalo
+                writerParked = true;
+                if (q.size() == 0 && running) LockSupport.parkNanos(flushIntervalNanos);
+                writerParked = false;
+            }
+        }
+        try { if (ch != null) ch.close(); } catch (IOException ignored) {}
+    }
+
     private static String sanitize(String v) {
         // evita saltos de línea en el log
         return v.replace("\r"," ").replace("\n"," ");
@@ -0,0 +1,61 @@
+package org.breaze.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Cola circular acotada y sin locks (muchos productores, un consumidor).
+// Cada celda lleva un número de secuencia que indica si está libre para escribir o lista para leer,
+// así los hilos de clientes encolan con un CAS y nunca esperan un monitor.
+final class AuditRingBuffer {
+    private final int mask;
+    private final AtomicReferenceArray<String> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(); // próxima posición a escribir (productores)
+    private final AtomicLong head = new AtomicLong(); // próxima posición a leer (consumidor)
+
+    AuditRingBuffer(int requestedCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1; // potencia de 2
+        this.mask = capacity - 1;
+        this.items = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) sequences.set(i, i);
+    }
+
+    int capacity() { return mask + 1; }
+
+    // Encola sin bloquear; false si la cola está llena
+    boolean offer(String event) {
+        long pos = tail.get();
+        while (true) {
+            int idx = (int) pos & mask;
+            long dif = sequences.get(idx) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items.lazySet(idx, event);
+                    sequences.set(idx, pos + 1); // publica la celda al consumidor
+                    return true;
+                }
+                pos = tail.get();
+            } else if (dif < 0) {
+                return false; // llena
+            } else {
+                pos = tail.get(); // otro productor ganó la celda
+            }
+        }
+    }
+
+    // Solo lo llama el hilo escritor; null si está vacía
+    String poll() {
+        long pos = head.get();
+        int idx = (int) pos & mask;
+        if (sequences.get(idx) != pos + 1) return null;
+        String event = items.get(idx);
+        items.lazySet(idx, null);
+        sequences.set(idx, pos + mask + 1); // libera la celda para la siguiente vuelta
+        head.lazySet(pos + 1);
+        return event;
+    }
+
+    int size() { return (int) Math.max(0, tail.get() - head.get()); }
+}
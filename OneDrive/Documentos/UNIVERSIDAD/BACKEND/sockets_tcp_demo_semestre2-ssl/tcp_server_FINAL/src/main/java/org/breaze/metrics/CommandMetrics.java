@@ -0,0 +1,41 @@
+package org.breaze.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Contadores y latencias de un comando del protocolo
+public final class CommandMetrics implements CommandMetricsMXBean {
+    private final String name;
+    private final LongAdder errors = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    CommandMetrics(String name) {
+        this.name = name;
+    }
+
+    void record(long nanos, boolean error) {
+        latency.record(nanos);
+        if (error) errors.increment();
+    }
+
+    public String name() { return name; }
+
+    @Override public long getCount() { return latency.count(); }
+    @Override public long getErrors() { return errors.sum(); }
+    @Override public long getMeanMicros() { return latency.meanNanos() / 1_000; }
+    @Override public long getP50Micros() { return latency.percentileNanos(50) / 1_000; }
+    @Override public long getP95Micros() { return latency.percentileNanos(95) / 1_000; }
+    @Override public long getP99Micros() { return latency.percentileNanos(99) / 1_000; }
+    @Override public long getMaxMicros() { return latency.maxNanos() / 1_000; }
+
+    // "command=X|count=..|errors=..|mean_us=..|p50_us=..|p95_us=..|p99_us=..|max_us=.."
+    void appendTo(StringBuilder sb) {
+        sb.append("command=").append(name)
+                .append("|count=").append(getCount())
+                .append("|errors=").append(getErrors())
+                .append("|mean_us=").append(getMeanMicros())
+                .append("|p50_us=").append(getP50Micros())
+                .append("|p95_us=").append(getP95Micros())
+                .append("|p99_us=").append(getP99Micros())
+                .append("|max_us=").append(getMaxMicros());
+    }
+}
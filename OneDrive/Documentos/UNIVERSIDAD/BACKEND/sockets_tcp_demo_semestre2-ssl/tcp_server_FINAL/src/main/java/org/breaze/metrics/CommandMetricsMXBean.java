@@ -0,0 +1,12 @@
+package org.breaze.metrics;
+
+// Vista JMX de un comando: org.breaze:type=Command,name=<COMANDO>. Latencias en microsegundos.
+public interface CommandMetricsMXBean {
+    long getCount();
+    long getErrors();
+    long getMeanMicros();
+    long getP50Micros();
+    long getP95Micros();
+    long getP99Micros();
+    long getMaxMicros();
+}
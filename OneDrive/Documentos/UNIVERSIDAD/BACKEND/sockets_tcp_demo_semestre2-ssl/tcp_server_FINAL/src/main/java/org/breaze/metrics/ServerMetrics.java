@@ -0,0 +1,117 @@
+package org.breaze.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Métricas del servidor en memoria, globales al proceso (como AuditLogger).
+ * Los comandos se registran una vez al arrancar; en el camino de cada pedido solo hay un get() al mapa
+ * y sumas atómicas. Los comandos no registrados (por ejemplo, nombres inválidos que manda un cliente)
+ * caen todos en OTHER para que el mapa no crezca sin límite.
+ */
+public final class ServerMetrics {
+    private static final String OTHER = "OTHER";
+    private static final long STARTED_AT = System.currentTimeMillis();
+
+    private static final Map<String, CommandMetrics> COMMANDS = new ConcurrentHashMap<>();
+    private static final CommandMetrics OTHER_METRICS = register(OTHER);
+
+    private static final LongAdder ACTIVE = new LongAdder();
+    private static final LongAdder TOTAL = new LongAdder();
+    private static final LongAdder REJECTED = new LongAdder();
+    private static final LongAdder BYTES_IN = new LongAdder();
+    private static final LongAdder BYTES_OUT = new LongAdder();
+    private static final LongAdder FASTA_BYTES = new LongAdder();
+
+    private static volatile boolean jmxEnabled = false;
+
+    private ServerMetrics() {}
+
+    public static void registerCommands(String... names) {
+        for (String name : names) register(name);
+    }
+
+    private static CommandMetrics register(String name) {
+        CommandMetrics[] created = new CommandMetrics[1];
+        CommandMetrics m = COMMANDS.computeIfAbsent(name, n -> created[0] = new CommandMetrics(n));
+        if (created[0] != null && jmxEnabled) registerBean(m);
+        return m;
+    }
+
+    public static void recordCommand(String command, long nanos, boolean error) {
+        CommandMetrics m = command == null ? null : COMMANDS.get(command);
+        (m != null ? m : OTHER_METRICS).record(nanos, error);
+    }
+
+    public static void connectionOpened() { ACTIVE.increment(); TOTAL.increment(); }
+    public static void connectionClosed() { ACTIVE.decrement(); }
+    public static void connectionRejected() { REJECTED.increment(); }
+
+    // Bytes de aplicación (ya descifrados / antes de cifrar): no incluyen el overhead de TLS
+    public static void bytesIn(long n) { if (n > 0) BYTES_IN.add(n); }
+    public static void bytesOut(long n) { if (n > 0) BYTES_OUT.add(n); }
+    public static void fastaBytes(long n) { if (n > 0) FASTA_BYTES.add(n); }
+
+    public static CommandMetrics command(String name) {
+        return COMMANDS.get(name);
+    }
+
+    // Cuerpo de la respuesta de STATS: una sección general y una por comando con al menos un pedido, separadas por ';'
+    public static String snapshotText() {
+        StringBuilder sb = new StringBuilder(512);
+        Server s = Server.INSTANCE;
+        sb.append("uptime_ms=").append(s.getUptimeMillis())
+                .append("|connections_active=").append(s.getActiveConnections())
+                .append("|connections_total=").append(s.getTotalConnections())
+                .append("|connections_rejected=").append(s.getRejectedConnections())
+                .append("|bytes_in=").append(s.getBytesIn())
+                .append("|bytes_out=").append(s.getBytesOut())
+                .append("|fasta_bytes=").append(s.getFastaBytes());
+        COMMANDS.values().stream()
+                .filter(m -> m.getCount() > 0)
+                .sorted((a, b) -> a.name().compareTo(b.name()))
+                .forEach(m -> m.appendTo(sb.append(';')));
+        return sb.toString();
+    }
+
+    // Publica los MXBeans en el MBeanServer de la plataforma (jconsole / VisualVM). Se puede llamar más de una vez.
+    public static synchronized void registerMBeans() {
+        if (jmxEnabled) return;
+        jmxEnabled = true;
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("org.breaze:type=Server");
+            if (!mbs.isRegistered(name)) mbs.registerMBean(Server.INSTANCE, name);
+        } catch (JMException e) {
+            System.err.println("⚠️ No se pudo registrar el MBean del servidor: " + e.getMessage());
+        }
+        COMMANDS.values().forEach(ServerMetrics::registerBean);
+    }
+
+    private static void registerBean(CommandMetrics m) {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("org.breaze:type=Command,name=" + m.name());
+            if (!mbs.isRegistered(name)) mbs.registerMBean(m, name);
+        } catch (JMException e) {
+            System.err.println("⚠️ No se pudo registrar el MBean de " + m.name() + ": " + e.getMessage());
+        }
+    }
+
+    private static final class Server implements ServerMetricsMXBean {
+        static final Server INSTANCE = new Server();
+
+        @Override public long getUptimeMillis() { return System.currentTimeMillis() - STARTED_AT; }
+        @Override public long getActiveConnections() { return ACTIVE.sum(); }
+        @Override public long getTotalConnections() { return TOTAL.sum(); }
+        @Override public long getRejectedConnections() { return REJECTED.sum(); }
+        @Override public long getBytesIn() { return BYTES_IN.sum(); }
+        @Override public long getBytesOut() { return BYTES_OUT.sum(); }
+        @Override public long getFastaBytes() { return FASTA_BYTES.sum(); }
+    }
+}
@@ -0,0 +1,12 @@
+package org.breaze.metrics;
+
+// Vista JMX del servidor: org.breaze:type=Server
+public interface ServerMetricsMXBean {
+    long getUptimeMillis();
+    long getActiveConnections();
+    long getTotalConnections();
+    long getRejectedConnections();
+    long getBytesIn();
+    long getBytesOut();
+    long getFastaBytes();
+}
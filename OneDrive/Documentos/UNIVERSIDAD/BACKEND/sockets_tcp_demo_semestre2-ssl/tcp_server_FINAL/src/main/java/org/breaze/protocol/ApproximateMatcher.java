@@ -0,0 +1,188 @@
+package org.breaze.protocol;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+// Firmas con tolerancia a errores (columna max_mismatches de signatures.csv), con algoritmos bit-paralelos:
+// - HAMMING: hasta k sustituciones. Shift-And con k+1 niveles (Wu-Manber); varias firmas con el mismo k
+//   se empaquetan una detrás de otra en un mismo long, así una palabra avanza todas a la vez.
+// - EDIT: hasta k sustituciones, inserciones o borrados. Myers (1999), una firma por long.
+// En ambos la N (de la secuencia o de la firma) coincide con cualquier base.
+// Las firmas deben tener como máximo 64 bases; DiseaseDB deja como exactas las más largas.
+final class ApproximateMatcher {
+    enum Mode { HAMMING, EDIT }
+
+    static final int MAX_LENGTH = Long.SIZE;
+    private static final int ALPHABET = SignatureMatcher.ALPHABET;
+    private static final int N = 4;
+
+    // Palabras Shift-And: máscara de inicio/fin de cada firma, tabla símbolo -> bits que coinciden,
+    // k de la palabra y dónde empiezan sus k+1 niveles en el arreglo de estado (seguidos de la máscara
+    // de firmas todavía no encontradas: la palabra deja de avanzar cuando ya aparecieron todas)
+    private final long[] hStart, hEnd, hEq;
+    private final int[] hK, hOffset;
+    private final int[] hBitToId; // palabra*64 + bit final -> id de la firma
+
+    // Firmas Myers: tabla símbolo -> bits, k, id, largo y posición de (Pv, Mv, score) en el estado
+    private final long[] mEq;
+    private final int[] mK, mId, mLength, mOffset;
+
+    private final int stateSize;
+
+    private ApproximateMatcher(long[] hStart, long[] hEnd, long[] hEq, int[] hK, int[] hOffset, int[] hBitToId,
+                               long[] mEq, int[] mK, int[] mId, int[] mLength, int[] mOffset,
+                               int stateSize) {
+        this.hStart = hStart; this.hEnd = hEnd; this.hEq = hEq; this.hK = hK; this.hOffset = hOffset;
+        this.hBitToId = hBitToId;
+        this.mEq = mEq; this.mK = mK; this.mId = mId; this.mLength = mLength;
+        this.mOffset = mOffset;
+        this.stateSize = stateSize;
+    }
+
+    // maxErrors[id] == 0 significa firma exacta (la resuelve el Aho-Corasick); null si no hay ninguna aproximada
+    static ApproximateMatcher compile(String[] patterns, int[] maxErrors, Mode[] modes) {
+        List<long[]> words = new ArrayList<>(); // {start, end, eq[0..4]} por palabra
+        List<Integer> wordK = new ArrayList<>();
+        List<int[]> wordIds = new ArrayList<>();
+        List<Integer> myers = new ArrayList<>();
+
+        // Firmas HAMMING agrupadas por k; se llenan palabras de 64 bits en orden de carga
+        for (int k = 1; k < MAX_LENGTH; k++) {
+            long[] w = null;
+            int[] ids = null;
+            int used = 0;
+            for (int id = 0; id < patterns.length; id++) {
+                if (maxErrors[id] != k || modes[id] != Mode.HAMMING) continue;
+                String p = patterns[id];
+                if (w == null || used + p.length() > MAX_LENGTH) {
+                    w = new long[2 + ALPHABET];
+                    ids = new int[MAX_LENGTH];
+                    java.util.Arrays.fill(ids, -1);
+                    words.add(w);
+                    wordK.add(k);
+                    wordIds.add(ids);
+                    used = 0;
+                }
+                w[0] |= 1L << used;
+                w[1] |= 1L << (used + p.length() - 1);
+                ids[used + p.length() - 1] = id;
+                for (int i = 0; i < p.length(); i++) setEq(w, 2, p.charAt(i), 1L << (used + i));
+                used += p.length();
+            }
+        }
+        for (int id = 0; id < patterns.length; id++) {
+            if (maxErrors[id] > 0 && modes[id] == Mode.EDIT) myers.add(id);
+        }
+        if (words.isEmpty() && myers.isEmpty()) return null;
+
+        int h = words.size();
+        long[] hStart = new long[h], hEnd = new long[h], hEq = new long[h * ALPHABET];
+        int[] hK = new int[h], hOffset = new int[h], hBitToId = new int[h * MAX_LENGTH];
+        int offset = 0;
+        for (int i = 0; i < h; i++) {
+            long[] w = words.get(i);
+            hStart[i] = w[0];
+            hEnd[i] = w[1];
+            System.arraycopy(w, 2, hEq, i * ALPHABET, ALPHABET);
+            hEq[i * ALPHABET + N] = -1L; // N en la secuencia coincide con todo
+            hK[i] = wordK.get(i);
+            hOffset[i] = offset;
+            offset += hK[i] + 2;
+            System.arraycopy(wordIds.get(i), 0, hBitToId, i * MAX_LENGTH, MAX_LENGTH);
+        }
+
+        int m = myers.size();
+        long[] mEq = new long[m * ALPHABET];
+        int[] mK = new int[m], mId = new int[m], mLength = new int[m], mOffset = new int[m];
+        for (int i = 0; i < m; i++) {
+            int id = myers.get(i);
+            String p = patterns[id];
+            long[] eq = new long[ALPHABET];
+            for (int j = 0; j < p.length(); j++) setEq(eq, 0, p.charAt(j), 1L << j);
+            eq[N] = -1L;
+            System.arraycopy(eq, 0, mEq, i * ALPHABET, ALPHABET);
+            mK[i] = maxErrors[id];
+            mId[i] = id;
+            mLength[i] = p.length();
+            mOffset[i] = offset;
+            offset += 3;
+        }
+        return new ApproximateMatcher(hStart, hEnd, hEq, hK, hOffset, hBitToId,
+                mEq, mK, mId, mLength, mOffset, offset);
+    }
+
+    // Marca el bit de la posición en la tabla del símbolo de la firma (N de la firma = en todas)
+    private static void setEq(long[] eq, int from, char c, long bit) {
+        int sym = SignatureMatcher.symbol(c);
+        if (sym == N) {
+            for (int s = 0; s < ALPHABET; s++) eq[from + s] |= bit;
+        } else if (sym >= 0) {
+            eq[from + sym] |= bit;
+        } // otro carácter: esa posición nunca coincide, solo se puede cubrir con un error
+    }
+
+    // Estado inicial de un recorrido (se puede conservar entre fragmentos)
+    long[] newState() {
+        long[] st = new long[stateSize];
+        for (int w = 0; w < hK.length; w++) st[hOffset[w] + hK[w] + 1] = hEnd[w];
+        reset(st);
+        return st;
+    }
+
+    // Corta las coincidencias en curso; las firmas ya encontradas siguen marcadas
+    void reset(long[] st) {
+        for (int w = 0; w < hK.length; w++) java.util.Arrays.fill(st, hOffset[w], hOffset[w] + hK[w] + 1, 0L);
+        for (int i = 0; i < mId.length; i++) {
+            st[mOffset[i]] = -1L;           // Pv
+            st[mOffset[i] + 1] = 0L;        // Mv
+            st[mOffset[i] + 2] = mLength[i]; // score = distancia con la firma completa
+        }
+    }
+
+    // Avanza un símbolo y marca en 'found' las firmas que terminan aquí con a lo sumo k errores.
+    // Basta saber si cada firma aparece, así que las ya encontradas dejan de calcularse.
+    void step(long[] st, int sym, BitSet found) {
+        for (int w = 0; w < hK.length; w++) {
+            int off = hOffset[w], k = hK[w];
+            long pending = st[off + k + 1];
+            if (pending == 0) continue;
+            long start = hStart[w], eq = hEq[w * ALPHABET + sym];
+            long prev = st[off];                       // nivel j-1 antes de este símbolo
+            long d = ((prev << 1) | start) & eq;       // nivel 0: coincidencia exacta
+            st[off] = d;
+            for (int j = 1; j <= k; j++) {
+                long old = st[off + j];
+                d = (((old << 1) | start) & eq)        // la base coincide y sigue con j errores
+                        | ((prev << 1) | start);       // o se gasta una sustitución más
+                st[off + j] = d;
+                prev = old;
+            }
+            long hits = d & pending;
+            if (hits == 0) continue;
+            st[off + k + 1] = pending & ~hits;
+            while (hits != 0) {
+                found.set(hBitToId[w * MAX_LENGTH + Long.numberOfTrailingZeros(hits)]);
+                hits &= hits - 1;
+            }
+        }
+        for (int i = 0; i < mId.length; i++) {
+            if (found.get(mId[i])) continue;
+            int off = mOffset[i];
+            long pv = st[off], mv = st[off + 1];
+            long eq = mEq[i * ALPHABET + sym];
+            long xv = eq | mv;
+            long xh = (((eq & pv) + pv) ^ pv) | eq;
+            long ph = mv | ~(xh | pv);
+            long mh = pv & xh;
+            int last = mLength[i] - 1;                 // +1/-1 sin saltos: en texto aleatorio el salto casi nunca se predice
+            long score = st[off + 2] + ((ph >>> last) & 1) - ((mh >>> last) & 1);
+            ph <<= 1;                                  // sin |1: la firma puede empezar en cualquier posición
+            mh <<= 1;
+            st[off] = mh | ~(xv | ph);
+            st[off + 1] = ph & xv;
+            st[off + 2] = score;
+            if (score <= mK[i]) found.set(mId[i]);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.breaze.protocol;
+
+// Secuencia de bases que se recorre sin materializarla: PackedSequence (empaquetada en heap)
+// o MappedFasta (archivo FASTA mapeado en memoria, puede pasar de 2^31 bases).
+interface BaseSequence {
+    long baseCount();
+
+    // Cursor posicionado en la base 'from'
+    Cursor cursor(long from);
+
+    interface Cursor {
+        // Código de la siguiente base (0..3 = ACGT, 4 = N) o -1 al final
+        int next();
+    }
+}
@@ -0,0 +1,234 @@
+package org.breaze.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Protocolo binario (versión 2). El cliente lo negocia enviando en texto "HELLO|protocol=2";
+// después de la respuesta "OK;hello;protocol=2;..." ambos lados pasan a tramas binarias (big-endian):
+//
+//   pedido:    int32 largo | u8 comando | [u8 largo + nombre si comando = 0] | int32 id | u16 campos
+//              | por campo: u8 largo + clave, int32 largo + valor (UTF-8)
+//   respuesta: int32 largo | u8 estado (0 OK, 1 ERROR, 2 otro) | int32 id | texto de la respuesta en UTF-8
+//
+// El largo no incluye sus 4 bytes. Sin el límite de 65535 bytes de writeUTF y sin separar con "|":
+// los campos se leen directo del buffer del socket. El id se devuelve en la respuesta y, como en PIPELINE,
+// los pedidos de una conexión se ejecutan a la vez y pueden responderse en otro orden. La excepción son los que
+// comparten stream_id (partes de una misma subida) o, si no traen stream_id, patient_id: esos se ejecutan en el
+// orden en que llegaron, así un FASTA_CHUNK nunca se adelanta al anterior.
+// Un pedido puede ocupar hasta SERVER_BINARY_MAX_FRAME_BYTES (max_frame_bytes en la respuesta al HELLO);
+// un FASTA más grande se sube por partes con FASTA_BEGIN/FASTA_CHUNK/FASTA_END.
+public final class BinaryFrames {
+    public static final int VERSION = 2;
+    public static final int MAX_FRAME_BYTES = 32 << 20;          // tope del protocolo (respuestas incluidas)
+    public static final int DEFAULT_MAX_REQUEST_BYTES = 4 << 20; // pedidos, si no se configura otro valor
+
+    public static final int CMD_NAMED = 0;   // el nombre del comando viaja en la trama
+    public static final int CMD_EXIT = 0x7F;
+
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_ERROR = 1;
+    public static final int STATUS_OTHER = 2;
+
+    // Código de cada comando = posición en la tabla; no se reordena, solo se agregan al final
+    private static final String[] COMMANDS = {
+            null,
+            "CREATE_PATIENT",
+            "GET_PATIENT",
+            "UPDATE_PATIENT",
+            "DEACTIVATE_PATIENT",
+            "GET_PATIENTS_BY_DOCUMENT",
+            "FASTA_BEGIN",
+            "FASTA_CHUNK",
+            "FASTA_END",
+            "FASTA_ABORT",
+            "BATCH_CREATE_PATIENT",
+            "BATCH_GET_PATIENT",
+            "STATS",
+            "RELOAD_DISEASE_DB",
+            "SCORE_PATIENT",
+            "SEARCH_PATTERN",
+            "SEARCH_RESULTS",
+            "CANCEL_SEARCH",
+            "GET_SEQUENCE_RANGE",
+            "EXPORT_FASTA",
+    };
+
+    // Claves conocidas: se reutiliza el mismo String en vez de crear uno por campo
+    private static final String[] KEYS = {
+            "patient_id", "full_name", "document_id", "disease_id", "contact_email", "age", "sex",
+            "clinical_notes", "fasta_content", "stream_id", "data", "patient_ids", "min_containment",
+            "pattern", "search_id", "max_results", "timeout_ms", "max",
+            "start", "end",
+    };
+    private static final byte[][] KEY_BYTES = new byte[KEYS.length][];
+    static {
+        for (int i = 0; i < KEYS.length; i++) KEY_BYTES[i] = KEYS[i].getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private BinaryFrames() {}
+
+    public static final class Request {
+        public final int code;
+        public final String command;
+        public final int correlationId;
+        public final Map<String, String> fields;
+
+        Request(int code, String command, int correlationId, Map<String, String> fields) {
+            this.code = code;
+            this.command = command;
+            this.correlationId = correlationId;
+            this.fields = fields;
+        }
+
+        public boolean isExit() {
+            return code == CMD_EXIT || "EXIT".equals(command) || "QUIT".equals(command);
+        }
+    }
+
+    // Versión pedida en "HELLO|protocol=N"; -1 si el mensaje no es un HELLO, 0 si no trae una versión válida
+    public static int helloVersion(String message) {
+        String trimmed = message.trim();
+        if (!trimmed.regionMatches(true, 0, "HELLO", 0, 5)) return -1;
+        if (trimmed.length() > 5 && trimmed.charAt(5) != '|') return -1;
+        int idx = trimmed.indexOf("protocol=");
+        if (idx < 0) return 0;
+        int end = trimmed.indexOf('|', idx);
+        try {
+            return Integer.parseInt(trimmed.substring(idx + 9, end < 0 ? trimmed.length() : end).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public static int codeOf(String command) {
+        String upper = command.toUpperCase(Locale.ROOT);
+        if (upper.equals("EXIT")) return CMD_EXIT;
+        for (int i = 1; i < COMMANDS.length; i++) {
+            if (COMMANDS[i].equals(upper)) return i;
+        }
+        return CMD_NAMED;
+    }
+
+    // Decodifica un pedido de 'length' bytes desde la posición actual; siempre deja el buffer al final de la trama
+    public static Request decode(ByteBuffer buf, int length) throws ProtocolException {
+        int start = buf.position();
+        int end = start + length;
+        try {
+            if (length < 7) throw new ProtocolException("frame too short: " + length);
+            int code = buf.get() & 0xFF;
+            String command;
+            if (code == CMD_NAMED) {
+                int n = buf.get() & 0xFF;
+                command = utf8(buf, n, end).toUpperCase(Locale.ROOT);
+            } else if (code == CMD_EXIT) {
+                command = "EXIT";
+            } else if (code < COMMANDS.length) {
+                command = COMMANDS[code];
+            } else {
+                throw new ProtocolException("unknown command code: " + code);
+            }
+            checkRemaining(buf, 6, end);
+            int correlationId = buf.getInt();
+            int count = buf.getShort() & 0xFFFF;
+            Map<String, String> fields = new HashMap<>(Math.max(4, count * 2));
+            for (int i = 0; i < count; i++) {
+                checkRemaining(buf, 1, end);
+                String key = key(buf, buf.get() & 0xFF, end);
+                checkRemaining(buf, 4, end);
+                int valueLen = buf.getInt();
+                if (valueLen < 0) throw new ProtocolException("negative field length");
+                fields.put(key, utf8(buf, valueLen, end));
+            }
+            if (buf.position() != end) throw new ProtocolException("trailing bytes in frame");
+            return new Request(code, command, correlationId, fields);
+        } finally {
+            buf.position(end);
+        }
+    }
+
+    public static byte[] encodeResponse(int correlationId, String response) {
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(4 + 1 + 4 + body.length);
+        out.putInt(1 + 4 + body.length);
+        out.put((byte) statusOf(response));
+        out.putInt(correlationId);
+        out.put(body);
+        return out.array();
+    }
+
+    // Para clientes: arma la trama de un pedido
+    public static byte[] encodeRequest(int correlationId, String command, Map<String, String> fields) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // se completa al final
+        int code = codeOf(command);
+        out.writeByte(code);
+        if (code == CMD_NAMED) {
+            byte[] name = command.getBytes(StandardCharsets.UTF_8);
+            out.writeByte(name.length);
+            out.write(name);
+        }
+        out.writeInt(correlationId);
+        out.writeShort(fields.size());
+        for (Map.Entry<String, String> e : fields.entrySet()) {
+            byte[] k = e.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] v = e.getValue().getBytes(StandardCharsets.UTF_8);
+            out.writeByte(k.length);
+            out.write(k);
+            out.writeInt(v.length);
+            out.write(v);
+        }
+        byte[] frame = bytes.toByteArray();
+        ByteBuffer.wrap(frame).putInt(frame.length - 4);
+        return frame;
+    }
+
+    private static int statusOf(String response) {
+        if (response.startsWith("OK")) return STATUS_OK;
+        if (response.startsWith("ERROR")) return STATUS_ERROR;
+        return STATUS_OTHER;
+    }
+
+    private static String key(ByteBuffer buf, int len, int end) throws ProtocolException {
+        checkRemaining(buf, len, end);
+        if (buf.hasArray()) {
+            byte[] arr = buf.array();
+            int off = buf.arrayOffset() + buf.position();
+            for (int i = 0; i < KEY_BYTES.length; i++) {
+                byte[] k = KEY_BYTES[i];
+                if (k.length == len && Arrays.equals(arr, off, off + len, k, 0, len)) {
+                    buf.position(buf.position() + len);
+                    return KEYS[i];
+                }
+            }
+        }
+        return utf8(buf, len, end);
+    }
+
+    // El valor se decodifica directo desde el arreglo del buffer, sin copia intermedia
+    private static String utf8(ByteBuffer buf, int len, int end) throws ProtocolException {
+        checkRemaining(buf, len, end);
+        String s;
+        if (buf.hasArray()) {
+            s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+            buf.position(buf.position() + len);
+        } else {
+            byte[] tmp = new byte[len];
+            buf.get(tmp);
+            s = new String(tmp, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    private static void checkRemaining(ByteBuffer buf, int n, int end) throws ProtocolException {
+        if (n > end - buf.position()) throw new ProtocolException("field exceeds frame");
+    }
+}
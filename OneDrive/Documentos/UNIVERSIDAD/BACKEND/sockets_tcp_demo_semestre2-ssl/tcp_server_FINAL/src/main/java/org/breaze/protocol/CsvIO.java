@@ -0,0 +1,101 @@
+package org.breaze.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+
+class CsvIO {
+    // Garantiza que el archivo exista con el header correcto, crea directorios si faltan
+    static void ensureFileWithHeader(Path path, String header) {
+        try {
+            Files.createDirectories(path.getParent());
+            if (Files.notExists(path)) {
+                Files.write(path, Collections.singletonList(header), StandardCharsets.UTF_8, StandardOpenOption.CREATE);
+                System.out.println(" CSV creado con encabezado en: " + path.toAbsolutePath());
+            } else {
+                System.out.println(" CSV existente: " + path.toAbsolutePath());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("No pude preparar el CSV en " + path.toAbsolutePath(), e);
+        }
+    }
+
+    // Agrega una línea al final del CSV (lo crea si no existe) y devuelve el offset en bytes donde quedó;
+    // el llamador serializa las escrituras
+    static long appendLineAt(Path path, String line) throws IOException {
+        byte[] data = (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            long offset = ch.size();
+            java.nio.ByteBuffer buf = java.nio.ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) ch.write(buf);
+            return offset;
+        }
+    }
+
+    // Varias líneas en una sola escritura; devuelve el offset de cada una. El llamador serializa las escrituras
+    static long[] appendLinesAt(Path path, List<String> lines) throws IOException {
+        long[] offsets = new long[lines.size()];
+        if (lines.isEmpty()) return offsets;
+        byte[][] encoded = new byte[lines.size()][];
+        int total = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            encoded[i] = (lines.get(i) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+            total += encoded[i].length;
+        }
+        java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(total);
+        for (byte[] e : encoded) buf.put(e);
+        buf.flip();
+        try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            long offset = ch.size();
+            for (int i = 0; i < encoded.length; i++) {
+                offsets[i] = offset;
+                offset += encoded[i].length;
+            }
+            while (buf.hasRemaining()) ch.write(buf);
+        }
+        return offsets;
+    }
+
+    // Lee la línea que empieza en 'offset' (sin el salto de línea); null si el offset está fuera del archivo
+    static String readLineAt(Path path, long offset) throws IOException {
+        try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(path, StandardOpenOption.READ)) {
+            return readLineAt(ch, offset);
+        }
+    }
+
+    // Igual que readLineAt(Path, long) reutilizando un canal ya abierto (recorridos de muchas filas)
+    static String readLineAt(java.nio.channels.FileChannel ch, long offset) throws IOException {
+        if (offset < 0 || offset >= ch.size()) return null;
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(512);
+        long pos = offset;
+        while (true) {
+            buf.clear();
+            int n = ch.read(buf, pos);
+            if (n <= 0) break;
+            for (int i = 0; i < n; i++) {
+                byte b = buf.get(i);
+                if (b == '\n') return PatientIndex.stripCr(line.toString(StandardCharsets.UTF_8));
+                line.write(b);
+            }
+            pos += n;
+        }
+        return PatientIndex.stripCr(line.toString(StandardCharsets.UTF_8));
+    }
+
+    static String csv(String val) {
+        if (val == null) return "";
+        String v = val.replace("\"", "\"\""); // escapa comillas dobles
+        if (v.contains(",") || v.contains("\"") || v.contains("\n") || v.contains("\r")) {
+            return "\"" + v + "\"";           // envuelve en comillas si hace falta
+        }
+        return v;
+    }
+}
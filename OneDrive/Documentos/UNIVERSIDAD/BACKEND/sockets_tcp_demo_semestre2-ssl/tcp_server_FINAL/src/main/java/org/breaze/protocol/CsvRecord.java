@@ -0,0 +1,210 @@
+package org.breaze.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Una línea de CSV vista sobre un búfer de bytes que se reutiliza (sin copiarla a String ni partirla en arreglos).
+// Los campos se separan a pedido y quedan como tramos inicio/fin dentro del búfer: separar la línea hasta la
+// columna pedida no crea objetos, y solo field() arma un String (y solo de esa columna).
+// Lee lo que escribe CsvIO.csv: la coma separa fuera de comillas, cada campo se recorta y si queda entre comillas
+// se le quitan y "" pasa a ser ". Las comas y comillas son ASCII, así que se buscan directamente en los bytes UTF-8.
+// Como en readLineAt, una línea termina en \n (sin el \r final).
+// No es thread-safe: cada recorrido usa su propia instancia.
+final class CsvRecord {
+    interface Visitor { void visit(CsvRecord record) throws IOException; }
+
+    private static final int SCAN_BUFFER = 64 * 1024;
+
+    private byte[] own = new byte[1024];  // búfer de readAt
+    private byte[] data = own;            // el de readAt o el del recorrido (scan)
+    private int start, end;               // línea actual: data[start, end)
+    private long offset;                  // offset en el archivo donde empieza la línea
+    private int[] bounds = new int[32];   // inicio y fin de cada campo ya separado
+    private int fields;                   // campos separados hasta ahora
+    private int next;                     // dónde sigue la separación (-1 = línea completa)
+
+    // Lee la línea que empieza en 'offset'; false si el offset está fuera del archivo
+    boolean readAt(FileChannel ch, long offset) throws IOException {
+        if (offset < 0 || offset >= ch.size()) return false;
+        int len = 0;
+        while (true) {
+            if (len == own.length) own = Arrays.copyOf(own, own.length * 2);
+            int n = ch.read(ByteBuffer.wrap(own, len, own.length - len), offset + len);
+            if (n <= 0) break;
+            int nl = indexOf(own, len, len + n, (byte) '\n');
+            len += n;
+            if (nl >= 0) { len = nl; break; }
+        }
+        set(own, 0, len, offset);
+        return true;
+    }
+
+    // Recorre las líneas de 'path' desde 'from' con un solo búfer; el visitor recibe siempre esta misma instancia
+    static void scan(Path path, long from, boolean skipHeader, Visitor visitor) throws IOException {
+        if (!Files.exists(path)) return;
+        CsvRecord record = new CsvRecord();
+        byte[] buf = new byte[SCAN_BUFFER];
+        int len = 0;              // bytes válidos en buf
+        long bufOffset = from;    // offset en el archivo de buf[0]
+        boolean skip = skipHeader;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long pos = from;
+            while (true) {
+                if (len == buf.length) buf = Arrays.copyOf(buf, buf.length * 2); //Una línea más larga que el búfer
+                int n = ch.read(ByteBuffer.wrap(buf, len, buf.length - len), pos);
+                if (n <= 0) break;
+                pos += n;
+                int lineStart = 0, searchFrom = len;
+                len += n;
+                int nl;
+                while ((nl = indexOf(buf, searchFrom, len, (byte) '\n')) >= 0) {
+                    if (!skip) {
+                        record.set(buf, lineStart, nl, bufOffset + lineStart);
+                        visitor.visit(record);
+                    }
+                    skip = false;
+                    lineStart = searchFrom = nl + 1;
+                }
+                // La línea incompleta pasa al principio del búfer
+                System.arraycopy(buf, lineStart, buf, 0, len - lineStart);
+                len -= lineStart;
+                bufOffset += lineStart;
+            }
+        }
+        if (!skip && len > 0) {
+            record.set(buf, 0, len, bufOffset);
+            visitor.visit(record);
+        }
+    }
+
+    private void set(byte[] data, int start, int end, long offset) {
+        if (end > start && data[end - 1] == '\r') end--;
+        this.data = data;
+        this.start = start;
+        this.end = end;
+        this.offset = offset;
+        this.fields = 0;
+        this.next = start;
+    }
+
+    long offset() { return offset; }
+
+    int length() { return end - start; }
+
+    // Cantidad de campos de la línea (la separa completa, sin decodificar nada)
+    int fieldCount() {
+        while (next >= 0) split();
+        return fields;
+    }
+
+    // Campo i sin comillas exteriores y con "" -> "; "" si la línea tiene menos campos
+    String field(int i) {
+        if (!has(i)) return "";
+        int s = trimStart(i), e = trimEnd(i, s);
+        if (e - s >= 2 && data[s] == '"' && data[e - 1] == '"') {
+            s++;
+            e--;
+            if (indexOf(data, s, e, (byte) '"') >= 0) return unescape(s, e);
+        }
+        return new String(data, s, e - s, StandardCharsets.UTF_8);
+    }
+
+    // Compara el campo i con un valor ya codificado en UTF-8 sin crear el String (solo si el campo trae "")
+    boolean fieldEquals(int i, byte[] utf8) {
+        if (!has(i)) return utf8.length == 0;
+        int s = trimStart(i), e = trimEnd(i, s);
+        if (e - s >= 2 && data[s] == '"' && data[e - 1] == '"') {
+            s++;
+            e--;
+            if (indexOf(data, s, e, (byte) '"') >= 0) return unescape(s, e).equals(new String(utf8, StandardCharsets.UTF_8));
+        }
+        return Arrays.equals(data, s, e, utf8, 0, utf8.length);
+    }
+
+    // Número entero del campo i sin pasar por String (offsets del índice lateral)
+    long longField(int i) {
+        if (!has(i)) throw new NumberFormatException("campo " + i + " ausente");
+        int s = trimStart(i), e = trimEnd(i, s);
+        if (s == e) throw new NumberFormatException("campo " + i + " vacío");
+        boolean negative = data[s] == '-';
+        if (negative && ++s == e) throw new NumberFormatException("-");
+        long v = 0;
+        for (int p = s; p < e; p++) {
+            int d = data[p] - '0';
+            if (d < 0 || d > 9 || v > (Long.MAX_VALUE - d) / 10) {
+                throw new NumberFormatException(new String(data, s, e - s, StandardCharsets.UTF_8));
+            }
+            v = v * 10 + d;
+        }
+        return negative ? -v : v;
+    }
+
+    // La línea completa tal como está en el archivo (sin fin de línea)
+    String line() {
+        return new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    // Copia los bytes de la línea sin decodificarlos (la compactación mueve filas tal cual)
+    void writeTo(OutputStream out) throws IOException {
+        out.write(data, start, end - start);
+    }
+
+    // Separa hasta tener el campo i
+    private boolean has(int i) {
+        while (fields <= i && next >= 0) split();
+        return i < fields;
+    }
+
+    // Un campo más: hasta la próxima coma fuera de comillas o el fin de la línea
+    private void split() {
+        int p = next;
+        boolean inQuotes = false;
+        while (p < end) {
+            byte b = data[p];
+            if (b == '"') inQuotes = !inQuotes;
+            else if (b == ',' && !inQuotes) break;
+            p++;
+        }
+        if (2 * fields + 2 > bounds.length) bounds = Arrays.copyOf(bounds, bounds.length * 2);
+        bounds[2 * fields] = next;
+        bounds[2 * fields + 1] = p;
+        fields++;
+        next = p < end ? p + 1 : -1;
+    }
+
+    // Recorte como String.trim(): fuera todo byte <= ' ' (en UTF-8 esos bytes son solo caracteres ASCII)
+    private int trimStart(int i) {
+        int s = bounds[2 * i], e = bounds[2 * i + 1];
+        while (s < e && (data[s] & 0xFF) <= ' ') s++;
+        return s;
+    }
+
+    private int trimEnd(int i, int s) {
+        int e = bounds[2 * i + 1];
+        while (e > s && (data[e - 1] & 0xFF) <= ' ') e--;
+        return e;
+    }
+
+    // Contenido entre comillas con "" -> " (de izquierda a derecha, como String.replace)
+    private String unescape(int s, int e) {
+        byte[] out = new byte[e - s];
+        int n = 0;
+        for (int p = s; p < e; p++) {
+            out[n++] = data[p];
+            if (data[p] == '"' && p + 1 < e && data[p + 1] == '"') p++;
+        }
+        return new String(out, 0, n, StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(byte[] a, int from, int to, byte b) {
+        for (int i = from; i < to; i++) if (a[i] == b) return i;
+        return -1;
+    }
+}
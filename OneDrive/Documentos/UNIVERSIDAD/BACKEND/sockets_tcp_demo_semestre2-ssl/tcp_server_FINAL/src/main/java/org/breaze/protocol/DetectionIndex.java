@@ -0,0 +1,212 @@
+package org.breaze.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Índice patient_id -> offsets de sus filas en detections.csv.
+// Se persiste en un archivo lateral (detections.csv.idx) con una línea "patient_id,offset,end" por detección,
+// así al arrancar se carga ese archivo en vez de recorrer todo detections.csv. Si el CSV creció sin pasar por
+// el índice solo se escanea la cola; si el lateral no existe o no coincide con el CSV se reconstruye completo.
+final class DetectionIndex {
+    private static final String SIDECAR_HEADER = "patient_id,offset,end";
+
+    private final Path detectionsCsv;
+    private final Path sidecar;
+    private final Map<String, Offsets> offsetsByPatient = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object(); // serializa CSV + lateral para que los offsets sean exactos
+    private long coveredBytes; // hasta dónde de detections.csv cubre el índice
+    private FileChannel sidecarOut; // lateral abierto en APPEND mientras viva el índice (se usa con writeLock)
+
+    private DetectionIndex(Path detectionsCsv) {
+        this.detectionsCsv = detectionsCsv;
+        this.sidecar = detectionsCsv.resolveSibling(detectionsCsv.getFileName() + ".idx");
+    }
+
+    // Carga el índice desde el lateral, completa la cola faltante o reconstruye si hace falta
+    static DetectionIndex open(Path detectionsCsv, int patientCol, int expectedCols) throws IOException {
+        DetectionIndex index = new DetectionIndex(detectionsCsv);
+        long csvSize = Files.exists(detectionsCsv) ? Files.size(detectionsCsv) : 0;
+        if (!index.loadSidecar(csvSize, patientCol, expectedCols)) {
+            index.offsetsByPatient.clear();
+            index.coveredBytes = 0;
+            Files.write(index.sidecar, List.of(SIDECAR_HEADER), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            System.out.println(" Reconstruyendo índice de detecciones: " + index.sidecar.toAbsolutePath());
+        }
+        if (index.coveredBytes < csvSize) index.indexTail(patientCol, expectedCols);
+        return index;
+    }
+
+    // Lee el lateral; false si falta o no corresponde al CSV actual
+    private boolean loadSidecar(long csvSize, int patientCol, int expectedCols) throws IOException {
+        if (!Files.exists(sidecar)) return false;
+        boolean[] first = { true }, valid = { true };
+        String[] lastPatient = { null };
+        long[] lastOffset = { -1 };
+        CsvRecord.scan(sidecar, 0, false, r -> {
+            if (first[0]) {
+                first[0] = false;
+                valid[0] = r.line().equals(SIDECAR_HEADER);
+                return;
+            }
+            if (!valid[0] || r.fieldCount() != 3) return; // línea cortada por un fallo: se ignora, la cola se re-escanea
+            long offset, end;
+            try {
+                offset = r.longField(1);
+                end = r.longField(2);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            String pid = r.field(0);
+            add(pid, offset);
+            coveredBytes = Math.max(coveredBytes, end);
+            if (offset > lastOffset[0]) { lastOffset[0] = offset; lastPatient[0] = pid; }
+        });
+        if (first[0] || !valid[0]) return false;
+        if (coveredBytes > csvSize) return false; // el CSV fue reemplazado o truncado
+        if (lastPatient[0] == null) return true;
+        // Verificación barata: la última entrada debe seguir apuntando a una fila cuyo patient_id sea exactamente ese
+        CsvRecord row = new CsvRecord();
+        try (FileChannel ch = openForRead()) {
+            return row.readAt(ch, lastOffset[0]) && row.fieldCount() == expectedCols
+                    && row.fieldEquals(patientCol, lastPatient[0].getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    // Indexa las filas que están en el CSV pero no en el lateral
+    private void indexTail(int patientCol, int expectedCols) throws IOException {
+        boolean fromStart = coveredBytes == 0;
+        List<String> entries = new ArrayList<>();
+        String[] pendingPid = { null };
+        long[] pendingOffset = { -1 };
+        CsvRecord.scan(detectionsCsv, coveredBytes, fromStart, r -> {
+            // La fila anterior termina donde empieza esta
+            if (pendingPid[0] != null) entries.add(entry(pendingPid[0], pendingOffset[0], r.offset()));
+            pendingPid[0] = null;
+            if (r.fieldCount() != expectedCols) return;
+            pendingPid[0] = r.field(patientCol); //Solo se decodifica el patient_id
+            pendingOffset[0] = r.offset();
+            add(pendingPid[0], r.offset());
+        });
+        coveredBytes = Math.max(coveredBytes, Files.size(detectionsCsv));
+        if (pendingPid[0] != null) entries.add(entry(pendingPid[0], pendingOffset[0], coveredBytes));
+        appendSidecar(entries);
+    }
+
+    // Escribe una detección en el CSV y registra su offset en memoria y en el lateral
+    void append(String patientId, String csvLine) throws IOException {
+        byte[] data = (csvLine + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        synchronized (writeLock) {
+            long offset = CsvIO.appendLineAt(detectionsCsv, csvLine);
+            coveredBytes = offset + data.length;
+            appendSidecar(List.of(entry(patientId, offset, coveredBytes)));
+            add(patientId, offset);
+        }
+    }
+
+    // Lote de detecciones ({patient_id, línea}): una sola escritura al CSV y una al lateral
+    void appendAll(List<String[]> rows) throws IOException {
+        if (rows.isEmpty()) return;
+        StringBuilder sb = new StringBuilder(rows.size() * 96);
+        for (String[] r : rows) sb.append(r[1]).append(System.lineSeparator());
+        byte[] data = sb.toString().getBytes(StandardCharsets.UTF_8);
+        synchronized (writeLock) {
+            long offset;
+            try (FileChannel ch = FileChannel.open(detectionsCsv,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                offset = ch.size();
+                ByteBuffer buf = ByteBuffer.wrap(data);
+                while (buf.hasRemaining()) ch.write(buf);
+            }
+            List<String> entries = new ArrayList<>(rows.size());
+            for (String[] r : rows) {
+                long end = offset + (r[1] + System.lineSeparator()).getBytes(StandardCharsets.UTF_8).length;
+                entries.add(entry(r[0], offset, end));
+                add(r[0], offset);
+                offset = end;
+            }
+            coveredBytes = offset;
+            appendSidecar(entries);
+        }
+    }
+
+    // Filas de detección del paciente, leídas directamente por offset sobre un mismo CsvRecord
+    void forEachRow(String patientId, CsvRecord.Visitor visitor) throws IOException {
+        if (!offsetsByPatient.containsKey(patientId)) return;
+        try (FileChannel ch = openForRead()) {
+            forEachRow(patientId, ch, visitor);
+        }
+    }
+
+    // Igual que forEachRow(String, Visitor) reutilizando un canal abierto con openForRead (lecturas en lote)
+    void forEachRow(String patientId, FileChannel ch, CsvRecord.Visitor visitor) throws IOException {
+        Offsets offsets = offsetsByPatient.get(patientId);
+        if (offsets == null) return;
+        int n = offsets.size; //Primero el tamaño: el arreglo que se lee después ya tiene esas posiciones escritas
+        long[] values = offsets.values;
+        CsvRecord row = new CsvRecord();
+        for (int i = 0; i < n; i++) {
+            if (row.readAt(ch, values[i])) visitor.visit(row);
+        }
+    }
+
+    FileChannel openForRead() throws IOException {
+        return FileChannel.open(detectionsCsv, StandardOpenOption.READ);
+    }
+
+    int patientCount() { return offsetsByPatient.size(); }
+
+    private void add(String patientId, long offset) {
+        offsetsByPatient.computeIfAbsent(patientId, k -> new Offsets()).add(offset);
+    }
+
+    // Offsets de un paciente en un arreglo con capacidad de sobra que crece al doble: agregar una detección no copia
+    // todo el arreglo cada vez. Los lectores no toman lock: leen size y después values (ver forEachRow).
+    private static final class Offsets {
+        volatile long[] values = new long[2];
+        volatile int size;
+
+        synchronized void add(long offset) {
+            long[] v = values;
+            if (size == v.length) {
+                v = Arrays.copyOf(v, v.length * 2);
+                v[size] = offset;
+                values = v;
+            } else {
+                v[size] = offset;
+            }
+            size++; //Publica la posición nueva a los lectores
+        }
+    }
+
+    // Todas las entradas en una sola escritura sobre el canal que queda abierto
+    private void appendSidecar(List<String> entries) throws IOException {
+        if (entries.isEmpty()) return;
+        StringBuilder sb = new StringBuilder(entries.size() * 32);
+        for (String e : entries) sb.append(e).append(System.lineSeparator());
+        ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        synchronized (writeLock) {
+            if (sidecarOut == null) {
+                sidecarOut = FileChannel.open(sidecar, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            while (buf.hasRemaining()) sidecarOut.write(buf);
+        }
+    }
+
+    // Cierra el lateral (al apagar el protocolo); una escritura posterior lo vuelve a abrir
+    void close() {
+        synchronized (writeLock) {
+            try { if (sidecarOut != null) sidecarOut.close(); } catch (IOException ignored) {}
+            sidecarOut = null;
+        }
+    }
+
+    private static String entry(String patientId, long offset, long end) {
+        return CsvIO.csv(patientId) + "," + offset + "," + end;
+    }
+}
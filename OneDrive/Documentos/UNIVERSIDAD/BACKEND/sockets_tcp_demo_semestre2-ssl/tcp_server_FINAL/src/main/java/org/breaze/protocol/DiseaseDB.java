@@ -0,0 +1,185 @@
+package org.breaze.protocol;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+// Foto inmutable de catalog.csv + signatures.csv con su autómata ya compilado.
+// Se arma completa antes de publicarse y después nadie la modifica, así que se lee sin locks;
+// una recarga crea otra instancia y el protocolo cambia la referencia (volatile) de una vez.
+final class DiseaseDB {
+    // Mapas precargados desde CSV
+    //diseaseId -> secuencia FASTA de referencia (si hay archivo), mapeada desde el archivo cuando se puede
+    private final Map<String, BaseSequence> catalog = new HashMap<>();
+    // diseaseNames: diseaseId -> nombre
+    private final Map<String, String> diseaseNames = new HashMap<>();
+    // diseaseSeverity: diseaseId -> severidad numérica
+    private final Map<String, Integer> diseaseSeverity = new HashMap<>();
+    // signatures: patrón -> diseaseId
+    private final LinkedHashMap<String, String> signatures = new LinkedHashMap<>();
+    // Firmas aproximadas: patrón -> errores permitidos y tipo de error (las que no están aquí son exactas)
+    private final Map<String, Integer> maxMismatches = new HashMap<>();
+    private final Map<String, ApproximateMatcher.Mode> matchModes = new HashMap<>();
+    // signatureMatcher: autómata Aho-Corasick con todas las firmas
+    private final SignatureMatcher signatureMatcher;
+    // kmerIndex: k-mers de las secuencias de referencia del catálogo (SCORE_PATIENT)
+    private final KmerIndex kmerIndex;
+    // Errores de lectura: al arrancar solo se informan, en una recarga hacen que se conserve la foto anterior
+    private final List<String> loadErrors = new ArrayList<>();
+
+    // Al construir, carga catálogo de enfermedades y firmas
+    DiseaseDB(Path catalogCsv, Path signaturesCsv) {
+        loadCatalog(catalogCsv);
+        loadSignatures(signaturesCsv);
+        List<String> patterns = new ArrayList<>(signatures.keySet());
+        int[] errors = new int[patterns.size()];
+        ApproximateMatcher.Mode[] modes = new ApproximateMatcher.Mode[patterns.size()];
+        for (int id = 0; id < patterns.size(); id++) {
+            errors[id] = maxMismatches.getOrDefault(patterns.get(id), 0);
+            modes[id] = matchModes.get(patterns.get(id));
+        }
+        signatureMatcher = SignatureMatcher.compile(patterns, errors, modes);
+        kmerIndex = KmerIndex.build(catalog);
+        if (kmerIndex.references() > 0) {
+            System.out.println(" Índice k-mer (k=" + KmerIndex.K + "): " + kmerIndex.references()
+                    + " referencias, " + kmerIndex.distinctKmers() + " k-mers distintos");
+        }
+    }
+
+    // Getters de mapas precargados
+    Map<String, BaseSequence> getCatalog() { return catalog; }
+    Map<String, String> getDiseaseNames() { return diseaseNames; }
+    Map<String, Integer> getDiseaseSeverity() { return diseaseSeverity; }
+    LinkedHashMap<String, String> getSignatures() { return signatures; }
+    SignatureMatcher getSignatureMatcher() { return signatureMatcher; }
+    KmerIndex getKmerIndex() { return kmerIndex; }
+    List<String> getLoadErrors() { return loadErrors; }
+
+    // Nombre para mostrar; si no hay nombre se usa el id
+    String diseaseName(String diseaseId) {
+        return Optional.ofNullable(diseaseNames.get(diseaseId)).filter(s -> !s.isBlank()).orElse(diseaseId);
+    }
+
+    // Todas las firmas presentes en la secuencia como hits {diseaseId, pattern, diseaseName}, de mayor a menor severidad
+    List<String[]> detect(PackedSequence cleaned) {
+        if (cleaned.isEmpty() || signatures.isEmpty()) return new ArrayList<>();
+        // Una sola pasada sobre la secuencia
+        return hits(signatureMatcher.scan(cleaned));
+    }
+
+    //Convierte los ids de firmas encontradas (de este mismo autómata) en hits, ordenados por severidad
+    List<String[]> hits(BitSet found) {
+        List<String[]> hits = new ArrayList<>();
+        //Los ids salen en el orden de signatures.csv, el sort estable conserva ese orden entre iguales
+        for (int id = found.nextSetBit(0); id >= 0; id = found.nextSetBit(id + 1)) {
+            String pattern = signatureMatcher.pattern(id);
+            String dId = signatures.get(pattern).toUpperCase(Locale.ROOT);
+            hits.add(new String[]{ dId, pattern, diseaseName(dId) });
+        }
+        hits.sort((a, b) -> Integer.compare(
+                diseaseSeverity.getOrDefault(b[0], 0),
+                diseaseSeverity.getOrDefault(a[0], 0)
+        ));
+        return hits;
+    }
+
+    // Carga catalog.csv: nombre, severidad y secuencia de referencia
+    private void loadCatalog(Path catalogCsv) {
+        try (BufferedReader br = Files.newBufferedReader(catalogCsv, StandardCharsets.UTF_8)) {
+            br.readLine();
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;        // ignora líneas en blanco
+                String[] parts = line.split(",");
+                if (parts.length < 3) continue;             // requiere al menos ID, nombre y severidad
+
+                String diseaseId   = parts[0].trim().toUpperCase(Locale.ROOT);
+                String diseaseName = parts[1].trim();
+                String severityStr = parts[2].trim();
+                String fastaFile   = (parts.length >= 4) ? parts[3].trim() : "";
+
+                int sev = 0;
+                try { sev = Integer.parseInt(severityStr); } catch (NumberFormatException ignored) {}
+                //mapas de nombre y severidad
+                diseaseNames.put(diseaseId, diseaseName);
+                diseaseSeverity.put(diseaseId, sev);
+
+                // Si hay ruta de FASTA de referencia, intenta leer y almacenar la secuencia
+                if (!fastaFile.isEmpty()) {
+                    Path ref = catalogCsv.resolveSibling(fastaFile).normalize(); // relativa a la carpeta del catálogo
+                    if (Files.exists(ref)) {
+                        catalog.put(diseaseId, FastaIO.openFasta(ref, true));
+                    } else {
+                        System.out.println("ℹ Referencia no encontrada para " + diseaseId + ": " + ref.toAbsolutePath());
+                    }
+                }
+                System.out.println(" Cargada enfermedad: " + diseaseName + " (" + diseaseId + "), severity=" + sev);
+            }
+        } catch (IOException e) {
+            System.out.println(" No pude cargar catalog.csv: " + e.getMessage());
+            loadErrors.add("catalog: " + e.getMessage());
+        }
+    }
+
+    // Carga signatures.csv: patrón (clave) -> diseaseId (valor)
+    // Columnas opcionales: max_mismatches (0 = exacta) y mode (hamming = solo sustituciones, edit = también
+    // inserciones y borrados). En las aproximadas la N coincide con cualquier base.
+    private void loadSignatures(Path signaturesCsv) {
+        if (!Files.exists(signaturesCsv)) {
+            System.out.println(" No hay signatures.csv; no se hará diagnóstico por firmas.");
+            return;
+        }
+        try (BufferedReader br = Files.newBufferedReader(signaturesCsv, StandardCharsets.UTF_8)) {
+            br.readLine();
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;  // ignora líneas en blanco
+                String[] parts = line.split(",");
+                if (parts.length < 2) continue;       // requiere patrón y diseaseId
+
+                // Se almacenan en mayúsculas para comparaciones consistentes
+                String pattern   = parts[0].trim().toUpperCase(Locale.ROOT);
+                String diseaseId = parts[1].trim().toUpperCase(Locale.ROOT);
+
+                if (!pattern.isEmpty() && !diseaseId.isEmpty()) {
+                    signatures.put(pattern, diseaseId);
+                    int k = approximateErrors(pattern, parts.length >= 3 ? parts[2].trim() : "");
+                    if (k > 0) {
+                        ApproximateMatcher.Mode mode = parts.length >= 4 && parts[3].trim().equalsIgnoreCase("edit")
+                                ? ApproximateMatcher.Mode.EDIT : ApproximateMatcher.Mode.HAMMING;
+                        maxMismatches.put(pattern, k);
+                        matchModes.put(pattern, mode);
+                        System.out.println(" Firma cargada: " + pattern + " → " + diseaseId
+                                + " (hasta " + k + " errores, " + mode.name().toLowerCase(Locale.ROOT) + ")");
+                    } else {
+                        maxMismatches.remove(pattern); // una fila repetida sin errores vuelve a dejarla exacta
+                        matchModes.remove(pattern);
+                        System.out.println(" Firma cargada: " + pattern + " → " + diseaseId);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(" No pude cargar signatures.csv: " + e.getMessage());
+            loadErrors.add("signatures: " + e.getMessage());
+        }
+    }
+
+    // Errores permitidos para la firma (0 = exacta). Se limita a largo-1 para que no coincida en todas partes.
+    private static int approximateErrors(String pattern, String raw) {
+        if (raw.isEmpty()) return 0;
+        int k;
+        try { k = Integer.parseInt(raw); } catch (NumberFormatException e) {
+            System.out.println(" max_mismatches inválido para " + pattern + ": " + raw + "; se busca exacta.");
+            return 0;
+        }
+        if (k <= 0) return 0;
+        if (pattern.length() > ApproximateMatcher.MAX_LENGTH) {
+            System.out.println(" Firma de más de " + ApproximateMatcher.MAX_LENGTH + " bases: " + pattern + " se busca exacta.");
+            return 0;
+        }
+        return Math.min(k, pattern.length() - 1);
+    }
+}
@@ -0,0 +1,83 @@
+package org.breaze.protocol;
+
+import org.breaze.logging.AuditLogger;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Vigila catalog.csv y signatures.csv y dispara la recarga de la base de enfermedades cuando cambian.
+// Corre en su propio hilo daemon: el armado de la foto nueva nunca ocurre en el hilo de un pedido.
+// Los editores suelen guardar en varios pasos (truncar, escribir, renombrar), así que se espera a que
+// los eventos se calmen antes de recargar.
+final class DiseaseDbWatcher {
+    static final long QUIET_MS = 500; // sin eventos durante este tiempo = archivo terminado de escribir
+
+    private final Map<Path, Set<Path>> watched = new HashMap<>(); // carpeta -> nombres de archivo vigilados
+    private final Runnable reload;
+    private WatchService watchService;
+    private Thread thread;
+
+    DiseaseDbWatcher(List<Path> files, Runnable reload) {
+        for (Path f : files) {
+            Path abs = f.toAbsolutePath().normalize();
+            watched.computeIfAbsent(abs.getParent(), d -> new HashSet<>()).add(abs.getFileName());
+        }
+        this.reload = reload;
+    }
+
+    synchronized void start() {
+        if (thread != null) return;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            for (Path dir : watched.keySet()) {
+                dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+        } catch (IOException e) {
+            System.out.println("⚠️ No se vigilarán catalog.csv/signatures.csv (usar RELOAD_DISEASE_DB): " + e.getMessage());
+            AuditLogger.warn("DISEASE_DB_WATCH_DISABLED", Map.of("error", String.valueOf(e.getMessage())));
+            return;
+        }
+        WatchService ws = watchService;
+        thread = new Thread(() -> run(ws), "disease-db-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop() {
+        if (thread != null) thread.interrupt();
+        try { if (watchService != null) watchService.close(); } catch (IOException ignored) {}
+        thread = null;
+        watchService = null;
+    }
+
+    private void run(WatchService ws) {
+        try {
+            while (true) {
+                if (!relevant(ws.take())) continue;
+                WatchKey more; // se siguen juntando eventos hasta que haya QUIET_MS de silencio
+                while ((more = ws.poll(QUIET_MS, TimeUnit.MILLISECONDS)) != null) relevant(more);
+                try {
+                    reload.run();
+                } catch (RuntimeException e) {
+                    AuditLogger.error("DISEASE_DB_RELOAD_ERROR", Map.of("error", String.valueOf(e.getMessage())));
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stop()
+        }
+    }
+
+    // Consume los eventos de la clave y dice si alguno toca un archivo vigilado
+    private boolean relevant(WatchKey key) {
+        Set<Path> names = watched.getOrDefault((Path) key.watchable(), Set.of());
+        boolean hit = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.context() instanceof Path name && names.contains(name)) hit = true;
+        }
+        key.reset();
+        return hit;
+    }
+}
@@ -0,0 +1,78 @@
+package org.breaze.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+class FastaIO {
+    // Asegura existencia de directorio para FASTA
+    static void ensureDir(Path dir) {
+        try { Files.createDirectories(dir); } catch (IOException e) { throw new RuntimeException(e); }
+    }
+
+    // Lee un FASTA en bytes crudos y empaqueta sus bases (omite headers >); descarta lo que no sea ACGTN
+    static PackedSequence readPackedFasta(Path file) throws IOException {
+        PackedSequence.Builder b = new PackedSequence.Builder((int) Math.min(Integer.MAX_VALUE, Files.size(file)));
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            byte[] buf = new byte[64 * 1024];
+            boolean lineStart = true, header = false;
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    byte c = buf[i];
+                    if (c == '\n') { lineStart = true; header = false; continue; }
+                    if (lineStart && c == '>') header = true;
+                    lineStart = false;
+                    if (!header) b.append(PackedSequence.codeOf(c & 0xFF));
+                }
+            }
+        }
+        return b.build();
+    }
+
+    // Escribe un FASTA de texto (header >name y la secuencia en una línea) en un temporal y lo renombra;
+    // devuelve el tamaño en bytes
+    static long writeFasta(Path file, String name, BaseSequence sequence) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        byte[] eol = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+        byte[] buf = new byte[8192];
+        long bytes;
+        try (OutputStream out = Files.newOutputStream(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            byte[] header = (">" + name).getBytes(StandardCharsets.UTF_8);
+            out.write(header);
+            out.write(eol);
+            BaseSequence.Cursor cursor = sequence.cursor(0);
+            int n = 0;
+            for (int c; (c = cursor.next()) >= 0; ) {
+                buf[n++] = (byte) "ACGTN".charAt(c);
+                if (n == buf.length) { out.write(buf, 0, n); n = 0; }
+            }
+            out.write(buf, 0, n);
+            out.write(eol);
+            bytes = header.length + 2L * eol.length + sequence.baseCount();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        return bytes;
+    }
+
+    // Abre la secuencia de un paciente sin cargarla: .pseq (blobs del FastaStore) o FASTA de texto (archivos anteriores)
+    static BaseSequence openPatientSequence(Path file) throws IOException {
+        return PackedSequenceFile.isPacked(file) ? PackedSequenceFile.open(file) : openFasta(file, false);
+    }
+
+    // Abre un FASTA sin cargarlo: mapeado en memoria con su índice .fai (guardado junto al archivo si saveIndex).
+    // Si las líneas no tienen largo uniforme no se puede indexar y se lee empaquetado como antes.
+    static BaseSequence openFasta(Path file, boolean saveIndex) throws IOException {
+        MappedFasta mapped = MappedFasta.open(file, saveIndex);
+        if (mapped != null) return mapped;
+        System.out.println("ℹ FASTA con líneas irregulares, se carga en memoria: " + file);
+        return readPackedFasta(file);
+    }
+}
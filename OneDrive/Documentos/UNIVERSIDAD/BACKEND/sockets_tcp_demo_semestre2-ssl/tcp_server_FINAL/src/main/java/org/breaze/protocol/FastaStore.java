@@ -0,0 +1,242 @@
+package org.breaze.protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Stream;
+
+// FASTA de pacientes guardados por contenido: FASTAS/blobs/<2 primeros hex>/<sha256>.pseq (2 bits por base,
+// ver PackedSequenceFile; los .fasta de texto guardados antes se siguen leyendo).
+// Pacientes con la misma secuencia comparten el archivo; en patiens.csv fasta_path apunta al blob.
+// El nombre del blob y sequence_sha256 son el SHA-256 de la secuencia canónica (una letra ACGTN por base, sin header
+// ni saltos de línea) y sequence_bases su largo. checksum_fasta y file_size_bytes siguen describiendo el FASTA de
+// texto del paciente, como antes del almacén: ">patient_id", salto de línea, la secuencia y salto final (lo mismo
+// que entrega EXPORT_FASTA). Todo se calcula mientras se escribe (el archivo no se vuelve a leer).
+// Cada archivo cuenta cuántas filas vigentes lo usan y se borra cuando ya ninguna lo hace.
+// Los lectores (SCORE_PATIENT, GET_SEQUENCE_RANGE, EXPORT_FASTA, SEARCH_PATTERN) toman el archivo con pin() mientras
+// lo recorren: si la última fila deja de usarlo en ese rato, el borrado espera al unpin(). Un borrado que falla (en
+// Windows no se puede borrar un archivo que sigue mapeado) queda pendiente y se reintenta en el próximo release/unpin.
+// Las cuentas no se guardan: al arrancar se rehacen desde las filas vigentes de patiens.csv.
+final class FastaStore {
+    // sequenceSha256 y bases son del blob (compartido); fastaChecksum y fastaBytes, del FASTA del paciente que lo guardó
+    record Blob(Path path, long bases, String sequenceSha256, String fastaChecksum, long fastaBytes) {}
+
+    private static final byte[] LETTERS = "ACGTN".getBytes(StandardCharsets.US_ASCII);
+
+    private final Path root;     // FASTAS absoluta (también tiene los patient_<id>.fasta de antes del almacén)
+    private final Path blobDir;  // FASTAS/blobs, relativa como la base del servidor (así queda en fasta_path)
+    private final Map<String, Integer> refs = new HashMap<>(); // ruta normalizada -> filas vigentes que la usan
+    private final Map<String, Integer> pins = new HashMap<>(); // ruta normalizada -> lectores que la están recorriendo
+    private final Set<String> pendingDeletes = new HashSet<>(); // sin filas que los usen, todavía sin borrar
+
+    FastaStore(Path dir) {
+        this.root = dir.toAbsolutePath().normalize();
+        this.blobDir = dir.resolve("blobs");
+        FastaIO.ensureDir(blobDir);
+    }
+
+    // Cuenta los usos a partir de los fasta_path vigentes y borra los blobs que nadie usa
+    // (temporales de subidas cortadas o un blob movido justo antes de caerse sin escribir la fila)
+    synchronized void rebuild(Collection<String> fastaPaths) throws IOException {
+        refs.clear();
+        for (String p : fastaPaths) {
+            if (p != null && !p.isBlank()) refs.merge(key(p), 1, Integer::sum);
+        }
+        int removed = 0;
+        try (Stream<Path> files = Files.walk(blobDir)) {
+            for (Path f : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                if (!refs.containsKey(key(f.toString()))) {
+                    Files.deleteIfExists(f);
+                    removed++;
+                }
+            }
+        }
+        System.out.println(" FASTA en uso: " + refs.size() + (removed > 0 ? ", huérfanos borrados: " + removed : ""));
+    }
+
+    // Temporal donde escribir un FASTA antes de saber su hash (las subidas por partes escriben aquí)
+    Path newTempFile(String tag) {
+        return blobDir.resolve(tag + "." + UUID.randomUUID() + ".part");
+    }
+
+    // Escribe la secuencia en .pseq calculando los SHA-256 en la misma pasada y la guarda
+    Blob put(String patientId, PackedSequence sequence) throws IOException {
+        Path tmp = newTempFile("put");
+        SequenceDigest digest = new SequenceDigest(patientId);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))) {
+            PackedSequenceFile.Writer writer = new PackedSequenceFile.Writer(out);
+            for (int i = 0; i < sequence.length(); i++) {
+                int code = sequence.code(i);
+                writer.append(code);
+                digest.append(code);
+            }
+            writer.finish();
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        return adopt(tmp, digest);
+    }
+
+    // Mueve un temporal ya escrito a su blob (o lo descarta si ese contenido ya estaba) y suma un uso.
+    // Quien lo llama debe escribir la fila que lo usa o devolverlo con release().
+    synchronized Blob adopt(Path tmp, SequenceDigest digest) throws IOException {
+        String checksum = digest.finish();
+        Path target = blobDir.resolve(checksum.substring(0, 2)).resolve(checksum + PackedSequenceFile.EXTENSION);
+        if (Files.exists(target)) {
+            Files.deleteIfExists(tmp); // mismo contenido: se comparte el archivo existente
+        } else {
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target);
+            }
+        }
+        String k = key(target.toString());
+        refs.merge(k, 1, Integer::sum);
+        pendingDeletes.remove(k); //Volvió a usarse antes de borrarlo
+        return new Blob(target, digest.bases(), checksum, digest.fastaChecksum(), digest.fastaBytes());
+    }
+
+    // Una fila dejó de usar este fasta_path; sin usos se borra (solo dentro de FASTAS)
+    synchronized void release(String fastaPath) {
+        if (fastaPath == null || fastaPath.isBlank()) return;
+        String k = key(fastaPath);
+        Integer n = refs.get(k);
+        if (n == null) return;
+        if (n > 1) {
+            refs.put(k, n - 1);
+            return;
+        }
+        refs.remove(k);
+        if (Paths.get(k).startsWith(root)) pendingDeletes.add(k);
+        sweep();
+    }
+
+    // Un lector va a recorrer este fasta_path; false si ya no existe (no queda tomado)
+    synchronized boolean pin(String fastaPath) {
+        if (fastaPath == null || fastaPath.isBlank()) return false;
+        String k = key(fastaPath);
+        if (!Files.exists(Paths.get(k))) return false;
+        pins.merge(k, 1, Integer::sum);
+        return true;
+    }
+
+    // El lector terminó; si el archivo quedó sin uso mientras tanto, ahora se borra
+    synchronized void unpin(String fastaPath) {
+        if (fastaPath == null || fastaPath.isBlank()) return;
+        String k = key(fastaPath);
+        Integer n = pins.get(k);
+        if (n == null) return;
+        if (n > 1) pins.put(k, n - 1);
+        else pins.remove(k);
+        sweep();
+    }
+
+    // Borra los archivos pendientes que nadie está leyendo; los que fallan se reintentan la próxima vez
+    private void sweep() {
+        for (Iterator<String> it = pendingDeletes.iterator(); it.hasNext(); ) {
+            String k = it.next();
+            if (pins.containsKey(k)) continue;
+            Path file = Paths.get(k);
+            try {
+                Files.deleteIfExists(file);
+                it.remove();
+                if (file.getParent().startsWith(root.resolve("blobs"))) {
+                    try { Files.deleteIfExists(file.getParent()); } catch (DirectoryNotEmptyException ignored) {} //Subcarpeta <ab> vacía
+                }
+            } catch (IOException e) {
+                System.out.println("⚠️ No se pudo borrar el FASTA sin uso " + file + " (se reintenta): " + e.getMessage());
+            }
+        }
+    }
+
+    synchronized int references(String fastaPath) {
+        return refs.getOrDefault(key(fastaPath), 0);
+    }
+
+    // Los dos SHA-256 de una secuencia ya armada (los mismos que calcula put para ese paciente)
+    static SequenceDigest digest(String patientId, BaseSequence sequence) {
+        SequenceDigest digest = new SequenceDigest(patientId);
+        BaseSequence.Cursor cursor = sequence.cursor(0);
+        for (int c; (c = cursor.next()) >= 0; ) digest.append(c);
+        digest.finish();
+        return digest;
+    }
+
+    // SHA-256 de la secuencia canónica que se va recibiendo de a una base (códigos 0..4 de PackedSequence) y, con los
+    // mismos bytes, el del FASTA de texto del paciente (header y saltos de línea alrededor)
+    static final class SequenceDigest {
+        private static final byte[] EOL = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+        private final MessageDigest md = sha256();
+        private final MessageDigest fastaMd = sha256();
+        private final long headerBytes;
+        private final byte[] buf = new byte[8192];
+        private int n;
+        private long bases;
+        private String checksum, fastaChecksum;
+
+        SequenceDigest(String patientId) {
+            byte[] header = (">" + patientId).getBytes(StandardCharsets.UTF_8);
+            fastaMd.update(header);
+            fastaMd.update(EOL);
+            headerBytes = header.length + EOL.length;
+        }
+
+        void append(int code) {
+            buf[n++] = LETTERS[code];
+            bases++;
+            if (n == buf.length) flush();
+        }
+
+        long bases() { return bases; }
+
+        // SHA-256 de la secuencia canónica (nombre del blob); se puede llamar más de una vez
+        String finish() {
+            if (checksum == null) {
+                flush();
+                checksum = hex(md.digest());
+                fastaMd.update(EOL);
+                fastaChecksum = hex(fastaMd.digest());
+            }
+            return checksum;
+        }
+
+        // checksum_fasta y file_size_bytes: el FASTA de texto del paciente; válidos después de finish()
+        String fastaChecksum() { return fastaChecksum; }
+
+        long fastaBytes() { return headerBytes + bases + EOL.length; }
+
+        private void flush() {
+            md.update(buf, 0, n);
+            fastaMd.update(buf, 0, n);
+            n = 0;
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // toda JVM trae SHA-256
+        }
+    }
+
+    static String hex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+    private static String key(String path) {
+        return Paths.get(path).toAbsolutePath().normalize().toString();
+    }
+}
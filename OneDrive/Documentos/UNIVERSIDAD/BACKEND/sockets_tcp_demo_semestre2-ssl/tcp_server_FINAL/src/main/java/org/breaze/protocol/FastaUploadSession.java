@@ -0,0 +1,101 @@
+package org.breaze.protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.util.BitSet;
+
+// Subida de un FASTA por partes (FASTA_BEGIN / FASTA_CHUNK / FASTA_END).
+// Cada fragmento se limpia (sin las líneas de header '>', como readPackedFasta), se escribe al archivo temporal (.pseq empaquetado), se agrega al SHA-256 de la
+// secuencia canónica y al del FASTA del paciente (ver FastaStore) y pasa
+// por el autómata de firmas en el mismo recorrido. El estado del autómata se conserva entre fragmentos, así que una firma
+// partida entre dos fragmentos también se detecta; lo mismo con un header partido. La memoria usada no depende del tamaño del genoma.
+// Al terminar, el temporal pasa al FastaStore con el hash ya calculado.
+final class FastaUploadSession {
+    private final String streamId;
+    private final String patientId;
+    private final Path partFile;     // temporal en FASTAS/blobs mientras se recibe
+    private final OutputStream out;
+    private final FastaStore.SequenceDigest digest;
+    private final PackedSequenceFile.Writer writer;
+    private final DiseaseDB diseaseDb; // foto de firmas con la que se abrió el stream (sobrevive a una recarga)
+    private final SignatureMatcher.Scanner scanner; // autómata + firmas aproximadas, con estado entre fragmentos
+    private boolean lineStart = true; // el próximo carácter empieza una línea (entre fragmentos también)
+    private boolean header;           // dentro de una línea '>' hasta el próximo '\n'
+    private boolean closed;
+    private volatile long lastTouched = System.currentTimeMillis();
+
+    private FastaUploadSession(String streamId, String patientId, Path partFile,
+                               OutputStream out, DiseaseDB diseaseDb) throws IOException {
+        this.streamId = streamId;
+        this.patientId = patientId;
+        this.digest = new FastaStore.SequenceDigest(patientId);
+        this.partFile = partFile;
+        this.out = out;
+        this.writer = new PackedSequenceFile.Writer(out);
+        this.diseaseDb = diseaseDb;
+        this.scanner = diseaseDb.getSignatureMatcher().scanner();
+    }
+
+    // Abre el archivo temporal; el hash se calcula sobre las bases a medida que se escriben
+    static FastaUploadSession open(String streamId, String patientId, Path part, DiseaseDB diseaseDb) throws Exception {
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(part,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+        return new FastaUploadSession(streamId, patientId, part, out, diseaseDb);
+    }
+
+    String streamId() { return streamId; }
+    String patientId() { return patientId; }
+    DiseaseDB diseaseDb() { return diseaseDb; }
+    synchronized long bases() { return writer.bases(); }
+    long lastTouched() { return lastTouched; }
+
+    // Limpia el fragmento (solo ACGTN fuera de los headers), lo escribe/hashea y avanza la detección de firmas.
+    // Un header puede empezar en un fragmento y terminar en otro: el estado de línea se conserva entre llamadas
+    synchronized void append(CharSequence chunk) throws IOException {
+        ensureOpen();
+        lastTouched = System.currentTimeMillis();
+        for (int i = 0; i < chunk.length(); i++) {
+            char c = chunk.charAt(i);
+            if (c == '\n') { lineStart = true; header = false; continue; }
+            if (lineStart && c == '>') header = true;
+            lineStart = false;
+            if (header) continue;
+            int code = PackedSequence.codeOf(c);
+            if (code < 0) continue;
+            writer.append(code);
+            digest.append(code);
+            scanner.step(code);
+        }
+    }
+
+    // Cierra el temporal y lo entrega al almacén (que suma un uso al blob)
+    synchronized FastaStore.Blob finish(FastaStore store) throws IOException {
+        ensureOpen();
+        closed = true;
+        try {
+            writer.finish();
+            out.close();
+            return store.adopt(partFile, digest);
+        } catch (IOException e) {
+            try { out.close(); } catch (IOException ignored) {}
+            Files.deleteIfExists(partFile);
+            throw e;
+        }
+    }
+
+    // Descarta lo recibido y borra el temporal
+    synchronized void abort() {
+        if (closed) return;
+        closed = true;
+        try { out.close(); } catch (IOException ignored) {}
+        try { Files.deleteIfExists(partFile); } catch (IOException ignored) {}
+    }
+
+    BitSet found() { return scanner.found(); }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("stream cerrado: " + streamId);
+    }
+}
@@ -0,0 +1,175 @@
+package org.breaze.protocol;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+// Índice de k-mers de las secuencias de referencia del catálogo (columna fasta_file de catalog.csv).
+// Cada k-mer distinto recibe un id; para cada id se guarda qué enfermedades lo tienen (formato CSR).
+// Se usan k-mers canónicos (el menor entre el k-mer y su reverso complementario), así la hebra da igual,
+// y se saltan los que contienen N. Se arma una vez por foto de DiseaseDB y después solo se lee.
+// Las secuencias se recorren con cursores, así las referencias mapeadas (MappedFasta) no se copian al heap.
+final class KmerIndex {
+    static final int K = 21;
+    private static final long MASK = (1L << (2 * K)) - 1;
+    private static final int MIN_CHUNK = 1 << 20; // bases por tarea al puntuar en paralelo
+
+    static final KmerIndex EMPTY = new KmerIndex(new String[0], new int[0], new long[1], new int[1], 0, new int[1], new int[0]);
+
+    private final String[] diseaseIds;     // índice de enfermedad -> diseaseId
+    private final int[] referenceKmers;    // índice de enfermedad -> k-mers distintos de su referencia
+
+    // Tabla hash abierta k-mer -> id (claves en keys, -1 = vacío)
+    private final long[] keys;
+    private final int[] ids;
+    private final int size;
+
+    private final int[] postingStart;      // id -> inicio en postings (id+1 -> fin)
+    private final int[] postings;          // índices de enfermedad
+
+    private KmerIndex(String[] diseaseIds, int[] referenceKmers, long[] keys, int[] ids, int size,
+                      int[] postingStart, int[] postings) {
+        this.diseaseIds = diseaseIds;
+        this.referenceKmers = referenceKmers;
+        this.keys = keys;
+        this.ids = ids;
+        this.size = size;
+        this.postingStart = postingStart;
+        this.postings = postings;
+    }
+
+    static KmerIndex build(Map<String, ? extends BaseSequence> references) {
+        if (references.isEmpty()) return EMPTY;
+        String[] diseases = references.keySet().stream().sorted().toArray(String[]::new);
+        int capacity = 16;
+        long total = 0;
+        for (BaseSequence s : references.values()) total += Math.max(0, s.baseCount() - K + 1);
+        while (capacity < total * 2 && capacity < (1 << 30)) capacity <<= 1;
+
+        long[] keys = new long[capacity];
+        Arrays.fill(keys, -1L);
+        int[] ids = new int[capacity];
+        int[] lastDisease = new int[16];   // id -> última enfermedad que lo registró (evita duplicados)
+        int[] pairId = new int[16], pairDisease = new int[16];
+        int pairs = 0, size = 0;
+        int[] refKmers = new int[diseases.length];
+
+        for (int d = 0; d < diseases.length; d++) {
+            BaseSequence.Cursor cursor = references.get(diseases[d]).cursor(0);
+            long fw = 0, rc = 0;
+            int valid = 0;
+            for (int c; (c = cursor.next()) >= 0; ) {
+                if (c == 4) { valid = 0; continue; }
+                fw = ((fw << 2) | c) & MASK;
+                rc = (rc >>> 2) | ((long) (3 - c) << (2 * (K - 1)));
+                if (++valid < K) continue;
+                long kmer = Math.min(fw, rc);
+                int slot = slot(keys, kmer);
+                int id;
+                if (keys[slot] == kmer) {
+                    id = ids[slot];
+                    if (lastDisease[id] == d + 1) continue; // repetido dentro de la misma referencia
+                } else {
+                    keys[slot] = kmer;
+                    id = ids[slot] = size++;
+                    if (id == lastDisease.length) lastDisease = Arrays.copyOf(lastDisease, id * 2);
+                }
+                lastDisease[id] = d + 1;
+                refKmers[d]++;
+                if (pairs == pairId.length) {
+                    pairId = Arrays.copyOf(pairId, pairs * 2);
+                    pairDisease = Arrays.copyOf(pairDisease, pairs * 2);
+                }
+                pairId[pairs] = id;
+                pairDisease[pairs++] = d;
+            }
+        }
+
+        // Pares (id, enfermedad) -> CSR
+        int[] start = new int[size + 1];
+        for (int p = 0; p < pairs; p++) start[pairId[p] + 1]++;
+        for (int i = 0; i < size; i++) start[i + 1] += start[i];
+        int[] fill = Arrays.copyOf(start, size);
+        int[] postings = new int[pairs];
+        for (int p = 0; p < pairs; p++) postings[fill[pairId[p]]++] = pairDisease[p];
+
+        return new KmerIndex(diseases, refKmers, keys, ids, size, start, postings);
+    }
+
+    // Posición de la clave o del hueco donde iría (sondeo lineal)
+    private static int slot(long[] keys, long kmer) {
+        int mask = keys.length - 1;
+        int i = (int) (mix(kmer) & mask);
+        while (keys[i] != -1L && keys[i] != kmer) i = (i + 1) & mask;
+        return i;
+    }
+
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    int references() { return diseaseIds.length; }
+    int distinctKmers() { return size; }
+
+    // Un resultado por enfermedad con al menos un k-mer compartido, ordenado por contención de mayor a menor
+    List<Score> score(BaseSequence patient) {
+        long length = patient.baseCount();
+        if (size == 0 || length < K) return new ArrayList<>();
+        // Cada tarea recorre un tramo (solapado en K-1 bases) y marca los ids vistos en su propio BitSet
+        int chunks = (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * 4L, length / MIN_CHUNK));
+        long chunkLength = (length + chunks - 1) / chunks;
+        IntStream tasks = IntStream.range(0, chunks);
+        if (chunks > 1) tasks = tasks.parallel();
+        BitSet seen = tasks.mapToObj(t -> {
+            long from = t * chunkLength;
+            long to = Math.min(length, from + chunkLength + K - 1);
+            return scan(patient, from, to);
+        }).reduce((a, b) -> { a.or(b); return a; }).orElseGet(BitSet::new);
+
+        int[] shared = new int[diseaseIds.length];
+        for (int id = seen.nextSetBit(0); id >= 0; id = seen.nextSetBit(id + 1)) {
+            for (int p = postingStart[id]; p < postingStart[id + 1]; p++) shared[postings[p]]++;
+        }
+        List<Score> scores = new ArrayList<>();
+        for (int d = 0; d < diseaseIds.length; d++) {
+            if (shared[d] > 0) scores.add(new Score(diseaseIds[d], shared[d], referenceKmers[d]));
+        }
+        scores.sort((a, b) -> Double.compare(b.containment(), a.containment()));
+        return scores;
+    }
+
+    private BitSet scan(BaseSequence seq, long from, long to) {
+        BitSet seen = new BitSet(size);
+        BaseSequence.Cursor cursor = seq.cursor(from);
+        long fw = 0, rc = 0;
+        int valid = 0;
+        for (long i = from; i < to; i++) {
+            int c = cursor.next();
+            if (c == 4) { valid = 0; continue; }
+            fw = ((fw << 2) | c) & MASK;
+            rc = (rc >>> 2) | ((long) (3 - c) << (2 * (K - 1)));
+            if (++valid < K) continue;
+            long kmer = Math.min(fw, rc);
+            int slot = slot(keys, kmer);
+            if (keys[slot] == kmer) seen.set(ids[slot]);
+        }
+        return seen;
+    }
+
+    static final class Score {
+        final String diseaseId;
+        final int sharedKmers;
+        final int referenceKmers;
+
+        Score(String diseaseId, int sharedKmers, int referenceKmers) {
+            this.diseaseId = diseaseId;
+            this.sharedKmers = sharedKmers;
+            this.referenceKmers = referenceKmers;
+        }
+
+        // Fracción de la referencia presente en el paciente
+        double containment() { return referenceKmers == 0 ? 0 : (double) sharedKmers / referenceKmers; }
+    }
+}
@@ -0,0 +1,254 @@
+package org.breaze.protocol;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+// FASTA leído directamente desde el archivo mapeado en memoria, sin copiar las bases al heap.
+// Usa un índice al estilo samtools .fai (nombre, largo, offset, bases por línea, bytes por línea) para
+// ubicar cualquier base con aritmética; se guarda junto al FASTA y se reutiliza mientras no sea más viejo.
+// Requiere que cada registro tenga todas sus líneas del mismo largo (salvo la última): si no, open()
+// devuelve null y el llamador lo lee empaquetado. Los caracteres que no son ACGT dentro de la secuencia
+// (IUPAC, '-', ...) se leen como N. El archivo no debe reescribirse en el lugar mientras esté mapeado.
+final class MappedFasta implements BaseSequence {
+    private static final int REGION_BITS = 30; // MappedByteBuffer llega hasta 2 GB: se mapea en tramos de 1 GB
+    private static final long REGION_MASK = (1L << REGION_BITS) - 1;
+
+    // Byte del archivo -> código; dentro de la secuencia lo que no es ACGT cuenta como N
+    private static final byte[] CODES = new byte[256];
+    static {
+        for (int c = 0; c < 256; c++) {
+            int code = PackedSequence.codeOf(c);
+            CODES[c] = (byte) (code < 0 ? 4 : code);
+        }
+    }
+
+    // Un registro del índice; 'start' es la posición de su primera base en la secuencia concatenada
+    record Entry(String name, long length, long offset, int lineBases, int lineWidth, long start) {}
+
+    private final MappedByteBuffer[] regions;
+    private final Entry[] entries; // solo los registros con bases, en orden de archivo
+    private final long baseCount;
+
+    private MappedFasta(MappedByteBuffer[] regions, Entry[] entries) {
+        this.regions = regions;
+        this.entries = entries;
+        Entry last = entries.length == 0 ? null : entries[entries.length - 1];
+        this.baseCount = last == null ? 0 : last.start + last.length;
+    }
+
+    // Mapea el archivo; con saveIndex=true escribe <archivo>.fai si no había uno vigente (las referencias
+    // del catálogo), con false lo arma solo en memoria (FASTA de pacientes). null si las líneas son irregulares.
+    static MappedFasta open(Path file, boolean saveIndex) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((size + REGION_MASK) >>> REGION_BITS)];
+            for (int r = 0; r < regions.length; r++) {
+                long from = (long) r << REGION_BITS;
+                regions[r] = ch.map(FileChannel.MapMode.READ_ONLY, from, Math.min(1L << REGION_BITS, size - from));
+            }
+            Path fai = file.resolveSibling(file.getFileName() + ".fai");
+            List<Entry> entries = readIndex(fai, file, size);
+            if (entries == null) {
+                entries = buildIndex(regions, size);
+                if (entries == null) return null;
+                if (saveIndex) writeIndex(fai, entries);
+            }
+            return new MappedFasta(regions, entries.stream().filter(e -> e.length > 0).toArray(Entry[]::new));
+        }
+    }
+
+    @Override
+    public long baseCount() { return baseCount; }
+
+    @Override
+    public Cursor cursor(long from) {
+        if (from < 0 || from > baseCount) throw new IndexOutOfBoundsException(String.valueOf(from));
+        // Registro que contiene 'from' (búsqueda binaria por inicio)
+        int lo = 0, hi = entries.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (entries[mid].start <= from) lo = mid; else hi = mid - 1;
+        }
+        return new MappedCursor(lo, from);
+    }
+
+    // Copia las bases por bloques (get en bloque sobre el tramo mapeado, línea por línea) a un búfer fijo
+    // y las entrega desde ahí: la lectura byte a byte de un MappedByteBuffer es varias veces más lenta
+    private final class MappedCursor implements Cursor {
+        private static final int BLOCK = 8192;
+        private final byte[] block = new byte[BLOCK];
+        private int blockPos, blockLen;
+        private int entry;
+        private long pos;        // offset en el archivo de la siguiente base sin copiar
+        private int lineLeft;    // bases que quedan en la línea actual
+        private long remaining;  // bases sin copiar del registro
+
+        MappedCursor(int entry, long from) {
+            this.entry = entry;
+            if (entries.length == 0) return;
+            Entry e = entries[entry];
+            long rel = Math.min(from - e.start, e.length);
+            int column = (int) (rel % e.lineBases);
+            remaining = e.length - rel;
+            lineLeft = (int) Math.min(e.lineBases - column, remaining);
+            pos = e.offset + rel / e.lineBases * e.lineWidth + column;
+        }
+
+        @Override
+        public int next() {
+            if (blockPos == blockLen && !fill()) return -1;
+            return CODES[block[blockPos++] & 0xFF];
+        }
+
+        private boolean fill() {
+            blockPos = blockLen = 0;
+            while (blockLen < BLOCK) {
+                if (lineLeft == 0) {
+                    if (remaining == 0) {
+                        if (entry + 1 >= entries.length) break;
+                        Entry e = entries[++entry];
+                        remaining = e.length;
+                        pos = e.offset;
+                    } else {
+                        Entry e = entries[entry];
+                        pos += e.lineWidth - e.lineBases; // salta el fin de línea
+                    }
+                    lineLeft = (int) Math.min(entries[entry].lineBases, remaining);
+                }
+                int r = (int) (pos >>> REGION_BITS);
+                int at = (int) (pos & REGION_MASK);
+                int n = Math.min(Math.min(lineLeft, BLOCK - blockLen), regions[r].limit() - at); // sin cruzar de tramo
+                regions[r].get(at, block, blockLen, n);
+                blockLen += n;
+                pos += n;
+                lineLeft -= n;
+                remaining -= n;
+            }
+            return blockLen > 0;
+        }
+    }
+
+    // Una pasada sobre los bytes mapeados; null si algún registro tiene líneas de distinto largo
+    private static List<Entry> buildIndex(MappedByteBuffer[] regions, long size) {
+        List<Entry> entries = new ArrayList<>();
+        String name = null;
+        long offset = 0, length = 0, start = 0;
+        int lineBases = 0, lineWidth = 0;
+        boolean closed = false;           // ya hubo una línea corta (o vacía): no puede venir otra con bases
+        long pos = 0;
+        while (pos < size) {
+            long lineStart = pos;
+            long bases = 0;
+            boolean cr = false;
+            byte first = get(regions, pos);
+            // Fin de la línea (incluye el \n si lo hay)
+            while (pos < size) {
+                byte c = get(regions, pos++);
+                if (c == '\n') break;
+                if (c == '\r') cr = true; else if (!cr) bases++;
+                else return null;             // \r en medio de la línea
+            }
+            long width = pos - lineStart;
+            if (width > Integer.MAX_VALUE) return null; // una sola línea de más de 2 GB: se lee empaquetado
+            if (first == '>') {
+                if (name != null) {
+                    entries.add(new Entry(name, length, offset, lineBases, lineWidth, start));
+                    start += length;
+                }
+                name = headerName(regions, lineStart + 1, pos);
+                offset = pos;
+                length = 0;
+                lineBases = 0;
+                lineWidth = 0;
+                closed = false;
+                continue;
+            }
+            if (name == null) {
+                if (bases == 0) continue;     // líneas vacías antes del primer encabezado
+                return null;                  // bases sin encabezado: no se pueden indexar
+            }
+            if (bases == 0) { closed = true; continue; }
+            if (closed) return null;
+            if (lineBases == 0) {
+                lineBases = (int) bases;
+                lineWidth = (int) width;
+            } else if (bases > lineBases || width > lineWidth) {
+                return null;
+            } else if (bases < lineBases || width < lineWidth) {
+                closed = true;                // última línea del registro, más corta
+            }
+            length += bases;
+        }
+        if (name != null) entries.add(new Entry(name, length, offset, lineBases, lineWidth, start));
+        return entries;
+    }
+
+    private static byte get(MappedByteBuffer[] regions, long pos) {
+        return regions[(int) (pos >>> REGION_BITS)].get((int) (pos & REGION_MASK));
+    }
+
+    // Primer token del encabezado (hasta espacio o fin de línea)
+    private static String headerName(MappedByteBuffer[] regions, long from, long to) {
+        StringBuilder sb = new StringBuilder();
+        for (long p = from; p < to; p++) {
+            byte c = get(regions, p);
+            if (c == ' ' || c == '\t' || c == '\r' || c == '\n') break;
+            sb.append((char) (c & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    // Lee el .fai si existe, no es más viejo que el FASTA y es coherente con el tamaño del archivo
+    private static List<Entry> readIndex(Path fai, Path fasta, long size) {
+        try {
+            if (!Files.exists(fai)
+                    || Files.getLastModifiedTime(fai).compareTo(Files.getLastModifiedTime(fasta)) < 0) return null;
+            List<Entry> entries = new ArrayList<>();
+            long start = 0;
+            try (BufferedReader br = Files.newBufferedReader(fai, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (line.isBlank()) continue;
+                    String[] f = line.split("\t");
+                    if (f.length < 5) return null;
+                    long length = Long.parseLong(f[1]), offset = Long.parseLong(f[2]);
+                    int lineBases = Integer.parseInt(f[3]), lineWidth = Integer.parseInt(f[4]);
+                    if (length < 0 || offset < 0 || offset > size || (length > 0 && (lineBases <= 0 || lineWidth < lineBases))) {
+                        return null;
+                    }
+                    if (length > 0 && offset + (length - 1) / lineBases * lineWidth + (length - 1) % lineBases >= size) {
+                        return null;
+                    }
+                    entries.add(new Entry(f[0], length, offset, lineBases, lineWidth, start));
+                    start += length;
+                }
+            }
+            return entries;
+        } catch (IOException | NumberFormatException e) {
+            return null; // se vuelve a armar
+        }
+    }
+
+    // Escribe el índice en un temporal y lo renombra; si la carpeta no se puede escribir se usa solo en memoria
+    private static void writeIndex(Path fai, List<Entry> entries) {
+        Path tmp = fai.resolveSibling(fai.getFileName() + ".tmp");
+        try {
+            try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Entry e : entries) {
+                    w.write(e.name + "\t" + e.length + "\t" + e.offset + "\t" + e.lineBases + "\t" + e.lineWidth + "\n");
+                }
+            }
+            Files.move(tmp, fai, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("ℹ No se pudo guardar el índice " + fai + ": " + e.getMessage());
+            try { Files.deleteIfExists(tmp); } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package org.breaze.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Formato .pseq para secuencias de pacientes: 2 bits por base en bloques de BLOCK_BASES, con índice de bloques.
+//   encabezado: "PSEQ", versión (int), bases por bloque (int)
+//   bloques:    bases empaquetadas ((n+3)/4 bytes, base i en los bits 2*(i%4) del byte i/4, N guardada como A),
+//               cantidad de tramos de N (int) y por cada uno inicio y largo dentro del bloque (int, int)
+//   índice:     offset de cada bloque (long)
+//   pie:        bases (long), offset del índice (long), cantidad de bloques (int), "PSEQ"
+// El índice y el largo van al final, así el archivo se escribe (y se hashea) de una sola pasada.
+// Ocupa ~4 veces menos que el FASTA de texto y leer un rango solo decodifica los bloques que lo cubren.
+final class PackedSequenceFile implements BaseSequence {
+    static final String EXTENSION = ".pseq";
+    static final int BLOCK_BASES = 1 << 16;
+    private static final int MAGIC = 0x50534551; // "PSEQ"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 12;
+    private static final int FOOTER_BYTES = 24;
+    private static final int REGION_BITS = 30;   // tramos de 1 GB como en MappedFasta
+    private static final long REGION_MASK = (1L << REGION_BITS) - 1;
+
+    private final MappedByteBuffer[] regions;
+    private final long[] blockOffsets;
+    private final long baseCount;
+    private final int blockBases;
+
+    private PackedSequenceFile(MappedByteBuffer[] regions, long[] blockOffsets, long baseCount, int blockBases) {
+        this.regions = regions;
+        this.blockOffsets = blockOffsets;
+        this.baseCount = baseCount;
+        this.blockBases = blockBases;
+    }
+
+    static boolean isPacked(Path file) {
+        return file.getFileName().toString().endsWith(EXTENSION);
+    }
+
+    // Mapea el archivo y lee pie e índice; las bases se decodifican recién al pedirlas
+    static PackedSequenceFile open(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < HEADER_BYTES + FOOTER_BYTES) throw new IOException("archivo .pseq incompleto: " + file);
+            MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((size + REGION_MASK) >>> REGION_BITS)];
+            for (int r = 0; r < regions.length; r++) {
+                long from = (long) r << REGION_BITS;
+                regions[r] = ch.map(FileChannel.MapMode.READ_ONLY, from, Math.min(1L << REGION_BITS, size - from));
+            }
+            ByteBuffer header = ByteBuffer.wrap(read(regions, 0, HEADER_BYTES));
+            ByteBuffer footer = ByteBuffer.wrap(read(regions, size - FOOTER_BYTES, FOOTER_BYTES));
+            int version = header.getInt(4), blockBases = header.getInt(8);
+            long baseCount = footer.getLong(0), indexOffset = footer.getLong(8);
+            int blocks = footer.getInt(16);
+            if (header.getInt(0) != MAGIC || footer.getInt(20) != MAGIC) throw new IOException("no es un .pseq: " + file);
+            if (version != VERSION) throw new IOException("versión de .pseq no soportada: " + version);
+            if (blockBases <= 0 || blockBases % 4 != 0 || baseCount < 0 || blocks != (baseCount + blockBases - 1) / blockBases
+                    || indexOffset + 8L * blocks != size - FOOTER_BYTES) {
+                throw new IOException(".pseq dañado: " + file);
+            }
+            ByteBuffer index = ByteBuffer.wrap(read(regions, indexOffset, 8 * blocks));
+            long[] offsets = new long[blocks];
+            for (int b = 0; b < blocks; b++) offsets[b] = index.getLong(8 * b);
+            return new PackedSequenceFile(regions, offsets, baseCount, blockBases);
+        }
+    }
+
+    @Override
+    public long baseCount() { return baseCount; }
+
+    @Override
+    public Cursor cursor(long from) {
+        if (from < 0 || from > baseCount) throw new IndexOutOfBoundsException(String.valueOf(from));
+        return new BlockCursor(from);
+    }
+
+    // Decodifica el bloque b a códigos 0..4 en 'codes'; devuelve cuántas bases tiene
+    private int decode(int b, byte[] codes) {
+        int n = (int) Math.min(blockBases, baseCount - (long) b * blockBases);
+        int packedBytes = (n + 3) >>> 2;
+        byte[] packed = read(regions, blockOffsets[b], packedBytes + 4);
+        for (int i = 0; i < n; i++) codes[i] = (byte) ((packed[i >>> 2] >>> ((i & 3) << 1)) & 3);
+        int runs = ByteBuffer.wrap(packed, packedBytes, 4).getInt();
+        if (runs > 0) {
+            ByteBuffer r = ByteBuffer.wrap(read(regions, blockOffsets[b] + packedBytes + 4, 8 * runs));
+            for (int k = 0; k < runs; k++) {
+                int start = r.getInt(), len = r.getInt();
+                Arrays.fill(codes, start, start + len, (byte) 4);
+            }
+        }
+        return n;
+    }
+
+    private final class BlockCursor implements Cursor {
+        private final byte[] codes = new byte[blockBases];
+        private int block, pos, len;
+
+        BlockCursor(long from) {
+            block = (int) (from / blockBases);
+            if (block < blockOffsets.length) {
+                len = decode(block, codes);
+                pos = (int) (from % blockBases);
+            }
+        }
+
+        @Override
+        public int next() {
+            if (pos == len) {
+                if (block + 1 >= blockOffsets.length) return -1;
+                len = decode(++block, codes);
+                pos = 0;
+            }
+            return codes[pos++];
+        }
+    }
+
+    // Copia 'len' bytes desde 'pos' aunque crucen de un tramo mapeado al siguiente
+    private static byte[] read(MappedByteBuffer[] regions, long pos, int len) {
+        byte[] out = new byte[len];
+        int done = 0;
+        while (done < len) {
+            MappedByteBuffer region = regions[(int) (pos >>> REGION_BITS)];
+            int at = (int) (pos & REGION_MASK);
+            int n = Math.min(len - done, region.limit() - at);
+            region.get(at, out, done, n);
+            done += n;
+            pos += n;
+        }
+        return out;
+    }
+
+    // Escribe un .pseq de corrido sobre 'out' (que puede ir calculando un hash) a medida que llegan las bases
+    static final class Writer {
+        private final OutputStream out;
+        private final byte[] packed = new byte[BLOCK_BASES / 4];
+        private int[] runs = new int[16]; // pares inicio, largo de los tramos de N del bloque actual
+        private int runCount;
+        private int inBlock;
+        private long bases;
+        private long written;
+        private long[] offsets = new long[16];
+        private int blocks;
+
+        Writer(OutputStream out) throws IOException {
+            this.out = out;
+            ByteBuffer h = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).putInt(BLOCK_BASES);
+            write(h.array());
+        }
+
+        // Código 0..3 = ACGT, 4 = N; los negativos se ignoran como en PackedSequence.Builder
+        void append(int code) throws IOException {
+            if (code < 0) return;
+            int i = inBlock;
+            if (code == 4) {
+                int last = 2 * (runCount - 1);
+                if (runCount > 0 && runs[last] + runs[last + 1] == i) {
+                    runs[last + 1]++;
+                } else {
+                    if (2 * runCount == runs.length) runs = Arrays.copyOf(runs, runs.length * 2);
+                    runs[2 * runCount] = i;
+                    runs[2 * runCount + 1] = 1;
+                    runCount++;
+                }
+            } else {
+                packed[i >>> 2] |= (byte) (code << ((i & 3) << 1));
+            }
+            inBlock++;
+            bases++;
+            if (inBlock == BLOCK_BASES) flushBlock();
+        }
+
+        long bases() { return bases; }
+
+        // Cierra el último bloque y escribe índice y pie; devuelve el tamaño del archivo
+        long finish() throws IOException {
+            if (inBlock > 0) flushBlock();
+            ByteBuffer index = ByteBuffer.allocate(8 * blocks);
+            for (int b = 0; b < blocks; b++) index.putLong(offsets[b]);
+            long indexOffset = written;
+            write(index.array());
+            ByteBuffer f = ByteBuffer.allocate(FOOTER_BYTES)
+                    .putLong(bases).putLong(indexOffset).putInt(blocks).putInt(MAGIC);
+            write(f.array());
+            out.flush();
+            return written;
+        }
+
+        private void flushBlock() throws IOException {
+            if (blocks == offsets.length) offsets = Arrays.copyOf(offsets, blocks * 2);
+            offsets[blocks++] = written;
+            int packedBytes = (inBlock + 3) >>> 2;
+            out.write(packed, 0, packedBytes);
+            written += packedBytes;
+            ByteBuffer r = ByteBuffer.allocate(4 + 8 * runCount).putInt(runCount);
+            for (int k = 0; k < 2 * runCount; k++) r.putInt(runs[k]);
+            write(r.array());
+            Arrays.fill(packed, 0, packedBytes, (byte) 0);
+            runCount = 0;
+            inBlock = 0;
+        }
+
+        private void write(byte[] data) throws IOException {
+            out.write(data);
+            written += data.length;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.breaze.protocol;
+
+import org.breaze.logging.AuditLogger;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Pone al día un patiens.csv escrito con un encabezado anterior (las columnas nuevas van al final, así las de antes
+// no cambian de posición). Hoy agrega sequence_bases y sequence_sha256, que salen de leer la secuencia de fasta_path.
+// En las filas que apuntan a un blob del FastaStore, checksum_fasta y file_size_bytes se recalculan como el FASTA de
+// texto del paciente: durante un tiempo esas filas guardaron ahí los datos de la secuencia limpia. Las que apuntan a
+// un patient_<id>.fasta de antes del almacén ya tienen los del archivo y se dejan como están.
+// Corre una sola vez al arrancar, antes de indexar: reescribe el archivo en un temporal y lo reemplaza.
+final class PatientCsvMigration {
+    private PatientCsvMigration() {}
+
+    static void migrate(Path csv, String header, Path fastaDir) throws IOException {
+        String current = CsvIO.readLineAt(csv, 0);
+        if (current == null || current.equals(header) || !header.startsWith(current + ",")) return;
+
+        List<String> columns = Arrays.asList(header.split(","));
+        int oldCols = current.split(",").length;
+        int idCol = columns.indexOf("patient_id"), pathCol = columns.indexOf("fasta_path");
+        int checksumCol = columns.indexOf("checksum_fasta"), sizeCol = columns.indexOf("file_size_bytes");
+        Path blobDir = fastaDir.resolve("blobs").toAbsolutePath().normalize(); //Los de antes están directo en FASTAS
+
+        Path tmp = csv.resolveSibling(csv.getFileName() + ".migrate");
+        byte[] eol = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+        Map<String, FastaStore.SequenceDigest> digests = new HashMap<>(); //patient_id + fasta_path -> hashes
+        long[] rows = new long[1];
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), 64 * 1024)) {
+            out.write(header.getBytes(StandardCharsets.UTF_8));
+            out.write(eol);
+            CsvRecord.scan(csv, 0, true, r -> {
+                if (r.fieldCount() != oldCols) { //Línea cortada: se copia igual y el índice la seguirá ignorando
+                    r.writeTo(out);
+                    out.write(eol);
+                    return;
+                }
+                String[] fields = new String[columns.size()];
+                Arrays.fill(fields, "");
+                for (int i = 0; i < oldCols; i++) fields[i] = r.field(i);
+                String fastaPath = fields[pathCol];
+                if (!fastaPath.isBlank() && Files.exists(Paths.get(fastaPath))) {
+                    String patientId = fields[idCol];
+                    FastaStore.SequenceDigest d = digests.get(patientId + "\n" + fastaPath);
+                    if (d == null) {
+                        d = FastaStore.digest(patientId, FastaIO.openPatientSequence(Paths.get(fastaPath)));
+                        digests.put(patientId + "\n" + fastaPath, d);
+                    }
+                    if (Paths.get(fastaPath).toAbsolutePath().normalize().startsWith(blobDir)) {
+                        fields[checksumCol] = d.fastaChecksum();
+                        fields[sizeCol] = String.valueOf(d.fastaBytes());
+                    }
+                    fields[columns.indexOf("sequence_bases")] = String.valueOf(d.bases());
+                    fields[columns.indexOf("sequence_sha256")] = d.finish();
+                }
+                StringBuilder line = new StringBuilder();
+                for (int i = 0; i < fields.length; i++) {
+                    if (i > 0) line.append(',');
+                    line.append(CsvIO.csv(fields[i]));
+                }
+                out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+                out.write(eol);
+                rows[0]++;
+            });
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        try {
+            Files.move(tmp, csv, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, csv, StandardCopyOption.REPLACE_EXISTING);
+        }
+        System.out.println("🔄 patiens.csv migrado al encabezado nuevo: " + rows[0] + " fila(s)");
+        AuditLogger.info("PATIENT_CSV_MIGRATED", Map.of(
+                "rows", String.valueOf(rows[0]),
+                "columns", String.valueOf(columns.size())));
+    }
+}
@@ -0,0 +1,81 @@
+package org.breaze.protocol;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Índices en memoria sobre patiens.csv:
+//  - primario: patient_id -> offset (en bytes) del inicio de su fila en el archivo
+//  - secundario: document_id -> patient_ids con ese documento
+// Así GET/UPDATE/DEACTIVATE van directo a la fila sin recorrer todo el CSV.
+// patiens.csv funciona como log: cada versión nueva de un paciente se agrega al final y el índice
+// apunta a la última; las versiones reemplazadas se cuentan como basura hasta la compactación.
+final class PatientIndex {
+    private final Map<String, Long> offsetById = new ConcurrentHashMap<>();
+    private final AtomicLong staleRecords = new AtomicLong();
+    private final Map<String, String> documentById = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> idsByDocument = new ConcurrentHashMap<>();
+
+    // Recorre el CSV una vez (al arrancar) y registra el offset de cada fila
+    static PatientIndex build(Path csv, int idCol, int documentCol, int expectedCols) throws IOException {
+        PatientIndex index = new PatientIndex();
+        index.scan(csv, idCol, documentCol, expectedCols);
+        return index;
+    }
+
+    void scan(Path csv, int idCol, int documentCol, int expectedCols) throws IOException {
+        CsvRecord.scan(csv, 0, true, r -> indexRecord(r, idCol, documentCol, expectedCols));
+    }
+
+    // Indexa una fila ya leída (solo se decodifican id y documento); devuelve false si no tiene las columnas esperadas
+    boolean indexRecord(CsvRecord r, int idCol, int documentCol, int expectedCols) {
+        if (r.fieldCount() != expectedCols) return false;
+        put(r.field(idCol), r.field(documentCol), r.offset());
+        return true;
+    }
+
+    // Registra (o mueve) la fila de un paciente y mantiene el índice por documento
+    void put(String patientId, String documentId, long offset) {
+        if (patientId == null || patientId.isEmpty()) return;
+        if (offsetById.put(patientId, offset) != null) staleRecords.incrementAndGet(); //Versión anterior queda obsoleta
+        String doc = documentId == null ? "" : documentId;
+        String previous = documentById.put(patientId, doc);
+        if (previous != null && !previous.equals(doc)) {
+            Set<String> old = idsByDocument.get(previous);
+            if (old != null) old.remove(patientId);
+        }
+        if (!doc.isEmpty()) idsByDocument.computeIfAbsent(doc, k -> ConcurrentHashMap.newKeySet()).add(patientId);
+    }
+
+    Long offsetOf(String patientId) { return offsetById.get(patientId); }
+
+    // Mueve el offset solo si nadie escribió una versión más nueva mientras tanto (usado por la compactación)
+    boolean relocate(String patientId, long expectedOffset, long newOffset) {
+        return offsetById.replace(patientId, expectedOffset, newOffset);
+    }
+
+    // Copia de patient_id -> offset para recorrer las versiones vigentes
+    Map<String, Long> snapshotOffsets() { return new HashMap<>(offsetById); }
+
+    long staleRecords() { return staleRecords.get(); }
+    void resetStaleRecords(long value) { staleRecords.set(value); }
+
+    boolean contains(String patientId) { return offsetById.containsKey(patientId); }
+
+    int size() { return offsetById.size(); }
+
+    // Pacientes registrados con ese documento, ordenados por id (vacío si no hay)
+    List<String> idsByDocument(String documentId) {
+        Set<String> ids = idsByDocument.get(documentId);
+        if (ids == null) return List.of();
+        List<String> out = new ArrayList<>(ids);
+        Collections.sort(out);
+        return out;
+    }
+
+    static String stripCr(String s) {
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+}
@@ -0,0 +1,49 @@
+package org.breaze.protocol;
+
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Locks por paciente repartidos en franjas: patient_id -> hash -> uno de N locks.
+// Dos pacientes distintos casi siempre caen en franjas distintas y se modifican en paralelo;
+// el mismo paciente siempre cae en la misma, así leer la fila, decidir y escribir la nueva versión es atómico.
+// Orden de locks: primero la franja y después csvLock (nunca al revés).
+final class PatientLocks {
+    private static final int STRIPES = 256; // potencia de 2
+
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    PatientLocks() {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantLock();
+    }
+
+    // Se libera con unlock(patientId) en un finally
+    void lock(String patientId) {
+        stripes[stripeOf(patientId)].lock();
+    }
+
+    void unlock(String patientId) {
+        stripes[stripeOf(patientId)].unlock();
+    }
+
+    // Franjas de varios pacientes tomadas en orden ascendente, para que dos lotes no se bloqueen entre sí.
+    // Devuelve las franjas tomadas; se liberan con unlockAll en un finally.
+    int[] lockAll(Collection<String> patientIds) {
+        TreeSet<Integer> indexes = new TreeSet<>();
+        for (String id : patientIds) indexes.add(stripeOf(id));
+        int[] taken = new int[indexes.size()];
+        int n = 0;
+        for (Integer i : indexes) taken[n++] = i;
+        for (int i : taken) stripes[i].lock();
+        return taken;
+    }
+
+    void unlockAll(int[] taken) {
+        for (int i = taken.length - 1; i >= 0; i--) stripes[taken[i]].unlock();
+    }
+
+    private static int stripeOf(String patientId) {
+        int h = patientId.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+}
@@ -0,0 +1,148 @@
+package org.breaze.protocol;
+
+import org.breaze.logging.AuditLogger;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Compactación en segundo plano del log de pacientes (patiens.csv).
+// Los UPDATE/DEACTIVATE agregan versiones nuevas al final; cuando las versiones viejas superan el umbral,
+// se reescribe el archivo con solo la última versión de cada paciente en un temporal y se reemplaza
+// de forma atómica. Las escrituras solo se bloquean al inicio (tomar la foto) y al final (copiar la cola y mover).
+final class PatientLogCompactor {
+    static final long MIN_STALE_RECORDS = 1000;   // no vale la pena compactar por menos
+    static final double MIN_STALE_RATIO  = 0.5;   // versiones viejas / vigentes
+    static final long CHECK_INTERVAL_SEC = 30;
+
+    private final Path csv;
+    private final String header;
+    private final Object csvLock;
+    private final PatientIndex index;
+    private final int idCol, documentCol, expectedCols;
+    private ScheduledExecutorService scheduler;
+
+    PatientLogCompactor(Path csv, String header, Object csvLock, PatientIndex index,
+                        int idCol, int documentCol, int expectedCols) {
+        this.csv = csv;
+        this.header = header;
+        this.csvLock = csvLock;
+        this.index = index;
+        this.idCol = idCol;
+        this.documentCol = documentCol;
+        this.expectedCols = expectedCols;
+    }
+
+    // Arranca el hilo daemon que revisa periódicamente si toca compactar
+    synchronized void start() {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "patient-log-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::compactIfNeeded, CHECK_INTERVAL_SEC, CHECK_INTERVAL_SEC, TimeUnit.SECONDS);
+    }
+
+    synchronized void stop() {
+        if (scheduler != null) scheduler.shutdownNow();
+        scheduler = null;
+    }
+
+    boolean needsCompaction() {
+        long stale = index.staleRecords();
+        return stale >= MIN_STALE_RECORDS && stale >= MIN_STALE_RATIO * Math.max(1, index.size());
+    }
+
+    private void compactIfNeeded() {
+        try {
+            if (needsCompaction()) compact();
+        } catch (Exception e) {
+            AuditLogger.error("PATIENT_LOG_COMPACT_ERROR", Map.of("error", String.valueOf(e.getMessage())));
+        }
+    }
+
+    // Reescribe el log dejando solo la versión vigente de cada paciente
+    void compact() throws IOException {
+        Path tmp = csv.resolveSibling(csv.getFileName() + ".compact");
+        long endOffset;
+        Map<String, Long> live;
+        synchronized (csvLock) { // 1) Foto: hasta dónde llega el archivo y qué versión es la vigente
+            endOffset = Files.size(csv);
+            live = index.snapshotOffsets();
+        }
+
+        // 2) Sin bloquear escrituras: copiar las versiones vigentes en el orden en que aparecen
+        List<Map.Entry<String, Long>> ordered = new ArrayList<>(live.entrySet());
+        ordered.sort(Map.Entry.comparingByValue());
+        Map<String, Long> moved = new HashMap<>();
+        byte[] eol = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+        long pos;
+        try (FileChannel src = FileChannel.open(csv, StandardOpenOption.READ);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), 64 * 1024)) {
+            byte[] h = header.getBytes(StandardCharsets.UTF_8);
+            out.write(h);
+            out.write(eol);
+            pos = h.length + eol.length;
+            CsvRecord row = new CsvRecord(); //Un solo búfer para todas las filas; se copian sin decodificar
+            for (Map.Entry<String, Long> e : ordered) {
+                //Si la versión vigente no se puede leer, saltarla dejaría al paciente fuera del archivo nuevo con un
+                //offset que ya no es suyo: se cancela la compactación y el archivo queda como estaba
+                if (!row.readAt(src, e.getValue())
+                        || !row.fieldEquals(idCol, e.getKey().getBytes(StandardCharsets.UTF_8))) {
+                    throw new IOException("la versión vigente de " + e.getKey() + " no está en el offset " + e.getValue());
+                }
+                row.writeTo(out);
+                out.write(eol);
+                moved.put(e.getKey(), pos);
+                pos += row.length() + eol.length;
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+
+        // 3) Bloqueo corto: agregar lo escrito durante la copia, mover el archivo y reubicar offsets
+        long tailLines;
+        synchronized (csvLock) {
+            long tailStart = pos;
+            long end = Files.size(csv);
+            try (FileChannel src = FileChannel.open(csv, StandardOpenOption.READ);
+                 FileChannel dst = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                long copied = 0;
+                while (copied < end - endOffset) copied += src.transferTo(endOffset + copied, end - endOffset - copied, dst);
+                dst.force(true);
+            } catch (IOException e) {
+                Files.deleteIfExists(tmp);
+                throw e;
+            }
+            try {
+                Files.move(tmp, csv, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, csv, StandardCopyOption.REPLACE_EXISTING);
+            }
+            for (Map.Entry<String, Long> e : moved.entrySet()) {
+                index.relocate(e.getKey(), live.get(e.getKey()), e.getValue());
+            }
+            long[] count = new long[1];
+            CsvRecord.scan(csv, tailStart, false, r -> {
+                if (index.indexRecord(r, idCol, documentCol, expectedCols)) count[0]++;
+            });
+            tailLines = count[0];
+            // Lo que queda obsoleto son solo las versiones de la cola que reemplazaron a otra
+            index.resetStaleRecords(Math.max(0, moved.size() + tailLines - index.size()));
+        }
+        AuditLogger.info("PATIENT_LOG_COMPACTED", Map.of(
+                "live", String.valueOf(moved.size()),
+                "tail", String.valueOf(tailLines),
+                "bytes", String.valueOf(Files.size(csv))));
+    }
+}
@@ -0,0 +1,128 @@
+package org.breaze.protocol;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+// Respuestas de GET_PATIENT ya armadas (fila + diagnósticos + nombres de enfermedad), de las menos usadas a las más.
+// Acotada por cantidad de pacientes y por memoria aproximada (2 bytes por carácter más un fijo por entrada);
+// al pasarse se descartan las menos usadas. Con capacidad 0 queda apagada.
+// Quien llena una entrada tiene el lock del paciente desde que lee los CSV hasta put(); quien modifica el paciente
+// (fila o detecciones) escribe con ese lock y después llama a invalidate(). Así una vista leída antes de una
+// escritura siempre queda guardada antes de su invalidate() y no sobrevive a ella.
+// Cada entrada recuerda la foto de DiseaseDB con la que se resolvieron los nombres: tras una recarga no se usa.
+final class PatientViewCache {
+    private static final int ENTRY_OVERHEAD = 96; // objetos de la entrada, clave y nodo del mapa (aprox.)
+
+    // keyStarts: posición de cada clave en payload, para anteponerles un prefijo sin volver a separar el texto
+    // (los valores pueden traer '|', ';' o '=' si llegaron por el protocolo binario)
+    record View(String payload, int[] keyStarts, int diagnosisCount, DiseaseDB db) {
+        // El payload con 'key' antes de cada clave y '|' entre todos los campos: la sección de BATCH_GET_PATIENT
+        void appendPrefixed(StringBuilder out, String key) {
+            int prev = 0;
+            for (int start : keyStarts) {
+                if (start > 0) out.append(payload, prev, start - 1).append('|'); //El separador de antes puede ser ';'
+                out.append(key);
+                prev = start;
+            }
+            out.append(payload, prev, payload.length());
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<String, View> views = new LinkedHashMap<>(16, 0.75f, true); // orden de acceso
+    private long bytes;
+    private long hits, misses, evictions, invalidations;
+
+    PatientViewCache(int maxEntries, long maxBytes) {
+        this.maxEntries = Math.max(0, maxEntries);
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    // PATIENT_CACHE_ENTRIES (por defecto 10000) y PATIENT_CACHE_MAX_BYTES (por defecto 16 MB) de configuration.properties
+    static PatientViewCache fromProperties(Properties p) {
+        return new PatientViewCache(
+                (int) longProp(p, "PATIENT_CACHE_ENTRIES", 10_000),
+                longProp(p, "PATIENT_CACHE_MAX_BYTES", 16L * 1024 * 1024));
+    }
+
+    // Vista guardada si se armó con la foto 'db' vigente; null cuenta como fallo
+    synchronized View get(String patientId, DiseaseDB db) {
+        View v = views.get(patientId);
+        if (v != null && v.db() != db) {
+            remove(patientId); //Nombres de una foto anterior a RELOAD_DISEASE_DB
+            v = null;
+        }
+        if (v == null) misses++; else hits++;
+        return v;
+    }
+
+    // Igual que get pero sin contar fallo: para volver a mirar con el lock del paciente antes de leer los CSV
+    synchronized View peek(String patientId, DiseaseDB db) {
+        View v = views.get(patientId);
+        return v != null && v.db() == db ? v : null;
+    }
+
+    // El llamador tiene el lock del paciente y armó la vista después de su última escritura
+    synchronized void put(String patientId, View view) {
+        long weight = weight(patientId, view);
+        if (maxEntries == 0 || weight > maxBytes) return;
+        remove(patientId);
+        views.put(patientId, view);
+        bytes += weight;
+        Iterator<Map.Entry<String, View>> it = views.entrySet().iterator();
+        while ((views.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+            Map.Entry<String, View> eldest = it.next();
+            bytes -= weight(eldest.getKey(), eldest.getValue());
+            it.remove();
+            evictions++;
+        }
+    }
+
+    // Se llama después de escribir la fila o las detecciones del paciente
+    synchronized void invalidate(String patientId) {
+        if (remove(patientId)) invalidations++;
+    }
+
+    // Tras recargar la base de enfermedades: las vistas viejas ya no se usarían, se libera la memoria
+    synchronized void clear() {
+        invalidations += views.size();
+        views.clear();
+        bytes = 0;
+    }
+
+    // Sección de STATS: "cache=patient_view|entries=..|bytes=..|hits=.."
+    synchronized void appendTo(StringBuilder sb) {
+        long lookups = hits + misses;
+        sb.append("cache=patient_view")
+                .append("|entries=").append(views.size())
+                .append("|max_entries=").append(maxEntries)
+                .append("|bytes=").append(bytes)
+                .append("|max_bytes=").append(maxBytes)
+                .append("|hits=").append(hits)
+                .append("|misses=").append(misses)
+                .append("|hit_ratio=").append(lookups == 0 ? "0.000" : String.format(Locale.ROOT, "%.3f", (double) hits / lookups))
+                .append("|evictions=").append(evictions)
+                .append("|invalidations=").append(invalidations);
+    }
+
+    private boolean remove(String patientId) {
+        View old = views.remove(patientId);
+        if (old == null) return false;
+        bytes -= weight(patientId, old);
+        return true;
+    }
+
+    private static long weight(String patientId, View v) {
+        return 2L * (patientId.length() + v.payload().length()) + 4L * v.keyStarts().length + ENTRY_OVERHEAD;
+    }
+
+    private static long longProp(Properties p, String key, long def) {
+        String v = p.getProperty(key);
+        if (v == null || v.isBlank()) return def;
+        return Long.parseLong(v.trim());
+    }
+}
@@ -0,0 +1,207 @@
+package org.breaze.protocol;
+
+import org.breaze.logging.AuditLogger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+// Búsqueda de un motivo en todos los FASTA de pacientes (SEARCH_PATTERN / SEARCH_RESULTS / CANCEL_SEARCH).
+// Corre en un ForkJoinPool propio del protocolo: las tareas se dividen por archivo y cada archivo se recorre
+// sin cargarlo (.pseq por bloques o texto mapeado), comparando con Shift-And (un long por posición del patrón, N del patrón = comodín).
+// Un archivo compartido por varios pacientes (mismo contenido en el FastaStore) se recorre una sola vez.
+// Los resultados se van encolando y el cliente los retira por páginas mientras la búsqueda sigue.
+// Se detiene por CANCEL_SEARCH, por timeout o al llegar a max_results pacientes.
+final class PatternSearch {
+    static final int MAX_PATTERN = Long.SIZE;
+    static final int MAX_POSITIONS = 20;              // posiciones informadas por paciente (el total va en count)
+    private static final int CHECK_EVERY = 1 << 20;   // cada cuántas bases se mira si hay que detenerse
+
+    enum Status { RUNNING, DONE, CANCELLED, TIMEOUT, LIMIT }
+
+    static final class Match {
+        final String patientId;
+        final long count;
+        final long[] positions; // base (0 = primera) donde empieza cada coincidencia, hasta MAX_POSITIONS
+
+        Match(String patientId, long count, long[] positions) {
+            this.patientId = patientId;
+            this.count = count;
+            this.positions = positions;
+        }
+    }
+
+    private final String searchId;
+    private final String pattern;
+    private final long[] eq = new long[SignatureMatcher.ALPHABET]; // símbolo -> posiciones del patrón que acepta
+    private final long high;
+    private final List<Path> files;
+    private final List<List<String>> patients; // pacientes activos que usan cada archivo
+    private final Consumer<Path> fileDone;     // se llama una vez por archivo, recorrido o no (devuelve el pin)
+    private final int maxResults;
+    private final long startedAt = System.currentTimeMillis();
+    private final long deadline;
+
+    private final ConcurrentLinkedQueue<Match> results = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger matchedPatients = new AtomicInteger();
+    private final AtomicInteger scannedFiles = new AtomicInteger();
+    private final AtomicReference<Status> status = new AtomicReference<>(Status.RUNNING);
+    private volatile boolean finished;
+    private volatile long lastTouched = System.currentTimeMillis();
+
+    private PatternSearch(String searchId, String pattern, Map<Path, List<String>> patientsByFile,
+                          int maxResults, long timeoutMs, Consumer<Path> fileDone) {
+        this.searchId = searchId;
+        this.fileDone = fileDone;
+        this.pattern = pattern;
+        this.files = new ArrayList<>(patientsByFile.keySet());
+        this.patients = new ArrayList<>(patientsByFile.values());
+        this.maxResults = maxResults;
+        this.deadline = startedAt + timeoutMs;
+        for (int i = 0; i < pattern.length(); i++) {
+            int sym = SignatureMatcher.symbol(pattern.charAt(i));
+            if (sym == 4) for (int s = 0; s < eq.length; s++) eq[s] |= 1L << i; // N del patrón acepta cualquier base
+            else eq[sym] |= 1L << i;
+        }
+        this.high = 1L << (pattern.length() - 1);
+    }
+
+    // El patrón ya validado (solo ACGTN, 1..64 bases); por cada FASTA, los pacientes activos que lo usan.
+    // fileDone recibe cada archivo cuando la búsqueda termina con él, también si se detuvo antes de recorrerlo
+    static PatternSearch start(ForkJoinPool pool, String searchId, String pattern, Map<Path, List<String>> patientsByFile,
+                               int maxResults, long timeoutMs, Consumer<Path> fileDone) {
+        PatternSearch search = new PatternSearch(searchId, pattern, patientsByFile, maxResults, timeoutMs, fileDone);
+        pool.execute(search.new Scan(0, search.files.size()));
+        return search;
+    }
+
+    String searchId() { return searchId; }
+    Status status() { return status.get(); }
+    boolean finished() { return finished; }
+    int totalFiles() { return files.size(); }
+    int scannedFiles() { return scannedFiles.get(); }
+    int matchedPatients() { return matchedPatients.get(); }
+    long lastTouched() { return lastTouched; }
+
+    void cancel() {
+        stop(Status.CANCELLED);
+    }
+
+    // Retira hasta 'max' resultados de la cola
+    List<Match> poll(int max) {
+        lastTouched = System.currentTimeMillis();
+        List<Match> page = new ArrayList<>();
+        Match m;
+        while (page.size() < max && (m = results.poll()) != null) page.add(m);
+        return page;
+    }
+
+    boolean drained() { return results.isEmpty(); }
+
+    // Queda el primer motivo (CANCEL, TIMEOUT, LIMIT o DONE); los que llegan después no lo cambian
+    private void stop(Status reason) {
+        status.compareAndSet(Status.RUNNING, reason);
+    }
+
+    private boolean shouldStop() {
+        if (status.get() != Status.RUNNING) return true;
+        if (System.currentTimeMillis() > deadline) {
+            stop(Status.TIMEOUT);
+            return true;
+        }
+        return false;
+    }
+
+    // Divide la lista de archivos a la mitad hasta llegar a un archivo por tarea
+    private final class Scan extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to;
+        private final boolean root;
+
+        Scan(int from, int to) { this(from, to, true); }
+
+        private Scan(int from, int to, boolean root) {
+            this.from = from;
+            this.to = to;
+            this.root = root;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (to - from == 1) {
+                    try {
+                        if (!shouldStop()) scanFile(from);
+                    } finally {
+                        fileDone.accept(files.get(from));
+                    }
+                } else if (to - from > 1) {
+                    int mid = (from + to) >>> 1;
+                    invokeAll(new Scan(from, mid, false), new Scan(mid, to, false));
+                }
+            } finally {
+                if (root) finish();
+            }
+        }
+    }
+
+    private void finish() {
+        stop(Status.DONE);
+        finished = true;
+        AuditLogger.info("SEARCH_PATTERN_FINISHED", Map.of(
+                "search_id", searchId,
+                "pattern", pattern,
+                "status", status.get().name().toLowerCase(Locale.ROOT),
+                "files", scannedFiles.get() + "/" + files.size(),
+                "patients", String.valueOf(matchedPatients.get()),
+                "ms", String.valueOf(System.currentTimeMillis() - startedAt)
+        ));
+    }
+
+    private void scanFile(int index) {
+        Path file = files.get(index);
+        try {
+            Match m = scan(file);
+            if (m == null) return;
+            for (String patientId : patients.get(index)) {
+                if (matchedPatients.incrementAndGet() > maxResults) {
+                    matchedPatients.decrementAndGet(); // el que sobra no se informa
+                    stop(Status.LIMIT);
+                    return;
+                }
+                results.add(new Match(patientId, m.count, m.positions));
+            }
+        } catch (IOException e) {
+            AuditLogger.warn("SEARCH_PATTERN_READ_ERROR", Map.of("search_id", searchId, "file", file.toString(),
+                    "error", String.valueOf(e.getMessage())));
+        } finally {
+            scannedFiles.incrementAndGet();
+        }
+    }
+
+    // Recorre la secuencia sin cargarla (.pseq por bloques o FASTA de texto mapeado, ver FastaIO.openPatientSequence).
+    // El Match sale sin paciente: scanFile lo repite para cada uno de los que usan el archivo
+    private Match scan(Path file) throws IOException {
+        long[] positions = new long[MAX_POSITIONS];
+        long count = 0, d = 0;
+        int m = pattern.length();
+        BaseSequence.Cursor cursor = FastaIO.openPatientSequence(file).cursor(0);
+        long base = 0;
+        for (int sym; (sym = cursor.next()) >= 0; base++) {
+            if ((base & (CHECK_EVERY - 1)) == 0 && shouldStop()) return null;
+            d = ((d << 1) | 1) & eq[sym];
+            if ((d & high) != 0) {
+                if (count < MAX_POSITIONS) positions[(int) count] = base - m + 1;
+                count++;
+            }
+        }
+        return count == 0 ? null : new Match(null, count, Arrays.copyOf(positions, (int) Math.min(count, MAX_POSITIONS)));
+    }
+}
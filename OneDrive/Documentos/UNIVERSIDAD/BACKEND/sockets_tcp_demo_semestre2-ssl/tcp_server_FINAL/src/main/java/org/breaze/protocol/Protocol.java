@@ -1,5 +1,10 @@
 package org.breaze.protocol;
 
+import java.util.Map;
+
 public interface Protocol {
     String processMessage(String request);
+
+    // Mismo comando ya separado en nombre y campos (protocolo binario)
+    String processFields(String command, Map<String, String> fields);
 }
@@ -1,11 +1,11 @@
 package org.breaze.protocol; //Ubica la clase en el paquete
 
 import org.breaze.logging.AuditLogger; //Logger propio para auditar operaciones
+import org.breaze.metrics.ServerMetrics; //Contadores y latencias por comando (STATS / JMX)
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.*;
-import java.security.MessageDigest;//Las diferentes importaciones se usan para archivos, hashing, rutas, etc..
+import java.nio.file.*;//Las diferentes importaciones se usan para archivos, hashing, rutas, etc..
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
@@ -13,16 +13,20 @@ import java.util.*;
 public class ServerProtocol implements Protocol { //Punto de entrada para procesar mensajes/comandos con el cliente
 
     // Diferentes rutas usadas para guardar los valores de pacientes, detecciones, fastas, catálogos y firmas
-    private static final Path CSV_PATH         = Paths.get("src/main/data_storage/patiens/patiens.csv");
-    private static final Path DETECTIONS_CSV   = Paths.get("src/main/data_storage/patiens/detections.csv");
-    private static final Path PATIENT_FASTA_DIR= Paths.get("src/main/disease_db/FASTAS");
-    private static final Path CATALOG_CSV      = Paths.get("src/main/disease_db/catalog.csv");
-    private static final Path SIGNATURES_CSV   = Paths.get("src/main/disease_db/signatures.csv");
+    // (relativas a la carpeta base; por defecto la carpeta de trabajo)
+    private final Path csvPath;
+    private final Path detectionsCsv;
+    private final Path patientFastaDir;
+    private final Path catalogCsv;
+    private final Path signaturesCsv;
 
     //Define el orden de las columnas del CSV pacientes
+    //checksum_fasta y file_size_bytes describen el FASTA de texto del paciente (como EXPORT_FASTA);
+    //sequence_bases y sequence_sha256, la secuencia limpia que guarda el blob (ver FastaStore y PatientCsvMigration)
     private static final String CSV_HEADER = String.join(",",
             "patient_id","full_name","document_id","F","contact_email","registration_date",
-            "age","sex","clinical_notes","checksum_fasta","file_size_bytes","fasta_path","active"
+            "age","sex","clinical_notes","checksum_fasta","file_size_bytes","fasta_path","active",
+            "sequence_bases","sequence_sha256"
     );
 
     //Define el orden de las columnas del CSV detecciones
@@ -33,61 +37,241 @@ public class ServerProtocol implements Protocol { //Punto de entrada para proces
     //MAP estructura que almacena pares clave -> valor K->V
     //Mapear orden de columnas filas <-> diccionarios (Conexión entre diferentes datos, fuentes o sistemas)
     private static final String[] HEADERS = CSV_HEADER.split(",");
+    private static final int COL_PATIENT_ID  = 0; //Posición de patient_id en HEADERS
+    private static final int COL_DOCUMENT_ID = 2; //Posición de document_id en HEADERS
+    private static final int[] ALL_COLUMNS = columns(HEADERS);
+    private static final int[] FASTA_PATH_COLUMN = columns("fasta_path");
 
-    //Cuando se carga el sistema, DiseaseDB llena el mapa desde catalog.csv
-    private final Map<String, String> catalog;          // diseaseId -> ref sequence (opcional)
-    //COVID - ATCGACTGA
+    //Cuando se carga el sistema, DiseaseDB llena catálogo (diseaseId -> referencia), nombres, severidades,
+    //firmas (patrón -> diseaseId) y el autómata que encuentra todas las firmas en una sola pasada.
+    //Es una foto inmutable: RELOAD_DISEASE_DB o el watcher arman otra y la reemplazan de una vez.
+    //Cada pedido toma la referencia una sola vez, así una detección en curso termina con la foto con la que empezó.
+    private volatile DiseaseDB diseaseDb;
+    private final Object reloadLock = new Object(); //Solo una recarga a la vez; los lectores no lo usan
 
-    //Cuando devuelves datos al cliente, en vez de dar solo el código interno, le muestras el nombre de la enfermedad
-    private final Map<String, String> diseaseNames;     // diseaseId -> name
-
-    //Cuando un paciente tiene múltiples coincidencias genéticas, se ordenan por severidad
-    private final Map<String, Integer> diseaseSeverity; // diseaseId -> severity
-
-    //Patrón genético en mayúsculas. Se utiliza para detectar enfermedades buscando
-    //patrones dentro de la secuencia genética del paciente
-    private final LinkedHashMap<String, String> signatures; // pattern -> diseaseId
-    //AGTCAGTC -> Covid
+    //Recarga automática cuando cambian catalog.csv o signatures.csv (se crea en start())
+    private DiseaseDbWatcher diseaseDbWatcher;
 
     private final Object csvLock = new Object();
     //Permite bloquear los CSV por múltiples peticiones, para que no hayan errores o información errada
+    //Solo cubre la escritura al final del archivo y el índice; no se mantiene durante la lectura ni la validación
+
+    //Serializa las modificaciones de un mismo paciente (leer, validar y escribir su nueva versión); pacientes distintos van en paralelo
+    private final PatientLocks patientLocks = new PatientLocks();
+
+    //Índices en memoria: patient_id -> offset de la fila en patiens.csv y document_id -> patient_ids
+    private final PatientIndex patientIndex;
+
+    //Índice patient_id -> filas en detections.csv, persistido en detections.csv.idx
+    private final DetectionIndex detectionIndex;
+
+    //Reescribe patiens.csv en segundo plano cuando se acumulan muchas versiones viejas
+    private final PatientLogCompactor compactor;
+
+    //FASTA de pacientes guardados por SHA-256 (iguales se comparten) con cuenta de filas que los usan
+    private final FastaStore fastaStore;
+
+    //Respuestas de GET_PATIENT ya armadas, acotadas por cantidad y memoria; se invalidan al escribir el paciente
+    private final PatientViewCache patientCache;
+
+    //Subidas de FASTA por partes abiertas: stream_id -> sesión
+    private final Map<String, FastaUploadSession> uploads = new java.util.concurrent.ConcurrentHashMap<>();
+    private static final long UPLOAD_IDLE_TIMEOUT_MS = 10 * 60 * 1000L; //Sesiones sin actividad se descartan
+
+    //Máximo de registros por BATCH_CREATE_PATIENT / BATCH_GET_PATIENT
+    private static final int MAX_BATCH = 1000;
+
+    //Una respuesta de texto viaja en un solo writeUTF (hasta 65535 bytes); en el protocolo binario el límite es la trama.
+    //Los lotes arman sus ítems hasta ese tope menos un margen para el encabezado y la etiqueta de PIPELINE.
+    static final int MAX_TEXT_RESPONSE_BYTES = 65535;
+    private static final int RESPONSE_HEADER_RESERVE = 256;
+
+    //Búsquedas de motivos en los FASTA de todos los pacientes: search_id -> búsqueda en curso o con resultados sin retirar.
+    //Usan su propio pool con la mitad de los núcleos, así una búsqueda grande no deja sin CPU a los demás pedidos.
+    private final Map<String, PatternSearch> searches = new java.util.concurrent.ConcurrentHashMap<>();
+    private final java.util.concurrent.ForkJoinPool searchPool =
+            new java.util.concurrent.ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int MAX_ACTIVE_SEARCHES = 4;
+    private static final int SEARCH_DEFAULT_MAX_RESULTS = 1000, SEARCH_MAX_RESULTS = 100_000;
+    private static final long SEARCH_DEFAULT_TIMEOUT_MS = 60_000, SEARCH_MAX_TIMEOUT_MS = 10 * 60 * 1000L;
+    private static final int SEARCH_PAGE = 50, SEARCH_MAX_PAGE = 200; //Cada página tiene que caber en un writeUTF
+
+    //Referencias por SCORE_PATIENT (max_results): con un catálogo grande la lista completa no cabe en un writeUTF
+    private static final int SCORE_DEFAULT_MAX_RESULTS = 20, SCORE_MAX_RESULTS = 200;
+
+    //Máximo de bases por GET_SEQUENCE_RANGE (una base = un byte de la respuesta, que va en un writeUTF)
+    private static final int MAX_SEQUENCE_RANGE = 60_000;
+
+    //Comandos que tienen sus propias métricas; cualquier otro nombre se cuenta como OTHER
+    private static final String[] COMMANDS = {
+            "CREATE_PATIENT", "GET_PATIENT", "GET_PATIENTS_BY_DOCUMENT", "UPDATE_PATIENT", "DEACTIVATE_PATIENT",
+            "FASTA_BEGIN", "FASTA_CHUNK", "FASTA_END", "FASTA_ABORT",
+            "BATCH_CREATE_PATIENT", "BATCH_GET_PATIENT", "STATS", "RELOAD_DISEASE_DB",
+            "SCORE_PATIENT", "SEARCH_PATTERN", "SEARCH_RESULTS", "CANCEL_SEARCH", "GET_SEQUENCE_RANGE", "EXPORT_FASTA"
+    };
 
 
     //Carga los CSV - Endermedades
     public ServerProtocol() {
-        DiseaseDB db = new DiseaseDB(CATALOG_CSV, SIGNATURES_CSV); //Pasa rutas donde se encuentran os archivos
-        this.catalog         = db.getCatalog();//GUARDAN LOS DAROS CARGADOS EN MEMORIA
-        this.diseaseNames    = db.getDiseaseNames();//GUARDAN LOS DAROS CARGADOS EN MEMORIA
-        this.diseaseSeverity = db.getDiseaseSeverity();//GUARDAN LOS DAROS CARGADOS EN MEMORIA
-        this.signatures      = db.getSignatures();//GUARDAN LOS DAROS CARGADOS EN MEMORIA
+        this(Paths.get(""));
+    }
+
+    //Igual que el anterior pero con src/main/... bajo 'baseDir' (benchmarks o pruebas con datos en una carpeta temporal)
+    public ServerProtocol(Path baseDir) {
+        this(baseDir, new Properties());
+    }
 
-        CsvIO.ensureFileWithHeader(CSV_PATH, CSV_HEADER);
-        CsvIO.ensureFileWithHeader(DETECTIONS_CSV, DETECTIONS_HEADER);//Se asegura de que existan los archivos
-        FastaIO.ensureDir(PATIENT_FASTA_DIR);                    //Si no existe lo crea y guarda, si existe no hace nada
-    }   //Se asegura de que exista el dir FASTA
+    //Con las opciones de configuration.properties que usa el protocolo (PATIENT_CACHE_*)
+    public ServerProtocol(Path baseDir, Properties config) {
+        this.patientCache = PatientViewCache.fromProperties(config);
+        this.csvPath         = baseDir.resolve("src/main/data_storage/patiens/patiens.csv");
+        this.detectionsCsv   = baseDir.resolve("src/main/data_storage/patiens/detections.csv");
+        this.patientFastaDir = baseDir.resolve("src/main/disease_db/FASTAS");
+        this.catalogCsv      = baseDir.resolve("src/main/disease_db/catalog.csv");
+        this.signaturesCsv   = baseDir.resolve("src/main/disease_db/signatures.csv");
+
+        this.diseaseDb = new DiseaseDB(catalogCsv, signaturesCsv); //Pasa rutas donde se encuentran os archivos
+
+        CsvIO.ensureFileWithHeader(csvPath, CSV_HEADER);
+        CsvIO.ensureFileWithHeader(detectionsCsv, DETECTIONS_HEADER);//Se asegura de que existan los archivos
+        FastaIO.ensureDir(patientFastaDir);                    //Si no existe lo crea y guarda, si existe no hace nada
+        //Se asegura de que exista el dir FASTA
+
+        try { //Una sola lectura del CSV al arrancar para construir los índices
+            PatientCsvMigration.migrate(csvPath, CSV_HEADER, patientFastaDir); //CSV con el encabezado de antes
+            this.patientIndex = PatientIndex.build(csvPath, COL_PATIENT_ID, COL_DOCUMENT_ID, HEADERS.length);
+            this.detectionIndex = DetectionIndex.open(detectionsCsv, DetectionStore.COL_PATIENT_ID, DetectionStore.COLUMNS);
+            this.fastaStore = new FastaStore(patientFastaDir);
+            List<String> fastaPaths = new ArrayList<>();
+            for (Map<String, String> row : currentPatientRows("fasta_path")) fastaPaths.add(row.get("fasta_path"));
+            fastaStore.rebuild(fastaPaths); //Las cuentas de uso salen de las filas vigentes
+        } catch (IOException e) {
+            throw new RuntimeException("No pude indexar " + csvPath.toAbsolutePath(), e);
+        }
+        System.out.println(" Pacientes indexados: " + patientIndex.size()
+                + ", pacientes con detecciones: " + detectionIndex.patientCount());
+        this.compactor = new PatientLogCompactor(csvPath, CSV_HEADER, csvLock, patientIndex,
+                COL_PATIENT_ID, COL_DOCUMENT_ID, HEADERS.length);
+        ServerMetrics.registerCommands(COMMANDS);
+    }
+
+    //Arranca la compactación y el watcher de la base de enfermedades; va aparte del constructor para que
+    //ningún hilo vea el protocolo a medio construir. Llamarlo de nuevo no hace nada.
+    public synchronized void start() {
+        compactor.start();
+        if (diseaseDbWatcher == null) {
+            diseaseDbWatcher = new DiseaseDbWatcher(List.of(catalogCsv, signaturesCsv), this::reloadDiseaseDb);
+        }
+        diseaseDbWatcher.start();
+    }
+
+    //Detiene los hilos en segundo plano y cierra el lateral de detecciones (al apagar el servidor o al terminar un benchmark)
+    public synchronized void close() {
+        compactor.stop();
+        if (diseaseDbWatcher != null) diseaseDbWatcher.stop();
+        detectionIndex.close();
+        searches.values().forEach(PatternSearch::cancel);
+        searchPool.shutdownNow();
+    }
+
+    //Vuelve a leer catalog.csv y signatures.csv fuera del camino de los pedidos y publica la foto nueva.
+    //Si alguno no se pudo leer se conserva la anterior. Devuelve la respuesta de RELOAD_DISEASE_DB.
+    String reloadDiseaseDb() {
+        synchronized (reloadLock) {
+            long start = System.nanoTime();
+            DiseaseDB next = new DiseaseDB(catalogCsv, signaturesCsv);
+            if (!next.getLoadErrors().isEmpty()) {
+                AuditLogger.warn("DISEASE_DB_RELOAD_FAILED", Map.of("errors", String.join("; ", next.getLoadErrors())));
+                return "ERROR;disease_db_reload_failed;" + String.join("; ", next.getLoadErrors());
+            }
+            DiseaseDB previous = diseaseDb;
+            diseaseDb = next;
+            patientCache.clear(); //Los nombres de enfermedad de las vistas guardadas pueden haber cambiado
+            String summary = "diseases=" + next.getDiseaseNames().size()
+                    + "|signatures=" + next.getSignatures().size()
+                    + "|references=" + next.getCatalog().size();
+            System.out.println("🔄 Base de enfermedades recargada: " + summary);
+            AuditLogger.info("DISEASE_DB_RELOADED", Map.of(
+                    "diseases", String.valueOf(next.getDiseaseNames().size()),
+                    "signatures", String.valueOf(next.getSignatures().size()),
+                    "previous_signatures", String.valueOf(previous.getSignatures().size()),
+                    "ms", String.valueOf((System.nanoTime() - start) / 1_000_000)
+            ));
+            return "OK;disease_db_reloaded;" + summary;
+        }
+    }
 
     // Valida la entrada, la parte y la manda al handler
     @Override
     public String processMessage(String request) {
-        System.out.println("Recibido del cliente: " + request);
-        AuditLogger.info("PROCESS_REQUEST", Map.of("msg", request)); //Se deja una traza de la información ECO
+        if (request != null && request.regionMatches(true, 0, "FASTA_CHUNK", 0, 11)) {
+            //Los fragmentos de FASTA no se copian al log completo, solo su tamaño
+            AuditLogger.info("PROCESS_REQUEST", Map.of("msg", "FASTA_CHUNK", "chars", String.valueOf(request.length())));
+        } else {
+            System.out.println("Recibido del cliente: " + request);
+            AuditLogger.info("PROCESS_REQUEST", Map.of("msg", String.valueOf(request))); //Se deja una traza de la información ECO
+        }
         if (request == null || request.trim().isEmpty()) {
             AuditLogger.warn("EMPTY_REQUEST", Map.of()); //Si es vacia informa
             return "ERROR;empty_request";
         }
 
-        try {
-            String[] parts = request.split("\\|"); //Se hace literal ya que solo | es lógico
-                            //Inicial-Elimina espacios-Vuelve a Mayuscula
-            String command = parts[0].trim().toUpperCase(Locale.ROOT);
+        //"CREATE_PATIENT|full_name=Juan|document_id=123"
+        //Lo que está antes del primer | es el comando y el resto son pares k=v que se pasan como mapa a los handlers.
+        //Se recorre con indexOf en vez de split(regex) para no crear arreglos intermedios.
+        int bar = request.indexOf('|');
+                        //Inicial-Elimina espacios-Vuelve a Mayuscula
+        String command = (bar < 0 ? request : request.substring(0, bar)).trim().toUpperCase(Locale.ROOT);
+        Map<String, String> kv = bar < 0 ? new HashMap<>() : parseKeyValues(request, bar + 1);
+        return dispatch(command, kv, request, MAX_TEXT_RESPONSE_BYTES);
+    }
+
+    // Entrada del protocolo binario: el comando y los campos ya llegan separados, sin pasar por texto.
+    // Claves y valores se recortan igual que en parseKeyValues, así un pedido se interpreta igual en los dos protocolos
+    @Override
+    public String processFields(String command, Map<String, String> rawFields) {
+        String upper = command.trim().toUpperCase(Locale.ROOT);
+        Map<String, String> fields = new HashMap<>(Math.max(4, rawFields.size() * 2));
+        for (Map.Entry<String, String> e : rawFields.entrySet()) {
+            String k = e.getKey().trim();
+            if (!k.isEmpty()) fields.put(k, e.getValue() == null ? "" : trimValue(k, e.getValue()));
+        }
+        if (upper.equals("FASTA_CHUNK")) {
+            String data = fields.get("data");
+            AuditLogger.info("PROCESS_REQUEST", Map.of("msg", "FASTA_CHUNK", "chars", String.valueOf(data == null ? 0 : data.length())));
+        } else {
+            System.out.println("Recibido del cliente (binario): " + upper + " " + fields.keySet());
+            AuditLogger.info("PROCESS_REQUEST", Map.of("msg", upper, "fields", String.valueOf(fields.keySet())));
+        }
+        return dispatch(upper, fields, upper, BinaryFrames.MAX_FRAME_BYTES - 64);
+    }
 
-            //parts[0] = "CREATE_PATIENT"
-            //parts[1] = "full_name=Juan"
-            //parts[2] = "document_id=123"
-            //Después, parts[0] se usa para saber qué comando ejecutar,
-            //y parts[1] ... parts[n] son enviados a los handlers para procesar los parámetros.
+    //Mide cada comando: tiempo de handle() y si la respuesta fue ERROR (sin locks ni objetos nuevos).
+    //maxResponseBytes es lo que entra en una respuesta de esa conexión; si igual se pasa, se responde un error
+    //en vez de cortar la conexión al escribirla.
+    private String dispatch(String command, Map<String, String> kv, String request, int maxResponseBytes) {
+        long start = System.nanoTime();
+        String response = handle(command, kv, request, maxResponseBytes);
+        if (response.length() > maxResponseBytes / 3 && utfLength(response) > maxResponseBytes) {
+            AuditLogger.warn("RESPONSE_TOO_LARGE", Map.of("cmd", command, "chars", String.valueOf(response.length())));
+            response = "ERROR;response_too_large;max_bytes=" + maxResponseBytes;
+        }
+        ServerMetrics.recordCommand(command, System.nanoTime() - start, response.startsWith("ERROR"));
+        return response;
+    }
 
+    //Bytes que ocupa el texto en writeUTF (UTF-8 modificado: 1 a 3 bytes por char); también acota el UTF-8 de las tramas
+    static int utfLength(CharSequence s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            n += (c >= 1 && c <= 0x7F) ? 1 : (c <= 0x7FF ? 2 : 3);
+        }
+        return n;
+    }
 
+    private String handle(String command, Map<String, String> kv, String request, int maxResponseBytes) {
+        try {
             switch (command) { //Decide que hacer según el comando
 
                 //Valida campos obligatorios (full_name, document_id).
@@ -96,12 +280,16 @@ public class ServerProtocol implements Protocol { //Punto de entrada para proces
                 //Escribe una nueva fila en patiens.csv.
                 //Registra detecciones en detections.csv si aplica.
                 case "CREATE_PATIENT":
-                    return handleCreatePatient(Arrays.copyOfRange(parts, 1, parts.length));
+                    return handleCreatePatient(kv);
 
                 //Busca en patiens.csv el registro del paciente
                 //Carga sus datos básicos y diagnósticos relacionados desde detections.csv.
                 case "GET_PATIENT":
-                    return handleGetPatient(Arrays.copyOfRange(parts, 1, parts.length));
+                    return handleGetPatient(kv);
+
+                //Busca por document_id usando el índice secundario y devuelve los patient_id asociados
+                case "GET_PATIENTS_BY_DOCUMENT":
+                    return handleGetPatientsByDocument(kv);
 
                 //Busca el paciente por patient_id.
                 //Verifica si está activo (no permite actualizar pacientes desactivados).
@@ -109,16 +297,69 @@ public class ServerProtocol implements Protocol { //Punto de entrada para proces
                 //Si hay FASTA nuevo, lo limpia, guarda y recalcula checksum.
                 //Reescribe la fila del paciente en patiens.csv.
                 case "UPDATE_PATIENT":
-                    return handleUpdatePatient(Arrays.copyOfRange(parts, 1, parts.length));
+                    return handleUpdatePatient(kv);
 
                 //Busca el paciente por patient_id.
                 //Verifica si ya estaba desactivado.
                 //Actualiza el campo active en patiens.csv a false.
                 case "DEACTIVATE_PATIENT":
-                    return handleDeactivatePatient(Arrays.copyOfRange(parts, 1, parts.length));
+                    return handleDeactivatePatient(kv);
+
+                //Subida de FASTA por partes para un paciente existente:
+                //FASTA_BEGIN abre el stream, FASTA_CHUNK envía fragmentos (cada uno cabe en un frame),
+                //FASTA_END guarda el archivo, checksum y detecciones; FASTA_ABORT lo descarta.
+                case "FASTA_BEGIN":
+                    return handleFastaBegin(kv);
+                case "FASTA_CHUNK":
+                    return handleFastaChunk(kv);
+                case "FASTA_END":
+                    return handleFastaEnd(kv);
+                case "FASTA_ABORT":
+                    return handleFastaAbort(kv);
+
+                //Varios CREATE_PATIENT en un pedido: claves con prefijo de registro "1.full_name=...|2.full_name=...".
+                //Se validan y detectan todos y las filas de pacientes y detecciones se escriben en una sola escritura cada una.
+                case "BATCH_CREATE_PATIENT":
+                    return handleBatchCreatePatient(kv, maxResponseBytes);
+
+                //Varios GET_PATIENT en un pedido: patient_ids=P-1,P-2,...
+                case "BATCH_GET_PATIENT":
+                    return handleBatchGetPatient(kv, maxResponseBytes);
+
+                //Compara el FASTA guardado del paciente con las referencias del catálogo por k-mers compartidos
+                case "SCORE_PATIENT":
+                    return handleScorePatient(kv);
+
+                //Bases [start, end) del FASTA guardado: en .pseq solo se decodifican los bloques del rango
+                case "GET_SEQUENCE_RANGE":
+                    return handleGetSequenceRange(kv);
+
+                //Escribe el FASTA de texto del paciente (>patient_id + secuencia) en FASTAS/export
+                case "EXPORT_FASTA":
+                    return handleExportFasta(kv);
+
+                //Busca un motivo en los FASTA de todos los pacientes activos, en segundo plano:
+                //SEARCH_PATTERN devuelve un search_id, SEARCH_RESULTS retira los pacientes encontrados por páginas
+                //(status=running mientras siga) y CANCEL_SEARCH la detiene.
+                case "SEARCH_PATTERN":
+                    return handleSearchPattern(kv);
+                case "SEARCH_RESULTS":
+                    return handleSearchResults(kv);
+                case "CANCEL_SEARCH":
+                    return handleCancelSearch(kv);
+
+                //Vuelve a leer catalog.csv y signatures.csv sin reiniciar el servidor
+                case "RELOAD_DISEASE_DB":
+                    return reloadDiseaseDb();
+
+                //Contadores del proceso: conexiones, bytes, FASTA procesado y latencias por comando
+                case "STATS":
+                    StringBuilder stats = new StringBuilder("OK;stats;").append(ServerMetrics.snapshotText()).append(';');
+                    patientCache.appendTo(stats);
+                    return stats.toString();
                 default:
                     AuditLogger.info("UNKNOWN_COMMAND", Map.of("cmd", command));
-                    return " Recibido: " + request + " | Enfermedades cargadas: " + catalog.keySet();
+                    return " Recibido: " + request + " | Enfermedades cargadas: " + diseaseDb.getCatalog().keySet();
             }
 
         } catch (Exception e) {
@@ -133,24 +374,85 @@ public class ServerProtocol implements Protocol { //Punto de entrada para proces
 
     //Crea pacientes
     //Opcionalmente guarda su FASTA, ejecuta detección por firmas, registra detecciones y escribe una fila en el CSV de pacientes
-    private String handleCreatePatient(String[] argParts) throws Exception {
+    private String handleCreatePatient(Map<String, String> kv) throws Exception {
         //Claves esperadas
         //Claves esperadas: patient_id (opcional), full_name, document_id, disease_id (opcional), contact_email, age, sex, clinical_notes, fasta_content.
-        Map<String, String> kv = parseKeyValues(argParts);
+        String invalid = validateNewPatient(kv);
+        if (invalid != null) return invalid;
+        NewPatient p = prepareNewPatient(kv);
 
+        patientLocks.lock(p.patientId);
+        try {
+            return commitNewPatient(p);
+        } finally {
+            patientLocks.unlock(p.patientId);
+        }
+    }
 
-        //INFORMACIÓN
-        String patientId     = kv.getOrDefault("patient_id", genPatientId());
+    //Escribe la fila y las detecciones de un paciente ya preparado; el llamador tiene su lock
+    private String commitNewPatient(NewPatient p) throws IOException {
+        //Un CREATE con un patient_id existente reemplaza su fila: el FASTA anterior pierde ese uso
+        Map<String, String> previous = patientIndex.contains(p.patientId) ? findPatientRowById(p.patientId) : null;
+        try {
+            writeNewPatient(p);
+        } catch (IOException e) {
+            fastaStore.release(p.fastaPath);
+            throw e;
+        }
+        if (previous != null) fastaStore.release(previous.get("fasta_path"));
+
+        Map<String, String> meta = new HashMap<>();
+        meta.put("patient_id", p.patientId);
+        meta.put("document_id", p.documentId); //Auditoria de exito con la info presentada
+        meta.put("disease_id", p.diseaseId);
+        meta.put("has_fasta", String.valueOf(p.hasFasta));
+        AuditLogger.info("CREATE_PATIENT_OK", meta);
+
+        // Respuesta con diagnósticos (si hubo)
+        return "OK;patient_created;" + p.patientId + buildDiagnosisPayload(p.hits);
+    }
+
+    private void writeNewPatient(NewPatient p) throws IOException {
+        synchronized (csvLock) {
+            long offset = CsvIO.appendLineAt(csvPath, p.row); //Bloqueo para evitar desfases de informacion
+            patientIndex.put(p.patientId, p.documentId, offset); //La nueva fila entra a los índices
+        }
+
+        //Las detecciones van después de la fila: si la fila no se pudo escribir no queda ninguna huérfana
+        if (!p.hits.isEmpty()) {
+            for (String[] hit : p.hits) { //Se recorren todas las coincidencias
+                String dId   = hit[0];
+                String pat   = hit[1];
+                String dName = hit[2]; //Nombre tomado de la misma foto con la que se detectó
+                DetectionStore.append(detectionIndex, genDetectionId(), p.patientId, dId, dName, pat); //Escibe una nueva fila la cual se almacena en el CSV de los pacientes
+            }
+            AuditLogger.info("CREATE_DIAG_DETECTIONS", new HashMap<String,String>() {{ //Registra como una auditoria - ID, # Detecciones e enerfemadad mas severa
+                put("patient_id", p.patientId);
+                put("count", String.valueOf(p.hits.size()));
+                put("top_disease", p.hits.get(0)[0]);
+            }});
+        }
+        patientCache.invalidate(p.patientId); //Un CREATE con un patient_id existente reemplaza la vista guardada
+    }
+
+    //Paciente listo para escribirse: FASTA guardado, detección hecha y fila CSV armada
+    private static final class NewPatient {
+        String patientId;
+        String documentId;
+        String diseaseId;
+        boolean hasFasta;
+        String fastaPath; //Blob que ya cuenta este uso: si la fila no se escribe hay que devolverlo
+        boolean generatedId; //patient_id armado con nextId: ningún otro pedido puede usarlo todavía
+        List<String[]> hits;
+        String row;
+    }
+
+    //Reglas de CREATE_PATIENT; devuelve la respuesta de error o null si el registro es válido
+    private static String validateNewPatient(Map<String, String> kv) {
         String fullName      = kv.getOrDefault("full_name", "");
         String documentId    = kv.getOrDefault("document_id", "");
-        String diseaseId     = kv.getOrDefault("disease_id", "");
-        String contactEmail  = kv.getOrDefault("contact_email", "");
-        String registration  = nowIso();
         String age           = kv.getOrDefault("age", "");
         String sex           = kv.getOrDefault("sex", "");
-        String clinicalNotes = kv.getOrDefault("clinical_notes", "");
-        String fastaContent  = kv.getOrDefault("fasta_content", "");
-
 
         //Requiere nombre o documento
         if (fullName.isEmpty() || documentId.isEmpty()) {
@@ -169,34 +471,51 @@ public class ServerProtocol implements Protocol { //Punto de entrada para proces
             AuditLogger.warn("CREATE_PATIENT_BAD_INPUT", Map.of("reason","invalid_age", "age", age));
             return "ERROR;invalid_age;expected integer";
         }
+        return null;
+    }
+
+    //Guarda el FASTA (si viene), corre la detección por firmas y arma la fila; no escribe en los CSV
+    private NewPatient prepareNewPatient(Map<String, String> kv) throws Exception {
+        //INFORMACIÓN
+        String patientId     = kv.getOrDefault("patient_id", genPatientId());
+        String fullName      = kv.getOrDefault("full_name", "");
+        String documentId    = kv.getOrDefault("document_id", "");
+        String diseaseId     = kv.getOrDefault("disease_id", "");
+        String contactEmail  = kv.getOrDefault("contact_email", "");
+        String registration  = nowIso();
+        String age           = kv.getOrDefault("age", "");
+        String sex           = kv.getOrDefault("sex", "");
+        String clinicalNotes = kv.getOrDefault("clinical_notes", "");
+        String fastaContent  = kv.getOrDefault("fasta_content", "");
+        ServerMetrics.fastaBytes(fastaContent.length());
 
         // FASTA
         String checksumFasta = "";
         String fileSizeBytes = "";
         String fastaPath     = "";
-        String cleaned       = FastaIO.cleanSequence(fastaContent); // deja solo ACGTN y mayusculas
+        String sequenceBases = "";
+        String sequenceSha   = "";
+        PackedSequence cleaned = PackedSequence.clean(fastaContent); // deja solo ACGTN, empaquetado a 2 bits
 
 
         //Pertenece al metodo handleCreatePatient y se encarga de procesar la secuencia genética enviada en el parámetro fasta_content.
         //El objetivo es:
         //Limpiar la secuencia.
-        //Guardar el archivo .fasta.
-        //Calcular su hash y tamaño.
-        //Generar la ruta para almacenarla en el CSV.
+        //Guardarla en el FastaStore (el hash y el tamaño salen de la misma escritura).
+        //Generar la ruta para almacenarla en el CSV (si otro paciente tiene la misma secuencia, es el mismo archivo).
         //Manejar casos donde no hay FASTA o la secuencia es inválida.
 
         if (!cleaned.isEmpty()) {
-            Path fastaFile = PATIENT_FASTA_DIR.resolve("patient_" + patientId + ".fasta"); //Si hay secuencia valida guarda el archivo
-            FastaIO.writePatientFasta(fastaFile, patientId, cleaned); //Escribe el archivo - Metodo al final
-
-            //Calcular metadatos
-            byte[] data = Files.readAllBytes(fastaFile); //lee el archivo en bytes
-            checksumFasta = FastaIO.sha256Hex(data); //Calcula el hash
-            fileSizeBytes = String.valueOf(data.length); //Tamaño del archivo
-            fastaPath     = fastaFile.toString(); //Guarda la ruta de donde se guardan los archivos
-
-            System.out.println("🧬 FASTA guardado en: " + fastaFile.toAbsolutePath());
-            System.out.println("   bytes=" + fileSizeBytes + " checksum=" + checksumFasta); //Log informativo
+            FastaStore.Blob blob = fastaStore.put(patientId, cleaned); //Si hay secuencia valida guarda el archivo
+            checksumFasta = blob.fastaChecksum(); //Hash del FASTA del paciente, calculado mientras se escribía
+            fileSizeBytes = String.valueOf(blob.fastaBytes()); //Tamaño de ese FASTA en bytes
+            fastaPath     = blob.path().toString(); //Guarda la ruta de donde se guardan los archivos
+            sequenceBases = String.valueOf(blob.bases());
+            sequenceSha   = blob.sequenceSha256(); //Nombre del blob
+
+            System.out.println("🧬 FASTA guardado en: " + blob.path().toAbsolutePath()
+                    + " (usado por " + fastaStore.references(fastaPath) + " paciente(s))");
+            System.out.println("   bytes=" + fileSizeBytes + " bases=" + sequenceBases + " checksum=" + checksumFasta); //Log informativo
         } else if (!fastaContent.isBlank()) {
             System.out.println(" FASTA recibido pero quedó vacío tras limpieza. No se guardará archivo."); //Esta limpieza se hace si el cliente no escribe caracteres validos en su archivo
         } else {
@@ -206,21 +525,8 @@ public class ServerProtocol implements Protocol { //Punto de entrada para proces
         // Detección por firmas (todas las coincidencias, ordenadas por severidad)
         //Se encarga de detectar posibles enfermedades en la secuencia FASTA enviada por el paciente, usando patrones genéticos almacenados en signatures.csv
         List<String[]> hits = detectAllSignatures(cleaned); //Cleanes -> Secuencia genetica del paciente - Hits -> Almacena las coincidencias encontradas
-        if (!hits.isEmpty()) {
-            if (diseaseId.isBlank()) { //Si no se adjunta este ID en el archivo, el hits tomara el valor de la eenfermedad
-                diseaseId = hits.get(0)[0]; // más severa
-            }
-            for (String[] hit : hits) { //Se recorren todas las coincidencias
-                String dId   = hit[0];
-                String pat   = hit[1];
-                String dName = diseaseNames.getOrDefault(dId, dId);
-                DetectionStore.append(DETECTIONS_CSV, genDetectionId(), patientId, dId, dName, pat); //Escibe una nueva fila la cual se almacena en el CSV de los pacientes
-            }
-            AuditLogger.info("CREATE_DIAG_DETECTIONS", new HashMap<String,String>() {{ //Registra como una auditoria - ID, # Detecciones e enerfemadad mas severa
-                put("patient_id", patientId);
-                put("count", String.valueOf(hits.size()));
-                put("top_disease", hits.get(0)[0]);
-            }});
+        if (!hits.isEmpty() && diseaseId.isBlank()) { //Si no se adjunta este ID en el archivo, el hits tomara el valor de la eenfermedad
+            diseaseId = hits.get(0)[0]; // más severa
         }
 
         // Escribir fila del paciente, se respeta el orden para que los datos mapeen de la forma correcta
@@ -228,28 +534,23 @@ public class ServerProtocol implements Protocol { //Punto de entrada para proces
                 CsvIO.csv(patientId), CsvIO.csv(fullName), CsvIO.csv(documentId), CsvIO.csv(diseaseId),
                 CsvIO.csv(contactEmail), CsvIO.csv(registration), CsvIO.csv(age), CsvIO.csv(sex),
                 CsvIO.csv(clinicalNotes), CsvIO.csv(checksumFasta), CsvIO.csv(fileSizeBytes),
-                CsvIO.csv(fastaPath), CsvIO.csv("true")
+                CsvIO.csv(fastaPath), CsvIO.csv("true"), CsvIO.csv(sequenceBases), CsvIO.csv(sequenceSha)
         );
-        synchronized (csvLock) {
-            CsvIO.appendLine(CSV_PATH, String.join(",", row)); //Bloqueo para evitar desfases de informacion
-        }
-
-        Map<String, String> meta = new HashMap<>();
-        meta.put("patient_id", patientId);
-        meta.put("document_id", documentId); //Auditoria de exito con la info presentada
-        meta.put("disease_id", diseaseId);
-        meta.put("has_fasta", String.valueOf(!cleaned.isEmpty()));
-        AuditLogger.info("CREATE_PATIENT_OK", meta);
-
-        // Respuesta con diagnósticos (si hubo)
-        String extra = buildDiagnosisPayload(hits);
-        return "OK;patient_created;" + patientId + extra;
+        NewPatient p = new NewPatient();
+        p.patientId = patientId;
+        p.generatedId = !kv.containsKey("patient_id");
+        p.documentId = documentId;
+        p.diseaseId = diseaseId;
+        p.hasFasta = !cleaned.isEmpty();
+        p.fastaPath = fastaPath;
+        p.hits = hits;
+        p.row = String.join(",", row);
+        return p;
     }
 
     // Obtener paciente
     //Este handler lee un paciente del CSV y arma una respuesta estructurada, incluyendo (si existen) sus detecciones.
-    private String handleGetPatient(String[] argParts) {
-        Map<String, String> kv = parseKeyValues(argParts); //compara con las claves del mapeo para traer la informacion correcta
+    private String handleGetPatient(Map<String, String> kv) throws IOException {
         String rawPid = kv.getOrDefault("patient_id", "").trim();
         if (rawPid.isEmpty()) { // Si es vacio lo audita y muestra error
             AuditLogger.warn("GET_PATIENT_BAD_INPUT", Map.of("reason","missing_patient_id"));
@@ -257,55 +558,342 @@ public class ServerProtocol implements Protocol { //Punto de entrada para proces
         }
 
         String patientId = normalizePatientId(rawPid); //Antepone el P- si no se tenia
-        Map<String, String> row = findPatientRowById(patientId);//Recorre el csv patiens y lo parse, si no lo tiene muestra error
-        if (row == null) {
-            AuditLogger.warn("GET_PATIENT_NOT_FOUND", Map.of("patient_id", patientId));
-            return "ERROR;not_found;" + patientId;
+        DiseaseDB db = diseaseDb; //Una sola foto para los nombres de toda la respuesta
+        PatientViewCache.View view = patientCache.get(patientId, db);
+        boolean cached = view != null;
+        if (view == null) {
+            view = loadPatientView(patientId, db, null, null, null);
+            if (view == null) {
+                AuditLogger.warn("GET_PATIENT_NOT_FOUND", Map.of("patient_id", patientId));
+                return "ERROR;not_found;" + patientId;
+            }
+        }
+
+        int diagCount = view.diagnosisCount();
+        AuditLogger.info("GET_PATIENT_OK", new HashMap<String,String>() {{
+            put("patient_id", patientId); //Genera la auditoria en los LOGS
+            put("diagnosis_count", String.valueOf(diagCount));
+            put("cache", cached ? "hit" : "miss");
+        }});
+        return "OK;patient;" + view.payload();
+    }
+
+    //Vista de GET_PATIENT armada con el lock del paciente: ninguna escritura queda a medias y la que se guarda en la
+    //caché es la última. null si el paciente no existe. GET_PATIENT y BATCH_GET_PATIENT la usan cuando la caché falla;
+    //el lote pasa sus canales abiertos sobre patiens.csv y detections.csv (null = abrir uno por lectura).
+    private PatientViewCache.View loadPatientView(String patientId, DiseaseDB db, java.nio.channels.FileChannel rows,
+                                                  CsvRecord record, java.nio.channels.FileChannel detections) throws IOException {
+        patientLocks.lock(patientId);
+        try {
+            PatientViewCache.View view = patientCache.peek(patientId, db); //Otro pedido pudo armarla mientras esperábamos
+            if (view != null) return view;
+            Map<String, String> row = null;
+            if (rows != null) {
+                Long offset = patientIndex.offsetOf(patientId);
+                if (offset != null) row = readRowAt(offset, patientId, rows, record, ALL_COLUMNS);
+            }
+            if (row == null && (rows == null || patientIndex.contains(patientId))) {
+                row = findPatientRowById(patientId); //Recorre el csv patiens (o se compactó durante el lote)
+            }
+            if (row == null) return null;
+            List<String[]> dets = DetectionStore.readByPatient(detectionIndex, patientId, db.getDiseaseNames(), detections);
+            view = patientView(db, row, dets);
+            patientCache.put(patientId, view);
+            return view;
+        } finally {
+            patientLocks.unlock(patientId);
         }
+    }
 
+    //Arma el texto de GET_PATIENT a partir de la fila y sus detecciones, con los nombres de la foto 'db'.
+    //Guarda dónde empieza cada clave: BATCH_GET_PATIENT les antepone "item_<i>_" sin volver a separar el texto.
+    private static PatientViewCache.View patientView(DiseaseDB db, Map<String, String> row, List<String[]> dets) {
         String diseaseId   = row.getOrDefault("F", ""); //Devuelve el nombre del usuario, si no hay devuelve el mismo ID registrado
-        String diseaseName = Optional.ofNullable(diseaseNames.get(diseaseId)).filter(s -> !s.isBlank()).orElse(diseaseId);
+        String diseaseName = db.diseaseName(diseaseId);
 
         StringBuilder payload = new StringBuilder(); //Construye un texto plano el cual muestra todos los campos incluidos en su registro
-        payload.append("patient_id=").append(row.getOrDefault("patient_id",""))
-                .append("|full_name=").append(row.getOrDefault("full_name",""))
-                .append("|document_id=").append(row.getOrDefault("document_id",""))
-                .append("|disease_id=").append(diseaseId)
-                .append("|disease_name=").append(diseaseName)
-                .append("|contact_email=").append(row.getOrDefault("contact_email",""))
-                .append("|registration_date=").append(row.getOrDefault("registration_date",""))
-                .append("|age=").append(row.getOrDefault("age",""))
-                .append("|sex=").append(row.getOrDefault("sex",""))
-                .append("|clinical_notes=").append(row.getOrDefault("clinical_notes",""))
-                .append("|checksum_fasta=").append(row.getOrDefault("checksum_fasta",""))
-                .append("|file_size_bytes=").append(row.getOrDefault("file_size_bytes",""))
-                .append("|fasta_path=").append(row.getOrDefault("fasta_path",""))
-                .append("|active=").append(row.getOrDefault("active",""));
-
-        List<String[]> dets = DetectionStore.readByPatient(DETECTIONS_CSV, patientId, diseaseNames);
+        int[] keyStarts = new int[16 + (dets.isEmpty() ? 0 : 1 + 3 * dets.size())];
+        int k = 0;
+        keyStarts[k++] = payload.length(); payload.append("patient_id=").append(row.getOrDefault("patient_id",""));
+        keyStarts[k++] = payload.append('|').length(); payload.append("full_name=").append(row.getOrDefault("full_name",""));
+        keyStarts[k++] = payload.append('|').length(); payload.append("document_id=").append(row.getOrDefault("document_id",""));
+        keyStarts[k++] = payload.append('|').length(); payload.append("disease_id=").append(diseaseId);
+        keyStarts[k++] = payload.append('|').length(); payload.append("disease_name=").append(diseaseName);
+        keyStarts[k++] = payload.append('|').length(); payload.append("contact_email=").append(row.getOrDefault("contact_email",""));
+        keyStarts[k++] = payload.append('|').length(); payload.append("registration_date=").append(row.getOrDefault("registration_date",""));
+        keyStarts[k++] = payload.append('|').length(); payload.append("age=").append(row.getOrDefault("age",""));
+        keyStarts[k++] = payload.append('|').length(); payload.append("sex=").append(row.getOrDefault("sex",""));
+        keyStarts[k++] = payload.append('|').length(); payload.append("clinical_notes=").append(row.getOrDefault("clinical_notes",""));
+        keyStarts[k++] = payload.append('|').length(); payload.append("checksum_fasta=").append(row.getOrDefault("checksum_fasta",""));
+        keyStarts[k++] = payload.append('|').length(); payload.append("file_size_bytes=").append(row.getOrDefault("file_size_bytes",""));
+        keyStarts[k++] = payload.append('|').length(); payload.append("fasta_path=").append(row.getOrDefault("fasta_path",""));
+        keyStarts[k++] = payload.append('|').length(); payload.append("active=").append(row.getOrDefault("active",""));
+        keyStarts[k++] = payload.append('|').length(); payload.append("sequence_bases=").append(row.getOrDefault("sequence_bases",""));
+        keyStarts[k++] = payload.append('|').length(); payload.append("sequence_sha256=").append(row.getOrDefault("sequence_sha256",""));
+
         if (!dets.isEmpty()) { //Lee el archivo detections y devuelve una lista con esos parametros
-            payload.append(";diagnosis_count=").append(dets.size());
+            keyStarts[k++] = payload.append(';').length(); payload.append("diagnosis_count=").append(dets.size());
             int idx = 1;
-            for (String[] d : dets) {
-                payload.append(";diagnosis_").append(idx).append("_id=").append(d[0])
-                        .append("|diagnosis_").append(idx).append("_name=").append(d[1])//Si hay detecciones agrega el count para enumerarlas
-                        .append("|diagnosis_").append(idx).append("_pattern=").append(d[2]);
+            for (String[] d : dets) { //Si hay detecciones agrega el count para enumerarlas
+                keyStarts[k++] = payload.append(';').length(); payload.append("diagnosis_").append(idx).append("_id=").append(d[0]);
+                keyStarts[k++] = payload.append('|').length(); payload.append("diagnosis_").append(idx).append("_name=").append(d[1]);
+                keyStarts[k++] = payload.append('|').length(); payload.append("diagnosis_").append(idx).append("_pattern=").append(d[2]);
                 idx++;
             }
         }
+        return new PatientViewCache.View(payload.toString(), keyStarts, dets.size(), db);
+    }
 
-        int diagCount = dets.size();
-        AuditLogger.info("GET_PATIENT_OK", new HashMap<String,String>() {{
-            put("patient_id", patientId); //Genera la auditoria en los LOGS
-            put("diagnosis_count", String.valueOf(diagCount));
-        }});
-        return "OK;patient;" + payload;
+    //Crea varios pacientes en un pedido. Cada registro sigue las reglas de CREATE_PATIENT y falla por separado;
+    //las filas de todo el lote van en una sola escritura a patiens.csv y después las detecciones en una sola a detections.csv.
+    //Respuesta: "OK;batch_created;count=N|created=C|failed=F|returned=R|truncated=false" y una sección
+    //";item_<n>_status=OK|item_<n>_patient_id=..." o ";item_<n>_status=ERROR|item_<n>_error=..." por registro <n>.
+    //Si los ítems no entran en una respuesta (en texto, un writeUTF) van los primeros R y truncated=true;
+    //los pacientes se crean igual. Con HELLO|protocol=2 el límite es el de la trama.
+    private String handleBatchCreatePatient(Map<String, String> kv, int maxResponseBytes) {
+        TreeMap<Integer, Map<String, String>> records = splitBatchRecords(kv);
+        if (records.isEmpty()) {
+            AuditLogger.warn("BATCH_CREATE_PATIENT_BAD_INPUT", Map.of("reason","empty_batch"));
+            return "ERROR;empty_batch;expected <n>.full_name and <n>.document_id";
+        }
+        if (records.size() > MAX_BATCH) {
+            AuditLogger.warn("BATCH_CREATE_PATIENT_BAD_INPUT", Map.of("reason","batch_too_large", "count", String.valueOf(records.size())));
+            return "ERROR;batch_too_large;max=" + MAX_BATCH;
+        }
+
+        //Validación, FASTA y detección de cada registro; todavía no se escribe ningún CSV
+        Map<Integer, String> results = new TreeMap<>();
+        List<Integer> ready = new ArrayList<>();
+        List<NewPatient> patients = new ArrayList<>();
+        List<String[]> detectionRows = new ArrayList<>();
+        for (Map.Entry<Integer, Map<String, String>> e : records.entrySet()) {
+            String invalid = validateNewPatient(e.getValue());
+            if (invalid != null) {
+                results.put(e.getKey(), errorItem(e.getKey(), invalid));
+                continue;
+            }
+            try {
+                NewPatient p = prepareNewPatient(e.getValue());
+                for (String[] hit : p.hits) {
+                    detectionRows.add(new String[]{ p.patientId,
+                            DetectionStore.line(genDetectionId(), p.patientId, hit[0], hit[2], hit[1]) });
+                }
+                ready.add(e.getKey());
+                patients.add(p);
+            } catch (Exception ex) {
+                results.put(e.getKey(), errorItem(e.getKey(), "ERROR;exception;" + ex.getClass().getSimpleName() + ";" + ex.getMessage()));
+            }
+        }
+
+        //Dos escrituras para todo el lote: las filas primero y después las detecciones, igual que en CREATE_PATIENT.
+        //Solo se bloquean los patient_id que mandó el cliente: los generados no pueden chocar con otro pedido.
+        List<String> suppliedIds = new ArrayList<>();
+        for (NewPatient p : patients) if (!p.generatedId) suppliedIds.add(p.patientId);
+        List<String> replacedFastas = new ArrayList<>(); //FASTA de las versiones que el lote reemplaza
+        int detections = 0;
+        try {
+            int[] stripes = patientLocks.lockAll(suppliedIds);
+            try {
+                //fasta_path vigente de los pacientes que el lote reemplaza: un canal y un búfer para todas las lecturas
+                Map<String, String> lastPath = new HashMap<>();
+                CsvRecord record = new CsvRecord();
+                try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(csvPath, StandardOpenOption.READ)) {
+                    for (NewPatient p : patients) {
+                        String before = lastPath.get(p.patientId);
+                        if (!lastPath.containsKey(p.patientId) && !p.generatedId) {
+                            Long offset = patientIndex.offsetOf(p.patientId);
+                            Map<String, String> row = offset == null ? null : readRowAt(offset, p.patientId, ch, record, FASTA_PATH_COLUMN);
+                            if (row == null && patientIndex.contains(p.patientId)) row = findPatientRowById(p.patientId); //El CSV se compactó
+                            if (row != null) before = row.get("fasta_path");
+                        }
+                        if (before != null) replacedFastas.add(before);
+                        lastPath.put(p.patientId, p.fastaPath);
+                    }
+                }
+                List<String> rows = new ArrayList<>(patients.size());
+                for (NewPatient p : patients) rows.add(p.row);
+                synchronized (csvLock) {
+                    long[] offsets = CsvIO.appendLinesAt(csvPath, rows);
+                    for (int i = 0; i < patients.size(); i++) {
+                        patientIndex.put(patients.get(i).patientId, patients.get(i).documentId, offsets[i]);
+                    }
+                }
+                //Si falla patiens.csv no llega a escribirse ninguna detección; si fallan las detecciones los pacientes
+                //ya quedaron creados y, como en CREATE_PATIENT, solo se informa
+                try {
+                    detectionIndex.appendAll(detectionRows);
+                    detections = detectionRows.size();
+                } catch (IOException ex) {
+                    System.out.println(" No pude escribir las detecciones del lote: " + ex.getMessage());
+                    AuditLogger.warn("BATCH_CREATE_DETECTIONS_FAILED", Map.of(
+                            "detections", String.valueOf(detectionRows.size()),
+                            "msg", String.valueOf(ex.getMessage())
+                    ));
+                }
+            } finally {
+                //Las vistas guardadas de los pacientes que el lote reemplazó, antes de soltar sus locks: un GET que
+                //esperaba el lock ya no puede volver a guardar la versión anterior
+                suppliedIds.forEach(patientCache::invalidate);
+                patientLocks.unlockAll(stripes);
+            }
+        } catch (IOException ex) {
+            String error = "ERROR;exception;" + ex.getClass().getSimpleName() + ";" + ex.getMessage();
+            for (Integer n : ready) results.put(n, errorItem(n, error));
+            for (NewPatient p : patients) fastaStore.release(p.fastaPath);
+            ready.clear();
+            patients.clear();
+            replacedFastas.clear();
+        }
+        replacedFastas.forEach(fastaStore::release);
+        for (int i = 0; i < patients.size(); i++) {
+            NewPatient p = patients.get(i);
+            results.put(ready.get(i), createdItem(ready.get(i), p));
+        }
+
+        int created = patients.size();
+        int failed = records.size() - created;
+        AuditLogger.info("BATCH_CREATE_PATIENT_OK", Map.of(
+                "count", String.valueOf(records.size()),
+                "created", String.valueOf(created),
+                "failed", String.valueOf(failed),
+                "detections", String.valueOf(detections)
+        ));
+        StringBuilder items = new StringBuilder();
+        int returned = 0, used = 0, budget = maxResponseBytes - RESPONSE_HEADER_RESERVE;
+        for (String item : results.values()) {
+            int size = 1 + utfLength(item);
+            if (used + size > budget) break;
+            items.append(';').append(item);
+            used += size;
+            returned++;
+        }
+        return "OK;batch_created;count=" + records.size() + "|created=" + created + "|failed=" + failed
+                + "|returned=" + returned + "|truncated=" + (returned < results.size()) + items;
+    }
+
+    //Sección de un registro creado: "item_<n>_status=OK|item_<n>_patient_id=...|item_<n>_diagnosis_count=..."
+    private static String createdItem(int n, NewPatient p) {
+        String key = "item_" + n + "_";
+        StringBuilder sb = new StringBuilder(key).append("status=OK|").append(key).append("patient_id=").append(p.patientId);
+        if (!p.hits.isEmpty()) {
+            sb.append('|').append(key).append("diagnosis_count=").append(p.hits.size());
+            int idx = 1;
+            for (String[] hit : p.hits) {
+                sb.append('|').append(key).append("diagnosis_").append(idx).append("_id=").append(hit[0])
+                        .append('|').append(key).append("diagnosis_").append(idx).append("_name=").append(hit[2])
+                        .append('|').append(key).append("diagnosis_").append(idx).append("_pattern=").append(hit[1]);
+                idx++;
+            }
+        }
+        return sb.toString();
+    }
+
+    //Sección de un registro que falló, a partir de su respuesta "ERROR;<código>;<detalle>"
+    private static String errorItem(int n, String error) {
+        String key = "item_" + n + "_";
+        String[] parts = error.split(";", 3);
+        StringBuilder sb = new StringBuilder(key).append("status=ERROR|").append(key).append("error=")
+                .append(parts.length > 1 ? parts[1] : "");
+        if (parts.length > 2) sb.append('|').append(key).append("detail=").append(parts[2].replace(';', ','));
+        return sb.toString();
+    }
+
+    //Agrupa las claves "<n>.campo" por número de registro; las claves sin prefijo numérico se ignoran
+    private static TreeMap<Integer, Map<String, String>> splitBatchRecords(Map<String, String> kv) {
+        TreeMap<Integer, Map<String, String>> records = new TreeMap<>();
+        for (Map.Entry<String, String> e : kv.entrySet()) {
+            String key = e.getKey();
+            int dot = key.indexOf('.');
+            if (dot <= 0 || dot > 9) continue;
+            int n;
+            try {
+                n = Integer.parseInt(key.substring(0, dot));
+            } catch (NumberFormatException ex) {
+                continue;
+            }
+            records.computeIfAbsent(n, k -> new HashMap<>()).put(key.substring(dot + 1), e.getValue());
+        }
+        return records;
+    }
+
+    //Lee varios pacientes por el mismo camino que GET_PATIENT (caché y, si falla, lock del paciente), reutilizando
+    //un canal abierto sobre patiens.csv y otro sobre detections.csv para las lecturas.
+    //Respuesta: "OK;batch_patients;count=N|returned=R|found=K|more=false" y una sección por id, en el orden pedido:
+    //";item_<i>_status=OK|item_<i>_patient_id=...(campos de GET_PATIENT con el prefijo)" o ";item_<i>_status=ERROR|...".
+    //Si no entran todos en una respuesta (en texto, un writeUTF) van los primeros R con more=true y el cliente
+    //pide el resto en otro lote. Con HELLO|protocol=2 el límite es el de la trama.
+    private String handleBatchGetPatient(Map<String, String> kv, int maxResponseBytes) throws IOException {
+        String raw = kv.getOrDefault("patient_ids", "").trim();
+        List<String> ids = new ArrayList<>();
+        for (String id : raw.split(",")) {
+            if (!id.isBlank()) ids.add(normalizePatientId(id.trim()));
+        }
+        if (ids.isEmpty()) {
+            AuditLogger.warn("BATCH_GET_PATIENT_BAD_INPUT", Map.of("reason","missing_patient_ids"));
+            return "ERROR;missing_patient_ids";
+        }
+        if (ids.size() > MAX_BATCH) {
+            AuditLogger.warn("BATCH_GET_PATIENT_BAD_INPUT", Map.of("reason","batch_too_large", "count", String.valueOf(ids.size())));
+            return "ERROR;batch_too_large;max=" + MAX_BATCH;
+        }
+
+        StringBuilder items = new StringBuilder();
+        int found = 0, returned = 0, used = 0, budget = maxResponseBytes - RESPONSE_HEADER_RESERVE;
+        DiseaseDB db = diseaseDb;
+        CsvRecord record = new CsvRecord(); //Un solo búfer para las filas de todo el lote
+        try (java.nio.channels.FileChannel rows = java.nio.channels.FileChannel.open(csvPath, StandardOpenOption.READ);
+             java.nio.channels.FileChannel dets = detectionIndex.openForRead()) {
+            StringBuilder item = new StringBuilder();
+            for (String patientId : ids) {
+                String key = "item_" + (returned + 1) + "_";
+                PatientViewCache.View view = patientCache.get(patientId, db);
+                if (view == null) view = loadPatientView(patientId, db, rows, record, dets);
+                item.setLength(0);
+                if (view == null) {
+                    item.append(key).append("status=ERROR|").append(key).append("error=not_found|")
+                            .append(key).append("patient_id=").append(patientId);
+                } else {
+                    item.append(key).append("status=OK|");
+                    view.appendPrefixed(item, key);
+                }
+                int size = 1 + utfLength(item);
+                if (used + size > budget) break;
+                items.append(';').append(item);
+                used += size;
+                returned++;
+                if (view != null) found++;
+            }
+        }
+
+        AuditLogger.info("BATCH_GET_PATIENT_OK", Map.of(
+                "count", String.valueOf(ids.size()),
+                "returned", String.valueOf(returned),
+                "found", String.valueOf(found)
+        ));
+        return "OK;batch_patients;count=" + ids.size() + "|returned=" + returned + "|found=" + found
+                + "|more=" + (returned < ids.size()) + items;
+    }
+
+    //Lista los pacientes registrados con un document_id (índice secundario, sin leer el CSV)
+    private String handleGetPatientsByDocument(Map<String, String> kv) {
+        String documentId = kv.getOrDefault("document_id", "").trim();
+        if (documentId.isEmpty()) {
+            AuditLogger.warn("GET_BY_DOCUMENT_BAD_INPUT", Map.of("reason","missing_document_id"));
+            return "ERROR;missing_document_id";
+        }
+        List<String> ids = patientIndex.idsByDocument(documentId);
+        if (ids.isEmpty()) {
+            AuditLogger.warn("GET_BY_DOCUMENT_NOT_FOUND", Map.of("document_id", documentId));
+            return "ERROR;not_found;" + documentId;
+        }
+        AuditLogger.info("GET_BY_DOCUMENT_OK", Map.of("document_id", documentId, "count", String.valueOf(ids.size())));
+        return "OK;patients_by_document;document_id=" + documentId
+                + "|count=" + ids.size() + "|patient_ids=" + String.join(",", ids);
     }
 
     // Actualizar paciente
     //Modifica campos de un paciente existente, puede actualizar su FASTA, y reescribe la fila en el CSV
-    private String handleUpdatePatient(String[] argParts) throws Exception {
-        Map<String, String> kv = parseKeyValues(argParts); //Mapea las claves k-v
+    private String handleUpdatePatient(Map<String, String> kv) throws Exception {
 
         String rawPid = kv.getOrDefault("patient_id", "").trim(); //Exige el ID para realizar la actualización de datos
         if (rawPid.isEmpty()) {
@@ -315,132 +903,548 @@ public class ServerProtocol implements Protocol { //Punto de entrada para proces
         String patientId = normalizePatientId(rawPid);
         kv.remove("patient_id");
 
-        Map<String, String> current = findPatientRowById(patientId);
-        if (current == null) {
-            AuditLogger.warn("UPDATE_PATIENT_NOT_FOUND", Map.of("patient_id", patientId));
-            return "ERROR;not_found;" + patientId;
-        }//Verifica que exista o no esta desactivado el usuario, si lo esta, no se puede actualizar
-        if ("false".equalsIgnoreCase(current.getOrDefault("active", "true"))) {
-            AuditLogger.warn("UPDATE_BLOCKED_INACTIVE", Map.of("patient_id", patientId));
-            return "ERROR;inactive_patient;" + patientId;
-        }
+        //La verificación de activo, el FASTA y la nueva versión de la fila se hacen con el lock del paciente
+        patientLocks.lock(patientId);
+        try {
+            Map<String, String> current = findPatientRowById(patientId);
+            if (current == null) {
+                AuditLogger.warn("UPDATE_PATIENT_NOT_FOUND", Map.of("patient_id", patientId));
+                return "ERROR;not_found;" + patientId;
+            }//Verifica que exista o no esta desactivado el usuario, si lo esta, no se puede actualizar
+            if ("false".equalsIgnoreCase(current.getOrDefault("active", "true"))) {
+                AuditLogger.warn("UPDATE_BLOCKED_INACTIVE", Map.of("patient_id", patientId));
+                return "ERROR;inactive_patient;" + patientId;
+            }
 
-        String newSex = kv.get("sex"); //Si incluyen el SEX en un cambio debe de ser F o M
-        if (newSex != null && !newSex.isBlank() && !newSex.matches("(?i)M|F")) {
-            AuditLogger.warn("UPDATE_PATIENT_BAD_INPUT", Map.of("reason","invalid_sex","sex", newSex));
-            return "ERROR;invalid_sex;expected M or F";
+            String newSex = kv.get("sex"); //Si incluyen el SEX en un cambio debe de ser F o M
+            if (newSex != null && !newSex.isBlank() && !newSex.matches("(?i)M|F")) {
+                AuditLogger.warn("UPDATE_PATIENT_BAD_INPUT", Map.of("reason","invalid_sex","sex", newSex));
+                return "ERROR;invalid_sex;expected M or F";
+            }
+            String newAge = kv.get("age");// Si incluyen el AGE en un cambio debe de ser entero
+            if (newAge != null && !newAge.isBlank() && !newAge.matches("\\d+")) {
+                AuditLogger.warn("UPDATE_PATIENT_BAD_INPUT", Map.of("reason","invalid_age","age", newAge));
+                return "ERROR;invalid_age;expected integer";
+            }
+
+            String newFastaContent = kv.remove("fasta_content");
+            if (newFastaContent != null) ServerMetrics.fastaBytes(newFastaContent.length());
+            FastaStore.Blob newBlob = null;
+
+            //Si el request trae fasta_content:
+            //Se limpia (solo A/C/G/T/N, mayúsculas).
+            //Si queda algo, se guarda en el FastaStore (SHA-256 y tamaños en la misma escritura) y se preparan los metadatos para escribir en el CSV:
+            //checksum_fasta, file_size_bytes, fasta_path, sequence_bases, sequence_sha256.
+            //Si la limpieza lo deja vacío, no se toca el archivo.
+
+            if (newFastaContent != null && !newFastaContent.isBlank()) {
+                PackedSequence cleaned = PackedSequence.clean(newFastaContent);
+                if (!cleaned.isEmpty()) {
+                    newBlob = fastaStore.put(patientId, cleaned);
+                    System.out.println(" FASTA actualizado en: " + newBlob.path().toAbsolutePath());
+                } else {
+                    System.out.println(" FASTA en UPDATE quedó vacío tras limpieza. No se actualizará archivo.");
+                }
+            }
+
+            Set<String> updatable = Set.of("full_name","document_id","F","contact_email","age","sex","clinical_notes","active"); //Archivos que si se actualizaran, si se pueden actualizar
+            final FastaStore.Blob blob = newBlob;
+            final String finalFastaPath = blob == null ? null : blob.path().toString();
+            String[] replacedFasta = new String[1]; //fasta_path de la versión anterior, si este UPDATE lo cambia
+
+
+            //Lee la versión vigente por el índice,
+            //Modifica el Map de la fila objetivo con el Consumer,
+            //Agrega la nueva versión al final del CSV.
+            boolean ok;
+            try {
+                ok = updateRow(patientId, row -> {
+                    for (Map.Entry<String, String> e : kv.entrySet()) {
+                        String k = e.getKey();
+                        String v = e.getValue();
+                        if (v == null || v.isBlank()) continue;
+                        if (k.equalsIgnoreCase("disease_id")) k = "F";
+                        if (updatable.contains(k)) row.put(k, v.trim());
+                    }
+                    if (blob != null) replacedFasta[0] = putFasta(row, blob);
+                });
+            } catch (IOException e) {
+                fastaStore.release(finalFastaPath);
+                throw e;
+            }
+            fastaStore.release(ok ? replacedFasta[0] : finalFastaPath);
+
+            if (!ok) {
+                AuditLogger.warn("UPDATE_PATIENT_NOT_FOUND", Map.of("patient_id", patientId));
+                return "ERROR;not_found;" + patientId;
+            }
+
+            AuditLogger.info("UPDATE_PATIENT_OK", new HashMap<String,String>() {{
+                put("patient_id", patientId);
+                put("fields", kv.keySet().toString());//Audita el exito o el error de la operacion, con su ID y el FASTA actualizado
+                put("fasta_updated", String.valueOf(finalFastaPath != null));
+            }});
+            return "OK;patient_updated;" + patientId;
+        } finally {
+            patientLocks.unlock(patientId);
         }
-        String newAge = kv.get("age");// Si incluyen el AGE en un cambio debe de ser entero
-        if (newAge != null && !newAge.isBlank() && !newAge.matches("\\d+")) {
-            AuditLogger.warn("UPDATE_PATIENT_BAD_INPUT", Map.of("reason","invalid_age","age", newAge));
-            return "ERROR;invalid_age;expected integer";
+    }
+
+    // ======= DEACTIVATE_PATIENT =======
+    private String handleDeactivatePatient(Map<String, String> kv) throws IOException {
+        String rawPid = kv.getOrDefault("patient_id", "").trim();//Se necesita el ID del paciete, si no muestra error
+        if (rawPid.isEmpty()) {
+            AuditLogger.warn("DEACTIVATE_BAD_INPUT", Map.of("reason","missing_patient_id")); //Audita el log para su trazabilidad
+            return "ERROR;missing_patient_id";
         }
+        String patientId = normalizePatientId(rawPid);
 
-        String newFastaContent = kv.remove("fasta_content");
-        String checksumFasta = null, fileSizeBytes = null, fastaPath = null;
-
-        //Si el request trae fasta_content:
-        //Se limpia (solo A/C/G/T/N, mayúsculas).
-        //Si queda algo, se sobrescribe patient_<id>.fasta, se calcula SHA-256 y tamaño, y se preparan los 3 metadatos para escribir en el CSV:
-        //checksum_fasta, file_size_bytes, fasta_path.
-        //Si la limpieza lo deja vacío, no se toca el archivo.
-
-        if (newFastaContent != null && !newFastaContent.isBlank()) {
-            String cleaned = FastaIO.cleanSequence(newFastaContent);
-            if (!cleaned.isEmpty()) {
-                Path fastaFile = PATIENT_FASTA_DIR.resolve("patient_" + patientId + ".fasta");
-                FastaIO.writePatientFasta(fastaFile, patientId, cleaned);
-                byte[] data = Files.readAllBytes(fastaFile);
-                checksumFasta = FastaIO.sha256Hex(data);
-                fileSizeBytes = String.valueOf(data.length);
-                fastaPath     = fastaFile.toString();
-                System.out.println(" FASTA actualizado en: " + fastaFile.toAbsolutePath());
-            } else {
-                System.out.println(" FASTA en UPDATE quedó vacío tras limpieza. No se actualizará archivo.");
+        //BUSCA AL PACIENTE, SI LO ENCUENTRA PASA DE ACTIVE A FLASE SI NO MUESTRA ERROR
+        //Con el lock del paciente, así "ya inactivo" y la escritura no se intercalan con otra modificación
+        patientLocks.lock(patientId);
+        try {
+            Map<String, String> row = findPatientRowById(patientId);
+            if (row == null) {
+                AuditLogger.warn("DEACTIVATE_NOT_FOUND", Map.of("patient_id", patientId));
+                return "ERROR;not_found;" + patientId;
             }
+            if ("false".equalsIgnoreCase(row.getOrDefault("active", "true"))) {
+                AuditLogger.warn("DEACTIVATE_ALREADY_INACTIVE", Map.of("patient_id", patientId));
+                return "ERROR;already_inactive;" + patientId;
+            }
+
+            boolean ok = updateRow(patientId, r -> r.put("active", "false"));
+            if (!ok) {
+                AuditLogger.warn("DEACTIVATE_NOT_FOUND", Map.of("patient_id", patientId));
+                return "ERROR;not_found;" + patientId; //Agrega la versión con active=false al final del log
+            }
+        } finally {
+            patientLocks.unlock(patientId);
         }
 
-        Set<String> updatable = Set.of("full_name","document_id","F","contact_email","age","sex","clinical_notes","active"); //Archivos que si se actualizaran, si se pueden actualizar
-        final String finalChecksum = checksumFasta;
-        final String finalFileSize = fileSizeBytes;
-        final String finalFastaPath = fastaPath;
+        AuditLogger.info("DEACTIVATE_PATIENT_OK", Map.of("patient_id", patientId));
+        return "OK;patient_deactivated;" + patientId; //Auditoria y respuesta
+    }
 
+    // ======= FASTA por partes =======
+    private String handleFastaBegin(Map<String, String> kv) throws Exception {
+        String rawPid = kv.getOrDefault("patient_id", "").trim();
+        if (rawPid.isEmpty()) {
+            AuditLogger.warn("FASTA_BEGIN_BAD_INPUT", Map.of("reason","missing_patient_id"));
+            return "ERROR;missing_patient_id";
+        }
+        String patientId = normalizePatientId(rawPid);
+        Map<String, String> row = findPatientRowById(patientId);
+        if (row == null) {
+            AuditLogger.warn("FASTA_BEGIN_NOT_FOUND", Map.of("patient_id", patientId));
+            return "ERROR;not_found;" + patientId;
+        }
+        if ("false".equalsIgnoreCase(row.getOrDefault("active", "true"))) {
+            AuditLogger.warn("FASTA_BEGIN_INACTIVE", Map.of("patient_id", patientId));
+            return "ERROR;inactive_patient;" + patientId;
+        }
 
-        //Lee todo el CSV en memoria,
-        //Modifica el Map de la fila objetivo con el Consumer,
-        //Reescribe el CSV completo.
-        boolean ok = updateRow(patientId, row -> {
-            for (Map.Entry<String, String> e : kv.entrySet()) {
-                String k = e.getKey();
-                String v = e.getValue();
-                if (v == null || v.isBlank()) continue;
-                if (k.equalsIgnoreCase("disease_id")) k = "F";
-                if (updatable.contains(k)) row.put(k, v.trim());
-            }
-            if (finalChecksum != null) row.put("checksum_fasta", finalChecksum);
-            if (finalFileSize != null) row.put("file_size_bytes", finalFileSize);
-            if (finalFastaPath != null) row.put("fasta_path", finalFastaPath);
-        });
+        expireIdleUploads();
+        String streamId = genStreamId();
+        uploads.put(streamId, FastaUploadSession.open(streamId, patientId, fastaStore.newTempFile("upload"), diseaseDb));
+        AuditLogger.info("FASTA_BEGIN_OK", Map.of("patient_id", patientId, "stream_id", streamId));
+        return "OK;fasta_stream_opened;" + streamId;
+    }
+
+    private String handleFastaChunk(Map<String, String> kv) throws Exception {
+        String streamId = kv.getOrDefault("stream_id", "");
+        FastaUploadSession session = uploads.get(streamId);
+        if (session == null) return "ERROR;unknown_stream;" + streamId;
+        String data = kv.getOrDefault("data", "");
+        ServerMetrics.fastaBytes(data.length());
+        session.append(data);
+        return "OK;fasta_chunk;" + streamId + ";bases=" + session.bases();
+    }
+
+    //Cierra el stream: mueve el archivo a su ruta final, actualiza la fila del paciente y registra detecciones
+    private String handleFastaEnd(Map<String, String> kv) throws Exception {
+        String streamId = kv.getOrDefault("stream_id", "");
+        FastaUploadSession session = uploads.remove(streamId);
+        if (session == null) return "ERROR;unknown_stream;" + streamId;
+        String patientId = session.patientId();
+        if (session.bases() == 0) {
+            session.abort();
+            AuditLogger.warn("FASTA_END_EMPTY", Map.of("patient_id", patientId, "stream_id", streamId));
+            return "ERROR;empty_fasta_stream;" + streamId;
+        }
 
+        patientLocks.lock(patientId);
+        try {
+            return storeUpload(session, streamId);
+        } finally {
+            patientLocks.unlock(patientId);
+        }
+    }
+
+    //Segunda mitad de FASTA_END, con el lock del paciente: el archivo y la fila no se cruzan con un UPDATE_PATIENT
+    private String storeUpload(FastaUploadSession session, String streamId) throws Exception {
+        String patientId = session.patientId();
+        FastaStore.Blob blob = session.finish(fastaStore); //Queda en el almacén con un uso para esta fila
+        String fastaPath = blob.path().toString();
+        List<String[]> hits = session.diseaseDb().hits(session.found()); //La foto con la que se abrió el stream
+        String[] replacedFasta = new String[1];
+        boolean ok;
+        try {
+            ok = updateRow(patientId, row -> {
+                replacedFasta[0] = putFasta(row, blob);
+                if (!hits.isEmpty() && row.getOrDefault("F", "").isBlank()) row.put("F", hits.get(0)[0]);
+            });
+        } catch (IOException e) {
+            fastaStore.release(fastaPath);
+            throw e;
+        }
+        fastaStore.release(ok ? replacedFasta[0] : fastaPath);
         if (!ok) {
-            AuditLogger.warn("UPDATE_PATIENT_NOT_FOUND", Map.of("patient_id", patientId));
+            AuditLogger.warn("FASTA_END_NOT_FOUND", Map.of("patient_id", patientId));
             return "ERROR;not_found;" + patientId;
         }
+        for (String[] hit : hits) {
+            DetectionStore.append(detectionIndex, genDetectionId(), patientId, hit[0], hit[2], hit[1]);
+        }
 
-        AuditLogger.info("UPDATE_PATIENT_OK", new HashMap<String,String>() {{
+        System.out.println("🧬 FASTA por partes guardado en: " + blob.path().toAbsolutePath());
+        AuditLogger.info("FASTA_END_OK", new HashMap<String,String>() {{
             put("patient_id", patientId);
-            put("fields", kv.keySet().toString());//Audita el exito o el error de la operacion, con su ID y el FASTA actualizado
-            put("fasta_updated", String.valueOf(finalFastaPath != null));
+            put("stream_id", streamId);
+            put("bases", String.valueOf(session.bases()));
+            put("checksum", blob.fastaChecksum());
+            put("diagnosis_count", String.valueOf(hits.size()));
         }});
-        return "OK;patient_updated;" + patientId;
+        return "OK;fasta_stored;" + patientId + ";bases=" + session.bases() + ";checksum=" + blob.fastaChecksum()
+                + buildDiagnosisPayload(hits);
     }
 
-    // ======= DEACTIVATE_PATIENT =======
-    private String handleDeactivatePatient(String[] argParts) {
-        Map<String, String> kv = parseKeyValues(argParts); //Convierte las claves a MAP
-        String rawPid = kv.getOrDefault("patient_id", "").trim();//Se necesita el ID del paciete, si no muestra error
+    //Pone en la fila los metadatos de un FASTA recién guardado; devuelve el fasta_path que reemplaza
+    private static String putFasta(Map<String, String> row, FastaStore.Blob blob) {
+        row.put("checksum_fasta", blob.fastaChecksum());
+        row.put("file_size_bytes", String.valueOf(blob.fastaBytes()));
+        row.put("sequence_bases", String.valueOf(blob.bases()));
+        row.put("sequence_sha256", blob.sequenceSha256());
+        return row.put("fasta_path", blob.path().toString());
+    }
+
+    private String handleFastaAbort(Map<String, String> kv) {
+        String streamId = kv.getOrDefault("stream_id", "");
+        FastaUploadSession session = uploads.remove(streamId);
+        if (session == null) return "ERROR;unknown_stream;" + streamId;
+        session.abort();
+        AuditLogger.info("FASTA_ABORT_OK", Map.of("patient_id", session.patientId(), "stream_id", streamId));
+        return "OK;fasta_stream_aborted;" + streamId;
+    }
+
+    //Descarta sesiones abandonadas (cliente desconectado a mitad de la subida)
+    private void expireIdleUploads() {
+        long limit = System.currentTimeMillis() - UPLOAD_IDLE_TIMEOUT_MS;
+        uploads.values().removeIf(s -> {
+            if (s.lastTouched() >= limit) return false;
+            s.abort();
+            AuditLogger.warn("FASTA_STREAM_EXPIRED", Map.of("patient_id", s.patientId(), "stream_id", s.streamId()));
+            return true;
+        });
+    }
+
+    //Tramo [start, end) de la secuencia del paciente sin cargarla completa (del .pseq solo se leen los bloques del tramo)
+    private String handleGetSequenceRange(Map<String, String> kv) throws IOException {
+        String rawPid = kv.getOrDefault("patient_id", "").trim();
         if (rawPid.isEmpty()) {
-            AuditLogger.warn("DEACTIVATE_BAD_INPUT", Map.of("reason","missing_patient_id")); //Audita el log para su trazabilidad
+            AuditLogger.warn("GET_SEQUENCE_RANGE_BAD_INPUT", Map.of("reason","missing_patient_id"));
             return "ERROR;missing_patient_id";
         }
+        long start, end;
+        try {
+            start = Long.parseLong(kv.getOrDefault("start", "0").trim());
+            end = Long.parseLong(kv.getOrDefault("end", String.valueOf(start + MAX_SEQUENCE_RANGE)).trim());
+        } catch (NumberFormatException e) {
+            return "ERROR;invalid_range;start and end must be integers";
+        }
+        if (start < 0 || end < start) return "ERROR;invalid_range;expected 0 <= start <= end";
+        if (end - start > MAX_SEQUENCE_RANGE) return "ERROR;range_too_large;max=" + MAX_SEQUENCE_RANGE;
+
         String patientId = normalizePatientId(rawPid);
+        Map<String, String> row = findPatientRowPinningFasta(patientId);
+        if (row == null) {
+            AuditLogger.warn("GET_SEQUENCE_RANGE_NOT_FOUND", Map.of("patient_id", patientId));
+            return "ERROR;not_found;" + patientId;
+        }
+        String fastaPath = row.get("fasta_path");
+        if (fastaPath.isBlank()) {
+            return "ERROR;no_fasta;" + patientId;
+        }
 
-        //BUSCA AL PACIENTE, SI LO ENCUENTRA PASA DE ACTIVE A FLASE SI NO MUESTRA ERROR
-        Map<String, String> row = findPatientRowById(patientId);
+        long total, from, to;
+        StringBuilder bases;
+        try {
+            BaseSequence sequence = FastaIO.openPatientSequence(Paths.get(fastaPath));
+            total = sequence.baseCount();
+            from = Math.min(start, total);
+            to = Math.min(end, total); //Un rango que pasa del final se recorta
+            bases = new StringBuilder((int) (to - from));
+            BaseSequence.Cursor cursor = sequence.cursor(from);
+            for (long i = from; i < to; i++) bases.append("ACGTN".charAt(cursor.next()));
+        } finally {
+            fastaStore.unpin(fastaPath);
+        }
+
+        AuditLogger.info("GET_SEQUENCE_RANGE_OK", Map.of(
+                "patient_id", patientId,
+                "start", String.valueOf(from),
+                "end", String.valueOf(to)
+        ));
+        return "OK;sequence_range;" + patientId + ";start=" + from + "|end=" + to + "|bases=" + total
+                + ";sequence=" + bases;
+    }
+
+    //El almacén guarda .pseq; esta es la salida en texto plano para herramientas que esperan un FASTA
+    private String handleExportFasta(Map<String, String> kv) throws IOException {
+        String rawPid = kv.getOrDefault("patient_id", "").trim();
+        if (rawPid.isEmpty()) {
+            AuditLogger.warn("EXPORT_FASTA_BAD_INPUT", Map.of("reason","missing_patient_id"));
+            return "ERROR;missing_patient_id";
+        }
+        String patientId = normalizePatientId(rawPid);
+        Map<String, String> row = findPatientRowPinningFasta(patientId);
         if (row == null) {
-            AuditLogger.warn("DEACTIVATE_NOT_FOUND", Map.of("patient_id", patientId));
+            AuditLogger.warn("EXPORT_FASTA_NOT_FOUND", Map.of("patient_id", patientId));
             return "ERROR;not_found;" + patientId;
         }
-        if ("false".equalsIgnoreCase(row.getOrDefault("active", "true"))) {
-            AuditLogger.warn("DEACTIVATE_ALREADY_INACTIVE", Map.of("patient_id", patientId));
-            return "ERROR;already_inactive;" + patientId;
+        String fastaPath = row.get("fasta_path");
+        if (fastaPath.isBlank()) {
+            return "ERROR;no_fasta;" + patientId;
         }
 
-        boolean ok = updateRow(patientId, r -> r.put("active", "false"));
-        if (!ok) {
-            AuditLogger.warn("DEACTIVATE_NOT_FOUND", Map.of("patient_id", patientId));
-            return "ERROR;not_found;" + patientId; //Lee todo el CSV, modifica la fila y reescribe el archivo completo para su actualización
+        BaseSequence sequence;
+        Path target;
+        long bytes;
+        try {
+            sequence = FastaIO.openPatientSequence(Paths.get(fastaPath));
+            Path exportDir = patientFastaDir.resolve("export");
+            FastaIO.ensureDir(exportDir);
+            target = exportDir.resolve("patient_" + patientId + ".fasta");
+            bytes = FastaIO.writeFasta(target, patientId, sequence);
+        } finally {
+            fastaStore.unpin(fastaPath);
         }
 
-        AuditLogger.info("DEACTIVATE_PATIENT_OK", Map.of("patient_id", patientId));
-        return "OK;patient_deactivated;" + patientId; //Auditoria y respuesta
+        System.out.println("🧬 FASTA exportado en: " + target.toAbsolutePath());
+        AuditLogger.info("EXPORT_FASTA_OK", Map.of(
+                "patient_id", patientId,
+                "bases", String.valueOf(sequence.baseCount()),
+                "bytes", String.valueOf(bytes)
+        ));
+        return "OK;fasta_exported;" + patientId + ";path=" + target + "|bases=" + sequence.baseCount() + "|bytes=" + bytes;
     }
 
-    // ======= Auxiliares de diagnóstico =======
-    private List<String[]> detectAllSignatures(String cleaned) {
-        List<String[]> hits = new ArrayList<>();
-        if (!cleaned.isEmpty() && !signatures.isEmpty()) {
-            for (Map.Entry<String, String> e : signatures.entrySet()) {
-                String pattern = e.getKey();
-                String dId = e.getValue().toUpperCase(Locale.ROOT);
-                if (cleaned.contains(pattern)) hits.add(new String[]{ dId, pattern });
+    //Similitud del genoma del paciente con cada referencia del catálogo: fracción de los k-mers de la referencia
+    //que aparecen en el paciente (contención). Los genomas grandes se recorren en paralelo por tramos.
+    //Devuelve las max_results mejores (por defecto 20, tope 200); score_count es el total antes de recortar.
+    private String handleScorePatient(Map<String, String> kv) throws IOException {
+        String rawPid = kv.getOrDefault("patient_id", "").trim();
+        if (rawPid.isEmpty()) {
+            AuditLogger.warn("SCORE_PATIENT_BAD_INPUT", Map.of("reason","missing_patient_id"));
+            return "ERROR;missing_patient_id";
+        }
+        double minContainment;
+        try {
+            minContainment = Double.parseDouble(kv.getOrDefault("min_containment", "0"));
+        } catch (NumberFormatException e) {
+            return "ERROR;invalid_min_containment;expected number between 0 and 1";
+        }
+        int maxResults;
+        try {
+            maxResults = Integer.parseInt(kv.getOrDefault("max_results", String.valueOf(SCORE_DEFAULT_MAX_RESULTS)).trim());
+        } catch (NumberFormatException e) {
+            return "ERROR;invalid_max_results;expected integer between 1 and " + SCORE_MAX_RESULTS;
+        }
+        maxResults = Math.max(1, Math.min(maxResults, SCORE_MAX_RESULTS));
+
+        String patientId = normalizePatientId(rawPid);
+        Map<String, String> row = findPatientRowPinningFasta(patientId);
+        if (row == null) {
+            AuditLogger.warn("SCORE_PATIENT_NOT_FOUND", Map.of("patient_id", patientId));
+            return "ERROR;not_found;" + patientId;
+        }
+        String fastaPath = row.get("fasta_path");
+        if (fastaPath.isBlank()) {
+            return "ERROR;no_fasta;" + patientId;
+        }
+
+        DiseaseDB db = diseaseDb; //Índice y nombres de la misma foto
+        KmerIndex index = db.getKmerIndex();
+        long start = System.nanoTime();
+        BaseSequence genome;
+        List<KmerIndex.Score> scores;
+        try {
+            genome = FastaIO.openPatientSequence(Paths.get(fastaPath));
+            scores = index.score(genome);
+        } finally {
+            fastaStore.unpin(fastaPath);
+        }
+        scores.removeIf(sc -> sc.containment() < minContainment);
+        int total = scores.size();
+        List<KmerIndex.Score> top = scores.subList(0, Math.min(total, maxResults)); //Ya vienen de mayor a menor
+        long ms = (System.nanoTime() - start) / 1_000_000;
+
+        StringBuilder sb = new StringBuilder("OK;patient_scores;").append(patientId)
+                .append(";k=").append(KmerIndex.K)
+                .append(";references=").append(index.references())
+                .append(";bases=").append(genome.baseCount())
+                .append(";score_count=").append(total)
+                .append(";returned=").append(top.size());
+        int idx = 1;
+        for (KmerIndex.Score sc : top) {
+            sb.append(";score_").append(idx).append("_id=").append(sc.diseaseId)
+                    .append("|score_").append(idx).append("_name=").append(db.diseaseName(sc.diseaseId))
+                    .append("|score_").append(idx).append("_containment=")
+                    .append(String.format(Locale.ROOT, "%.4f", sc.containment()))
+                    .append("|score_").append(idx).append("_shared_kmers=").append(sc.sharedKmers)
+                    .append("|score_").append(idx).append("_reference_kmers=").append(sc.referenceKmers);
+            idx++;
+        }
+        AuditLogger.info("SCORE_PATIENT_OK", Map.of(
+                "patient_id", patientId,
+                "bases", String.valueOf(genome.baseCount()),
+                "score_count", String.valueOf(total),
+                "returned", String.valueOf(top.size()),
+                "top_disease", scores.isEmpty() ? "" : scores.get(0).diseaseId,
+                "ms", String.valueOf(ms)
+        ));
+        return sb.toString();
+    }
+
+    private String handleSearchPattern(Map<String, String> kv) throws IOException {
+        String pattern = kv.getOrDefault("pattern", "").trim().toUpperCase(Locale.ROOT);
+        if (pattern.isEmpty() || pattern.length() > PatternSearch.MAX_PATTERN || !pattern.matches("[ACGTN]+")) {
+            AuditLogger.warn("SEARCH_PATTERN_BAD_INPUT", Map.of("pattern", pattern));
+            return "ERROR;invalid_pattern;expected 1-" + PatternSearch.MAX_PATTERN + " bases (ACGTN)";
+        }
+        int maxResults;
+        long timeoutMs;
+        try {
+            maxResults = Integer.parseInt(kv.getOrDefault("max_results", String.valueOf(SEARCH_DEFAULT_MAX_RESULTS)));
+            timeoutMs = Long.parseLong(kv.getOrDefault("timeout_ms", String.valueOf(SEARCH_DEFAULT_TIMEOUT_MS)));
+        } catch (NumberFormatException e) {
+            return "ERROR;invalid_search_limits;max_results and timeout_ms must be integers";
+        }
+        maxResults = Math.max(1, Math.min(maxResults, SEARCH_MAX_RESULTS));
+        timeoutMs = Math.max(1, Math.min(timeoutMs, SEARCH_MAX_TIMEOUT_MS));
+
+        expireIdleSearches();
+        long running = searches.values().stream().filter(sr -> !sr.finished()).count();
+        if (running >= MAX_ACTIVE_SEARCHES) {
+            AuditLogger.warn("SEARCH_PATTERN_REJECTED", Map.of("running", String.valueOf(running)));
+            return "ERROR;too_many_searches;max=" + MAX_ACTIVE_SEARCHES;
+        }
+
+        //Pacientes activos con FASTA, agrupados por archivo: una secuencia compartida se recorre una vez.
+        //Cada archivo queda tomado en el FastaStore hasta que la búsqueda lo recorre (o lo saltea al detenerse);
+        //uno que ya no está es de una versión reemplazada mientras se armaba la lista y se deja afuera.
+        Map<Path, List<String>> files = new LinkedHashMap<>();
+        for (Map<String, String> row : currentPatientRows("patient_id", "fasta_path", "active")) {
+            String fastaPath = row.getOrDefault("fasta_path", "");
+            if (fastaPath.isBlank() || "false".equalsIgnoreCase(row.getOrDefault("active", "true"))) continue;
+            Path file = Paths.get(fastaPath);
+            List<String> ids = files.get(file);
+            if (ids == null) {
+                if (!fastaStore.pin(fastaPath)) continue;
+                files.put(file, ids = new ArrayList<>());
             }
-            hits.sort((a, b) -> Integer.compare(
-                    diseaseSeverity.getOrDefault(b[0], 0),
-                    diseaseSeverity.getOrDefault(a[0], 0)
-            ));
+            ids.add(row.get("patient_id"));
         }
-        return hits;
+        String searchId = "S-" + UUID.randomUUID();
+        PatternSearch search = PatternSearch.start(searchPool, searchId, pattern, files, maxResults, timeoutMs,
+                file -> fastaStore.unpin(file.toString()));
+        searches.put(searchId, search);
+        AuditLogger.info("SEARCH_PATTERN_STARTED", Map.of(
+                "search_id", searchId,
+                "pattern", pattern,
+                "files", String.valueOf(files.size())
+        ));
+        return "OK;search_started;" + searchId;
+    }
+
+    //Una página de resultados: status=running mientras siga, después done/cancelled/timeout/limit.
+    //Cuando terminó y ya no quedan resultados, la búsqueda se olvida.
+    private String handleSearchResults(Map<String, String> kv) {
+        String searchId = kv.getOrDefault("search_id", "");
+        PatternSearch search = searches.get(searchId);
+        if (search == null) return "ERROR;unknown_search;" + searchId;
+        int max;
+        try {
+            max = Integer.parseInt(kv.getOrDefault("max", String.valueOf(SEARCH_PAGE)));
+        } catch (NumberFormatException e) {
+            return "ERROR;invalid_max;expected integer";
+        }
+        boolean finished = search.finished(); //Se lee antes de retirar: si terminó, esta página ve todo lo que quedó
+        List<PatternSearch.Match> page = search.poll(Math.max(1, Math.min(max, SEARCH_MAX_PAGE)));
+        boolean last = finished && search.drained();
+        if (last) searches.remove(searchId);
+
+        StringBuilder sb = new StringBuilder("OK;search_results;").append(searchId)
+                .append(";status=").append(search.status().name().toLowerCase(Locale.ROOT))
+                .append("|files=").append(search.scannedFiles()).append('/').append(search.totalFiles())
+                .append("|patients=").append(search.matchedPatients())
+                .append("|more=").append(!last)
+                .append(";result_count=").append(page.size());
+        int idx = 1;
+        for (PatternSearch.Match m : page) {
+            sb.append(";match_").append(idx).append("_patient_id=").append(m.patientId)
+                    .append("|match_").append(idx).append("_count=").append(m.count)
+                    .append("|match_").append(idx).append("_positions=");
+            for (int i = 0; i < m.positions.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(m.positions[i]);
+            }
+            idx++;
+        }
+        return sb.toString();
+    }
+
+    private String handleCancelSearch(Map<String, String> kv) {
+        String searchId = kv.getOrDefault("search_id", "");
+        PatternSearch search = searches.remove(searchId);
+        if (search == null) return "ERROR;unknown_search;" + searchId;
+        search.cancel();
+        AuditLogger.info("SEARCH_PATTERN_CANCELLED", Map.of("search_id", searchId));
+        return "OK;search_cancelled;" + searchId;
+    }
+
+    //Filas vigentes de todos los pacientes, ordenadas por patient_id (una lectura directa por fila con el índice).
+    //Cada mapa trae solo las columnas pedidas: las demás no se decodifican.
+    private List<Map<String, String>> currentPatientRows(String... columnNames) throws IOException {
+        int[] cols = columns(columnNames);
+        List<Map<String, String>> rows = new ArrayList<>();
+        Map<String, Long> offsets = new TreeMap<>(patientIndex.snapshotOffsets());
+        CsvRecord record = new CsvRecord(); //Un solo búfer para todo el recorrido
+        try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(csvPath, StandardOpenOption.READ)) {
+            for (Map.Entry<String, Long> e : offsets.entrySet()) {
+                Map<String, String> row = readRowAt(e.getValue(), e.getKey(), ch, record, cols);
+                if (row == null) row = findPatientRowById(e.getKey()); //El CSV se compactó mientras tanto
+                if (row != null) rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    //Búsquedas cuyos resultados nadie retira se cancelan y descartan, igual que las subidas abandonadas
+    private void expireIdleSearches() {
+        long limit = System.currentTimeMillis() - UPLOAD_IDLE_TIMEOUT_MS;
+        searches.values().removeIf(sr -> {
+            if (sr.lastTouched() >= limit) return false;
+            sr.cancel();
+            AuditLogger.warn("SEARCH_PATTERN_EXPIRED", Map.of("search_id", sr.searchId()));
+            return true;
+        });
+    }
+
+    // ======= Auxiliares de diagnóstico =======
+    //Visible en el paquete para los benchmarks (módulo benchmarks/)
+    List<String[]> detectAllSignatures(PackedSequence cleaned) {
+        return diseaseDb.detect(cleaned);
     }
 
 
@@ -458,7 +1462,7 @@ public class ServerProtocol implements Protocol { //Punto de entrada para proces
         for (String[] hit : hits) {
             String dId   = hit[0];
             String pat   = hit[1];
-            String dName = Optional.ofNullable(diseaseNames.get(dId)).filter(s -> !s.isBlank()).orElse(dId);
+            String dName = hit[2];
             sb.append(";diagnosis_").append(idx).append("_id=").append(dId)
                     .append("|diagnosis_").append(idx).append("_name=").append(dName)
                     .append("|diagnosis_").append(idx).append("_pattern=").append(pat);
@@ -469,375 +1473,187 @@ public class ServerProtocol implements Protocol { //Punto de entrada para proces
     }
 
     //Busca una fila de paciente en el CSV y la devuelve como Map<columna, valor>.
+    //Usa el índice primario: O(1) para saber si existe y una lectura directa en su offset.
     private Map<String, String> findPatientRowById(String patientId) {
-        try (BufferedReader br = Files.newBufferedReader(CSV_PATH, StandardCharsets.UTF_8)) { //Abre patiens.csv en UTF-8 y asegura el cierre automático del lector.
-            String header = br.readLine(); //Leer y validar el header
-            if (header == null) return null;
-            //Consume la primera línea (cabecera).
-            //Si el archivo está vacío → no hay datos.
-
-            String line;
-            while ((line = br.readLine()) != null) { //Recorrer cada línea (cada paciente)
-                String[] vals = CsvIO.splitCsvSimple(line, HEADERS.length); //Parsear la línea con soporte de comillas
-                if (vals.length != HEADERS.length) continue;
-
-                Map<String,String> row = new HashMap<>();//Construir el Map columna → valor
-                for (int i = 0; i < HEADERS.length; i++) { //Recorre en orden el array HEADERS para asignar cada columna.
-                    row.put(HEADERS[i], CsvIO.unquote(vals[i]));
-                }
-                if (patientId.equals(row.get("patient_id"))) return row;//Si el patient_id coincide → devuelve el mapa completo de esa fila.
-                // Si no, sigue iterando.
+        try {
+            Map<String, String> row = readRowAt(patientIndex.offsetOf(patientId), patientId);
+            if (row != null || !patientIndex.contains(patientId)) return row;
+            //El offset quedó viejo (el CSV se reescribió mientras leíamos): se reintenta con el archivo quieto
+            synchronized (csvLock) {
+                return readRowAt(patientIndex.offsetOf(patientId), patientId);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
         return null;
-    }//No encontrad0
-    // Si termina el archivo sin coincidencia → return null.
+    }//No encontrado -> null
 
-
-
-    //Modificar una fila existente en el CSV de pacientes y reescribir todo el archivo con la versión actualizada.
-    private boolean updateRow(String patientId, java.util.function.Consumer<Map<String,String>> updater) {
-        //patientId: ID del paciente a actualizar.
-        //updater: función (Consumer<Map<String,String>>) que define qué campos modificar en la fila encontrada.
-        //Retorno:
-        //true ->la fila existía y fue actualizada.
-        //false -> no se encontró el paciente → no se reescribió el CSV.
-        List<Map<String,String>> all = readAllRows();
-        //Abre patiens.csv.
-        //Lee cada línea.
-        //Crea un Map<columna, valor> por fila.
-        //Devuelve una List<Map<String,String>>.
-        boolean found = false;
-        for (Map<String,String> row : all) {
-            if (patientId.equals(row.get("patient_id"))) {
-                updater.accept(row);
-                found = true;
-                break;
-            }
-        }
-        //Recorre todas las filas (O(n)).
-        //Si encuentra coincidencia en patient_id:
-        //Ejecuta el Consumer updater sobre la fila.
-        //Marca found=true.
-        //Sale del bucle (solo actualiza una fila).
-        if (!found) return false;
-        writeAllRows(all);//Si no encontró la fila → devuelve false.
-        return true;
-    }
-
-
-    //Cada elemento = un paciente.
-    //Cada paciente = Map<columna, valor>.
-    //Si el CSV está vacío → devuelve una lista vacía, nunca null
-    private List<Map<String,String>> readAllRows() {
-        List<Map<String,String>> out = new ArrayList<>();
-        try (BufferedReader br = Files.newBufferedReader(CSV_PATH, StandardCharsets.UTF_8)) {
-            String header = br.readLine(); //Valida header, si esta vacio devuelve la lista vacia
-            if (header == null) return out;
-            String line;//Recorre cada línea desde la segunda (después del header).Cada line representa un paciente.
-            while ((line = br.readLine()) != null) {
-                String[] vals = CsvIO.splitCsvSimple(line, HEADERS.length);//Divide la línea en columnas. Maneja comillas y comas dentro de campos correctamente.
-                if (vals.length != HEADERS.length) continue;
-                Map<String,String> row = new HashMap<>(); //Inserta en el mapa clave=columna, valor=contenido.
-                for (int i = 0; i < HEADERS.length; i++) {
-                    row.put(HEADERS[i], CsvIO.unquote(vals[i]));
-                }
-                out.add(row);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+    //Fila vigente con su FASTA tomado en el FastaStore (fastaStore.unpin al terminar de leerlo): aunque un UPDATE
+    //lo reemplace mientras tanto, el archivo no se borra. Con el lock del paciente la fila no cambia entre leerla y
+    //tomar el archivo. null si el paciente no existe; fasta_path queda vacío si no tiene FASTA o el archivo no está.
+    private Map<String, String> findPatientRowPinningFasta(String patientId) {
+        patientLocks.lock(patientId);
+        try {
+            Map<String, String> row = findPatientRowById(patientId);
+            if (row != null && !fastaStore.pin(row.getOrDefault("fasta_path", ""))) row.put("fasta_path", "");
+            return row;
+        } finally {
+            patientLocks.unlock(patientId);
         }
-        return out;
     }
 
-    // Reescribe COMPLETAMENTE el CSV de pacientes con las filas provistas.
-    private void writeAllRows(List<Map<String,String>> rows) {
-        try (BufferedWriter bw = Files.newBufferedWriter(CSV_PATH, StandardCharsets.UTF_8,
-                // Si existe, anexa el archivo si no lo crea y lo abre para la escritura
-                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
-
-            // 1) Encabezado fijo CSV
-            bw.write(CSV_HEADER);
-            bw.newLine();
-
-            for (Map<String,String> row : rows) {
-                // Preparamos la lista de valores ordenados según HEADERS
-                List<String> ordered = new ArrayList<>(HEADERS.length);
-                for (String h : HEADERS) {
-                    // si falta una columna, escribe vacío
-                    //escapa comillas, comas, saltos de línea según reglas CSV
-                    ordered.add(CsvIO.csv(row.getOrDefault(h, "")));
-                }
-                // Unimos por coma y escribimos la línea
-                bw.write(String.join(",", ordered));
-                bw.newLine();
-            }
-        } catch (IOException e) {
-            // Mnesaje de Excepcion
-            throw new RuntimeException("No pude reescribir el CSV", e);
+    //Lee la fila que empieza en 'offset' y la devuelve solo si corresponde a ese patient_id
+    private Map<String, String> readRowAt(Long offset, String patientId) throws IOException {
+        if (offset == null) return null;
+        try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(csvPath, StandardOpenOption.READ)) {
+            return readRowAt(offset, patientId, ch, new CsvRecord(), ALL_COLUMNS);
         }
     }
 
-    // Convierte las claves K-V en map
-    private static Map<String, String> parseKeyValues(String[] arr) {
-        Map<String, String> map = new HashMap<>();
-        for (String s : arr) {
-            // Busca el primer = como separador
-            int idx = s.indexOf('=');
-            if (idx > 0) {
-                String k = s.substring(0, idx).trim();       // clave a la izquierda
-                String v = s.substring(idx + 1).trim();      // valor a la derecha
-                map.put(k, v);
-            }
-        }
-        return map;
+    //Lee la fila en 'record' (búfer reutilizable) y arma el mapa solo con las columnas pedidas (posiciones en HEADERS).
+    //El patient_id se compara en bytes: una fila que no corresponde no decodifica ninguna columna.
+    private static Map<String, String> readRowAt(long offset, String patientId, java.nio.channels.FileChannel ch,
+                                                 CsvRecord record, int[] columns) throws IOException {
+        if (!record.readAt(ch, offset) || record.fieldCount() != HEADERS.length) return null;
+        if (!record.fieldEquals(COL_PATIENT_ID, patientId.getBytes(StandardCharsets.UTF_8))) return null;
+        Map<String,String> row = new HashMap<>();
+        for (int c : columns) row.put(HEADERS[c], record.field(c));
+        return row;
     }
 
-    // Utilidades pequeñas
-    private static String nowIso() { return LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME); }
-    private static String genPatientId() { return "P-" + System.currentTimeMillis(); }
-    private static String genDetectionId() { return "D-" + System.currentTimeMillis(); }
-    // Normaliza IDs permitiendo que el cliente envíe el ID con la P inicial o sin esta
-    private static String normalizePatientId(String raw) { return raw.startsWith("P-") ? raw : ("P-" + raw); }
-}
-
-
-class DiseaseDB {
-    // Mapas precargados desde CSV
-    //diseaseId -> secuencia FASTA de referencia (si hay archivo)
-    private final Map<String, String> catalog = new HashMap<>();
-    // diseaseNames: diseaseId -> nombre
-    private final Map<String, String> diseaseNames = new HashMap<>();
-    // diseaseSeverity: diseaseId -> severidad numérica
-    private final Map<String, Integer> diseaseSeverity = new HashMap<>();
-    // signatures: patrón -> diseaseId
-    private final LinkedHashMap<String, String> signatures = new LinkedHashMap<>();
-
-    // Al construir, carga catálogo de enfermedades y firmas
-    DiseaseDB(Path catalogCsv, Path signaturesCsv) {
-        loadCatalog(catalogCsv);
-        loadSignatures(signaturesCsv);
-    }
-
-    // Getters de mapas precargados
-    Map<String, String> getCatalog() { return catalog; }
-    Map<String, String> getDiseaseNames() { return diseaseNames; }
-    Map<String, Integer> getDiseaseSeverity() { return diseaseSeverity; }
-    LinkedHashMap<String, String> getSignatures() { return signatures; }
-
-    // Carga catalog.csv: nombre, severidad y secuencia de referencia
-    private void loadCatalog(Path catalogCsv) {
-        try (BufferedReader br = Files.newBufferedReader(catalogCsv, StandardCharsets.UTF_8)) {
-            br.readLine();
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (line.trim().isEmpty()) continue;        // ignora líneas en blanco
-                String[] parts = line.split(",");
-                if (parts.length < 3) continue;             // requiere al menos ID, nombre y severidad
-
-                String diseaseId   = parts[0].trim().toUpperCase(Locale.ROOT);
-                String diseaseName = parts[1].trim();
-                String severityStr = parts[2].trim();
-                String fastaFile   = (parts.length >= 4) ? parts[3].trim() : "";
-
-                int sev = 0;
-                try { sev = Integer.parseInt(severityStr); } catch (NumberFormatException ignored) {}
-                //mapas de nombre y severidad
-                diseaseNames.put(diseaseId, diseaseName);
-                diseaseSeverity.put(diseaseId, sev);
-
-                // Si hay ruta de FASTA de referencia, intenta leer y almacenar la secuencia
-                if (!fastaFile.isEmpty()) {
-                    Path ref = Paths.get("src/main/disease_db").resolve(fastaFile).normalize();
-                    if (Files.exists(ref)) {
-                        String sequence = FastaIO.readFasta(ref.toString());
-                        catalog.put(diseaseId, sequence);
-                    } else {
-                        System.out.println("ℹ Referencia no encontrada para " + diseaseId + ": " + ref.toAbsolutePath());
-                    }
-                }
-                System.out.println(" Cargada enfermedad: " + diseaseName + " (" + diseaseId + "), severity=" + sev);
-            }
-        } catch (IOException e) {
-            System.out.println(" No pude cargar catalog.csv: " + e.getMessage());
-        }
+    //Posiciones en HEADERS de las columnas nombradas
+    private static int[] columns(String... names) {
+        int[] cols = new int[names.length];
+        for (int i = 0; i < names.length; i++) cols[i] = Arrays.asList(HEADERS).indexOf(names[i]);
+        return cols;
     }
 
-    // Carga signatures.csv: patrón (clave) -> diseaseId (valor)
-    private void loadSignatures(Path signaturesCsv) {
-        if (!Files.exists(signaturesCsv)) {
-            System.out.println(" No hay signatures.csv; no se hará diagnóstico por firmas.");
-            return;
-        }
-        try (BufferedReader br = Files.newBufferedReader(signaturesCsv, StandardCharsets.UTF_8)) {
-            br.readLine();
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (line.trim().isEmpty()) continue;  // ignora líneas en blanco
-                String[] parts = line.split(",");
-                if (parts.length < 2) continue;       // requiere patrón y diseaseId
-
-                // Se almacenan en mayúsculas para comparaciones consistentes
-                String pattern   = parts[0].trim().toUpperCase(Locale.ROOT);
-                String diseaseId = parts[1].trim().toUpperCase(Locale.ROOT);
 
-                if (!pattern.isEmpty() && !diseaseId.isEmpty()) {
-                    signatures.put(pattern, diseaseId);
-                    System.out.println(" Firma cargada: " + pattern + " → " + diseaseId);
-                }
-            }
-        } catch (IOException e) {
-            System.out.println(" No pude cargar signatures.csv: " + e.getMessage());
-        }
-    }
-}
 
-class CsvIO {
-    // Garantiza que el archivo exista con el header correcto, crea directorios si faltan
-    static void ensureFileWithHeader(Path path, String header) {
+    //Modifica un paciente agregando una versión nueva de su fila al final de patiens.csv (log de solo escritura al final).
+    //El índice pasa a apuntar a la nueva versión; la anterior queda como basura hasta la compactación.
+    //El costo no depende de cuántos pacientes haya y un fallo a mitad de escritura no daña las filas existentes.
+    private boolean updateRow(String patientId, java.util.function.Consumer<Map<String,String>> updater) throws IOException {
+        //patientId: ID del paciente a actualizar.
+        //updater: función (Consumer<Map<String,String>>) que define qué campos modificar en la fila encontrada.
+        //Retorno:
+        //true ->la fila existía y se agregó su nueva versión.
+        //false -> no se encontró el paciente → no se escribe nada.
+        patientLocks.lock(patientId); //Reentrante: los handlers ya lo tienen
         try {
-            Files.createDirectories(path.getParent());
-            if (Files.notExists(path)) {
-                Files.write(path, Collections.singletonList(header), StandardCharsets.UTF_8, StandardOpenOption.CREATE);
-                System.out.println(" CSV creado con encabezado en: " + path.toAbsolutePath());
-            } else {
-                System.out.println(" CSV existente: " + path.toAbsolutePath());
+            Map<String, String> row = findPatientRowById(patientId);
+            if (row == null) return false;
+            updater.accept(row);
+            String line = formatRow(row);
+            synchronized (csvLock) {
+                long offset = CsvIO.appendLineAt(csvPath, line);
+                patientIndex.put(patientId, row.getOrDefault("document_id", ""), offset);
             }
-        } catch (IOException e) {
-            throw new RuntimeException("No pude preparar el CSV en " + path.toAbsolutePath(), e);
+            patientCache.invalidate(patientId);
+            return true;
+        } finally {
+            patientLocks.unlock(patientId);
         }
     }
 
-    // Agrega una línea al final del CSV, crea el archivo si no existe
-    static void appendLine(Path path, String line) throws IOException {
-        Files.write(path, Collections.singletonList(line),
-                StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-    }
-
-    static String csv(String val) {
-        if (val == null) return "";
-        String v = val.replace("\"", "\"\""); // escapa comillas dobles
-        if (v.contains(",") || v.contains("\"") || v.contains("\n") || v.contains("\r")) {
-            return "\"" + v + "\"";           // envuelve en comillas si hace falta
+    //Arma la línea CSV de una fila respetando el orden de HEADERS
+    private static String formatRow(Map<String,String> row) {
+        List<String> ordered = new ArrayList<>(HEADERS.length);
+        for (String h : HEADERS) {
+            // si falta una columna, escribe vacío
+            //escapa comillas, comas, saltos de línea según reglas CSV
+            ordered.add(CsvIO.csv(row.getOrDefault(h, "")));
         }
-        return v;
+        return String.join(",", ordered);
     }
 
-    static String[] splitCsvSimple(String line, int expectedCols) {
-        List<String> out = new ArrayList<>(expectedCols);
-        StringBuilder cur = new StringBuilder();
-        boolean inQuotes = false;
-        for (int i = 0; i < line.length(); i++) {
-            char c = line.charAt(i);
-            if (c == '"') {
-                inQuotes = !inQuotes; // alterna estado al encontrar comillas
-                cur.append(c);
-            } else if (c == ',' && !inQuotes) {
-                // separador de columna solo si NO estamos dentro de comillas
-                out.add(cur.toString());
-                cur.setLength(0);
-            } else {
-                cur.append(c);
+    // Convierte las claves K-V en map, desde la posición 'from' de la línea "k=v|k=v|..."
+    static Map<String, String> parseKeyValues(String request, int from) {
+        Map<String, String> map = new HashMap<>();
+        int start = from;
+        while (start <= request.length()) {
+            int end = request.indexOf('|', start);
+            if (end < 0) end = request.length();
+            // Busca el primer = como separador
+            int idx = request.indexOf('=', start);
+            if (idx > start && idx < end) {
+                String k = request.substring(start, idx).trim();     // clave a la izquierda
+                String v = trimValue(k, request.substring(idx + 1, end)); // valor a la derecha
+                if (!k.isEmpty()) map.put(k, v);
             }
+            start = end + 1;
         }
-        // agrega el último fragmento acumulado
-        out.add(cur.toString());
-        return out.toArray(new String[0]);
-    }
-
-    // Quita comillas exteriores y desescapa comillas dobles
-    static String unquote(String s) {
-        if (s == null) return "";
-        s = s.trim();
-        if (s.startsWith("\"") && s.endsWith("\"") && s.length() >= 2) {
-            // elimina comillas exteriores y convierte "" en "
-            s = s.substring(1, s.length()-1).replace("\"\"", "\"");
-        }
-        return s;
-    }
-}
-
-class FastaIO {
-    // Asegura existencia de directorio para FASTA
-    static void ensureDir(Path dir) {
-        try { Files.createDirectories(dir); } catch (IOException e) { throw new RuntimeException(e); }
+        return map;
     }
 
-    // Limpia una secuencia solo ACGTN y en mayusculas
-    static String cleanSequence(String content) {
-        if (content == null || content.isBlank()) return "";
-        return content.replaceAll("[^ACGTNacgtn]", "").toUpperCase(Locale.ROOT);
+    //El data de FASTA_CHUNK va sin recortar: un '\n' en un extremo dice si el fragmento siguiente empieza una
+    //línea (y puede ser un header '>'); el resto de los espacios igual se descarta al limpiar las bases
+    private static String trimValue(String key, String value) {
+        return key.equals("data") ? value : value.trim();
     }
 
-    // Escribe un archivo FASTA con header >patientID y la secuencia en la línea siguiente
-    static void writePatientFasta(Path file, String patientId, String sequence) throws IOException {
-        String content = ">" + patientId + System.lineSeparator() + sequence + System.lineSeparator();
-        Files.write(file, content.getBytes(StandardCharsets.UTF_8),
-                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    // Utilidades pequeñas
+    private static String nowIso() { return LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME); }
+    //Ids basados en la hora pero sin repetir: dentro del mismo milisegundo (lotes) se toma el siguiente número
+    private static final java.util.concurrent.atomic.AtomicLong LAST_PATIENT_ID = new java.util.concurrent.atomic.AtomicLong();
+    private static final java.util.concurrent.atomic.AtomicLong LAST_DETECTION_ID = new java.util.concurrent.atomic.AtomicLong();
+    private static String genPatientId() { return "P-" + nextId(LAST_PATIENT_ID); }
+    private static String genDetectionId() { return "D-" + nextId(LAST_DETECTION_ID); }
+    private static long nextId(java.util.concurrent.atomic.AtomicLong last) {
+        return last.accumulateAndGet(System.currentTimeMillis(), (prev, now) -> Math.max(prev + 1, now));
     }
+    private static String genStreamId() { return "U-" + UUID.randomUUID(); }
+    // Normaliza IDs permitiendo que el cliente envíe el ID con la P inicial o sin esta
+    private static String normalizePatientId(String raw) { return raw.startsWith("P-") ? raw : ("P-" + raw); }
+}
 
-    // Lee un archivo FASTA y concatena las líneas de secuencia, omite headers que empiezan con >
-    static String readFasta(String filename) {
-        StringBuilder sequence = new StringBuilder();
-        try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (!line.startsWith(">")) sequence.append(line.trim());
-            }
-        } catch (IOException ignored) {}
-        return sequence.toString();
-    }
+class DetectionStore {
+    static final int COLUMNS = 6;        // id, patient, dId, dName, pattern, created
+    static final int COL_PATIENT_ID = 1;
 
-    // Calcula SHA-256 de un arreglo de bytes y lo devuelve en hex
-    static String sha256Hex(byte[] data) throws Exception {
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        byte[] d = md.digest(data);
-        StringBuilder sb = new StringBuilder();
-        for (byte b : d) sb.append(String.format("%02x", b));
-        return sb.toString();
+    // Agrega una detección al CSV de detecciones con timestamp actual en ISO y la registra en el índice
+    static void append(DetectionIndex index, String detectionId, String patientId, String diseaseId, String diseaseName, String pattern) {
+        try {
+            index.append(patientId, line(detectionId, patientId, diseaseId, diseaseName, pattern));
+        } catch (IOException e) {
+            System.out.println(" No pude escribir detección: " + e.getMessage());
+        }
     }
-}
 
-class DetectionStore {
-    // Agrega una detección al CSV de detecciones con timestamp actual en ISO
-    static void append(Path detectionsCsv, String detectionId, String patientId, String diseaseId, String diseaseName, String pattern) {
+    // Fila CSV de una detección con timestamp actual (para escribir varias con DetectionIndex.appendAll)
+    static String line(String detectionId, String patientId, String diseaseId, String diseaseName, String pattern) {
         String created = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
-        String line = String.join(",", Arrays.asList(
+        return String.join(",", Arrays.asList(
                 CsvIO.csv(detectionId), CsvIO.csv(patientId), CsvIO.csv(diseaseId),
                 CsvIO.csv(diseaseName), CsvIO.csv(pattern), CsvIO.csv(created)
         ));
-        try {
-            CsvIO.appendLine(detectionsCsv, line);
-        } catch (IOException e) {
-            System.out.println(" No pude escribir detección: " + e.getMessage());
-        }
     }
 
-    static List<String[]> readByPatient(Path detectionsCsv, String patientId, Map<String,String> diseaseNames) {
+    // Lee solo las filas del paciente usando el índice (no recorre detections.csv)
+    static List<String[]> readByPatient(DetectionIndex index, String patientId, Map<String,String> diseaseNames) {
+        return readByPatient(index, patientId, diseaseNames, null);
+    }
+
+    // Igual que readByPatient reutilizando un canal de DetectionIndex.openForRead (null abre uno propio)
+    static List<String[]> readByPatient(DetectionIndex index, String patientId, Map<String,String> diseaseNames,
+                                        java.nio.channels.FileChannel ch) {
         List<String[]> dets = new ArrayList<>();
-        if (!Files.exists(detectionsCsv)) return dets;
-        try (BufferedReader br = Files.newBufferedReader(detectionsCsv, StandardCharsets.UTF_8)) {
-            br.readLine(); // header
-            String line;
-            while ((line = br.readLine()) != null) {
-                // Cada línea debería tener 6 columnas: id, patient, dId, dName, pattern, created
-                String[] vals = CsvIO.splitCsvSimple(line, 6);
-                if (vals.length != 6) continue;
-
-                String pid = CsvIO.unquote(vals[1]);
-                if (!patientId.equals(pid)) continue; // salta si no corresponde al paciente
-
-                String dId   = CsvIO.unquote(vals[2]);
-                // Si el nombre viene vacío, lo resuelve por el mapa diseaseNames
-                String dName = Optional.ofNullable(CsvIO.unquote(vals[3]))
-                        .filter(s -> !s.isBlank())
-                        .orElseGet(() -> diseaseNames.getOrDefault(dId, dId));
-                String pat   = CsvIO.unquote(vals[4]);
-
-                dets.add(new String[]{ dId, dName, pat });
-            }
+        byte[] pid = patientId.getBytes(StandardCharsets.UTF_8);
+        CsvRecord.Visitor visitor = r -> {
+            // Cada línea debería tener 6 columnas: id, patient, dId, dName, pattern, created
+            if (r.fieldCount() != COLUMNS) return;
+            if (!r.fieldEquals(COL_PATIENT_ID, pid)) return; // salta si no corresponde al paciente
+
+            String dId   = r.field(2); //Solo se decodifican las columnas de la respuesta
+            // Si el nombre viene vacío, lo resuelve por el mapa diseaseNames
+            String dName = r.field(3);
+            if (dName.isBlank()) dName = diseaseNames.getOrDefault(dId, dId);
+            String pat   = r.field(4);
+
+            dets.add(new String[]{ dId, dName, pat });
+        };
+        try {
+            if (ch == null) index.forEachRow(patientId, visitor); else index.forEachRow(patientId, ch, visitor);
         } catch (IOException ioe) {
             System.out.println("️ No pude leer detections.csv: " + ioe.getMessage());
         }
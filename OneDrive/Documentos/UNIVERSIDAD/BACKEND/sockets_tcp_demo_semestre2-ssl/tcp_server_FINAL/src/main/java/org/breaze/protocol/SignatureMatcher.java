@@ -0,0 +1,148 @@
+package org.breaze.protocol;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.List;
+
+// Autómata Aho-Corasick compilado a partir de las firmas de signatures.csv.
+// Recorre la secuencia UNA sola vez y reporta todas las firmas presentes, sin importar cuántas haya.
+// El alfabeto es el de PackedSequence.clean (A,C,G,T,N); una firma con otros caracteres nunca puede coincidir.
+// Las firmas con max_mismatches > 0 no entran al autómata: las recorre ApproximateMatcher en el mismo paso.
+final class SignatureMatcher {
+    static final int ALPHABET = 5; // A=0, C=1, G=2, T=3, N=4
+
+    private final String[] patterns;   // id de patrón -> patrón (orden de carga de signatures.csv)
+    private final int[] next;          // tabla de transiciones completa: estado*ALPHABET + símbolo
+    private final int[] output;        // estado -> id del patrón que termina aquí (-1 si ninguno)
+    private final int[] dictLink;      // estado -> siguiente estado con salida por enlaces de fallo (0 si ninguno)
+    private final ApproximateMatcher approximate; // firmas con errores permitidos (null si no hay)
+
+    private SignatureMatcher(String[] patterns, int[] next, int[] output, int[] dictLink, ApproximateMatcher approximate) {
+        this.patterns = patterns;
+        this.next = next;
+        this.output = output;
+        this.dictLink = dictLink;
+        this.approximate = approximate;
+    }
+
+    // Construye el autómata con todas las firmas exactas; el id de cada patrón es su posición en la lista
+    static SignatureMatcher compile(List<String> patternList) {
+        return compile(patternList, new int[patternList.size()], new ApproximateMatcher.Mode[patternList.size()]);
+    }
+
+    // maxErrors[id] > 0: la firma se busca con hasta ese número de errores según modes[id]
+    static SignatureMatcher compile(List<String> patternList, int[] maxErrors, ApproximateMatcher.Mode[] modes) {
+        String[] pats = patternList.toArray(new String[0]);
+        int maxStates = 1;
+        for (String p : pats) maxStates += p.length();
+
+        int[] next = new int[maxStates * ALPHABET];
+        java.util.Arrays.fill(next, -1);
+        int[] output = new int[maxStates];
+        java.util.Arrays.fill(output, -1);
+        int states = 1;
+
+        // 1) Trie con todos los patrones
+        for (int id = 0; id < pats.length; id++) {
+            String p = pats[id];
+            if (p.isEmpty() || maxErrors[id] > 0) continue;
+            int s = 0;
+            boolean valid = true;
+            for (int i = 0; i < p.length(); i++) {
+                int sym = symbol(p.charAt(i));
+                if (sym < 0) { valid = false; break; } // carácter fuera del alfabeto: no puede coincidir
+                int t = next[s * ALPHABET + sym];
+                if (t < 0) {
+                    t = states++;
+                    next[s * ALPHABET + sym] = t;
+                }
+                s = t;
+            }
+            if (valid && output[s] < 0) output[s] = id;
+        }
+
+        // 2) Enlaces de fallo por BFS, convirtiendo el trie en un DFA completo
+        int[] fail = new int[states];
+        int[] dictLink = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < ALPHABET; c++) {
+            int t = next[c];
+            if (t < 0) {
+                next[c] = 0;
+            } else {
+                fail[t] = 0;
+                queue.add(t);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            int f = fail[s];
+            dictLink[s] = output[f] >= 0 ? f : dictLink[f];
+            for (int c = 0; c < ALPHABET; c++) {
+                int t = next[s * ALPHABET + c];
+                if (t < 0) {
+                    next[s * ALPHABET + c] = next[f * ALPHABET + c];
+                } else {
+                    fail[t] = next[f * ALPHABET + c];
+                    queue.add(t);
+                }
+            }
+        }
+
+        return new SignatureMatcher(pats,
+                java.util.Arrays.copyOf(next, states * ALPHABET),
+                java.util.Arrays.copyOf(output, states),
+                dictLink,
+                ApproximateMatcher.compile(pats, maxErrors, modes));
+    }
+
+    // Convierte una base en símbolo del alfabeto (-1 si no pertenece)
+    static int symbol(char c) { return PackedSequence.codeOf(c); }
+
+    int patternCount() { return patterns.length; }
+    String pattern(int id) { return patterns[id]; }
+
+    // Estado inicial del autómata exacto
+    int start() { return 0; }
+
+    // Recorrido que conserva el estado entre fragmentos (subidas por partes): autómata + firmas aproximadas
+    Scanner scanner() { return new Scanner(); }
+
+    final class Scanner {
+        private final BitSet found = new BitSet(patterns.length);
+        private final long[] approximateState = approximate == null ? null : approximate.newState();
+        private int state = start();
+
+        void step(int sym) {
+            state = SignatureMatcher.this.step(state, sym, found);
+            if (approximateState != null) approximate.step(approximateState, sym, found);
+        }
+
+        BitSet found() { return found; }
+    }
+
+    // Avanza un símbolo del autómata exacto y marca en 'found' los patrones que terminan en esta posición
+    int step(int state, int sym, BitSet found) {
+        int s = next[state * ALPHABET + sym];
+        int t = output[s] >= 0 ? s : dictLink[s];
+        // Si un patrón ya fue reportado, toda su cadena de sufijos también lo fue: se corta ahí
+        while (t > 0 && !found.get(output[t])) {
+            found.set(output[t]);
+            t = dictLink[t];
+        }
+        return s;
+    }
+
+    // Escanea la secuencia completa (códigos de 2 bits) y devuelve los ids de patrones encontrados
+    BitSet scan(PackedSequence seq) {
+        if (approximate != null) {
+            Scanner scanner = scanner();
+            for (int i = 0; i < seq.length(); i++) scanner.step(seq.code(i));
+            return scanner.found();
+        }
+        BitSet found = new BitSet(patterns.length);
+        int s = start();
+        for (int i = 0; i < seq.length(); i++) s = step(s, seq.code(i), found); // solo firmas exactas
+        return found;
+    }
+}
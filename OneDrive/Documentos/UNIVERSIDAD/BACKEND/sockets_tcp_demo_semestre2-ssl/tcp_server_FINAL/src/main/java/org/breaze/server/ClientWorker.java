@@ -1,64 +1,295 @@
 package org.breaze.server;
 
+import org.breaze.logging.AuditLogger;
+import org.breaze.protocol.BinaryFrames;
 import org.breaze.protocol.ServerProtocol;
 import javax.net.ssl.SSLSocket;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 class ClientWorker implements Runnable {
 
     private final SSLSocket socket;
     private final ServerProtocol protocol;
+    private final int idleTimeoutMs;
+    private final int maxInFlight;
+    private final int maxFrameBytes;
+
+    // Modo pipeline: se crea al recibir PIPELINE (o al pasar al protocolo binario)
+    private ExecutorService pipeline;
+    private Semaphore inFlight;
+    private final Object writeLock = new Object(); // un solo escritor: las respuestas nunca se mezclan en el socket
+    private static final long PIPELINE_DRAIN_SECONDS = 30; // espera máxima a los pedidos en curso al cerrar
 
     ClientWorker(SSLSocket socket, ServerProtocol protocol) {
+        this(socket, protocol, 0, 16, BinaryFrames.DEFAULT_MAX_REQUEST_BYTES);
+    }
+
+    ClientWorker(SSLSocket socket, ServerProtocol protocol, int idleTimeoutMs, int maxInFlight, int maxFrameBytes) {
         this.socket = socket;
         this.protocol = protocol;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.maxInFlight = maxInFlight;
+        this.maxFrameBytes = maxFrameBytes;
     }
 
     @Override
     public void run() {
         try (SSLSocket s = socket;
-             DataInputStream dis = new DataInputStream(s.getInputStream());
-             DataOutputStream dos = new DataOutputStream(s.getOutputStream())) {
+             MeteredStreams.CountingInput in = MeteredStreams.in(s.getInputStream());
+             DataInputStream dis = new DataInputStream(in);
+             DataOutputStream dos = new DataOutputStream(MeteredStreams.out(s.getOutputStream()))) {
 
-            // Opcional: evita bloqueos infinitos si el cliente desaparece
-            s.setSoTimeout(0); // 0 = sin timeout; pon 30000 si quieres 30s
+            // Evita que un cliente inactivo retenga el hilo para siempre (SERVER_IDLE_TIMEOUT_MS, 0 = sin timeout)
+            s.setSoTimeout(idleTimeoutMs);
 
-            while (true) {
-                String message;
-                try {
-                    message = dis.readUTF(); // ⬅️ espera próximo comando del cliente
-                } catch (IOException eof) {
-                    System.out.println("👋 Client disconnected.");
+            try {
+                serve(in, dis, dos);
+            } finally {
+                awaitPipeline(); // las respuestas en curso se escriben antes de que se cierre el socket
+            }
+
+        } catch (IOException e) {
+            System.out.println("⚠️ Worker error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try { socket.close(); } catch (IOException ignored) {}
+            System.out.println("🛑 Client socket closed.");
+        }
+    }
+
+    // Atiende pedidos hasta que el cliente sale, se desconecta o queda inactivo
+    private void serve(MeteredStreams.CountingInput in, DataInputStream dis, DataOutputStream dos)
+            throws IOException, InterruptedException {
+        while (true) {
+            String message;
+            long messageStart = in.bytesRead();
+            try {
+                message = dis.readUTF(); // ⬅️ espera próximo comando del cliente
+            } catch (SocketTimeoutException idle) {
+                if (in.bytesRead() != messageStart) {
+                    // Parte del mensaje ya se consumió: seguir leyendo desfasaría todo lo que viene
+                    System.out.println("⏱️ Timeout in the middle of a message. Closing socket.");
                     break;
                 }
+                if (pipeline != null && inFlight.availablePermits() < maxInFlight) continue; // hay respuestas en camino
+                System.out.println("⏱️ Client idle for " + idleTimeoutMs + " ms. Closing socket.");
+                break;
+            } catch (IOException eof) {
+                System.out.println("👋 Client disconnected.");
+                break;
+            }
 
-                System.out.println("📩 Received: " + message);
+            System.out.println("📩 Received: " + message);
 
-                // Salida voluntaria
-                String upper = message.trim().toUpperCase();
-                if (upper.equals("EXIT") || upper.equals("QUIT")) {
-                    dos.writeUTF("BYE");
-                    dos.flush();
-                    System.out.println("👋 Client requested exit. Closing socket.");
-                    break;
+            if (pipeline != null) {
+                if (!pipelined(message, dos)) break;
+                continue;
+            }
+
+            // Salida voluntaria
+            if (Pipeline.isExit(message)) {
+                send(dos, "BYE");
+                System.out.println("👋 Client requested exit. Closing socket.");
+                break;
+            }
+
+            if (Pipeline.isPipelineCommand(message)) {
+                enablePipeline();
+                send(dos, Pipeline.enabledResponse(maxInFlight));
+                continue;
+            }
+
+            // Negociación de versión: HELLO|protocol=2 cambia la conexión a tramas binarias
+            int version = BinaryFrames.helloVersion(message);
+            if (version == 1) {
+                send(dos, "OK;hello;protocol=1");
+                continue;
+            }
+            if (version == BinaryFrames.VERSION) {
+                send(dos, "OK;hello;protocol=" + BinaryFrames.VERSION + ";max_in_flight=" + maxInFlight
+                        + ";max_frame_bytes=" + maxFrameBytes);
+                runBinary(in, dis, dos);
+                break;
+            }
+            if (version >= 0) {
+                send(dos, "ERROR;unsupported_protocol;supported=1," + BinaryFrames.VERSION);
+                continue;
+            }
+
+            // Procesar comando
+            String response = protocol.processMessage(message);
+
+            // Responder
+            response = sendResponse(dos, response, null);
+            System.out.println("📤 Sent: " + response);
+        }
+    }
+
+    // Espera a que terminen los pedidos en curso; pasado el tope se cierra igual (sus respuestas se pierden)
+    private void awaitPipeline() {
+        if (pipeline == null) return;
+        pipeline.shutdown();
+        try {
+            if (!pipeline.awaitTermination(PIPELINE_DRAIN_SECONDS, TimeUnit.SECONDS)) {
+                System.out.println("⚠️ Requests still running after " + PIPELINE_DRAIN_SECONDS + " s. Closing socket anyway.");
+                pipeline.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            pipeline.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enablePipeline() {
+        pipeline = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("pipeline-", 0).factory());
+        inFlight = new Semaphore(maxInFlight);
+    }
+
+    // Protocolo binario: cada trama trae su id, así que los pedidos corren a la vez igual que con PIPELINE,
+    // salvo los de una misma subida o paciente, que el KeyedSequencer ejecuta en orden de llegada
+    private void runBinary(MeteredStreams.CountingInput in, DataInputStream dis, DataOutputStream dos)
+            throws IOException, InterruptedException {
+        if (pipeline == null) enablePipeline();
+        KeyedSequencer sequencer = new KeyedSequencer();
+        String remote = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        byte[] buf = new byte[8 * 1024]; // se reutiliza entre tramas; los campos se copian al decodificar
+        while (true) {
+            int len;
+            long frameStart = in.bytesRead();
+            try {
+                len = dis.readInt();
+                if (len <= 0 || len > maxFrameBytes) {
+                    // Sin un largo válido no hay forma de encontrar la siguiente trama
+                    System.out.println("⚠️ Worker error: invalid frame length " + len);
+                    return;
+                }
+                if (buf.length < len) buf = new byte[Math.max(len, buf.length * 2)];
+                dis.readFully(buf, 0, len);
+            } catch (SocketTimeoutException idle) {
+                if (in.bytesRead() != frameStart) {
+                    // La trama quedó a medias: no hay forma de volver a encontrar el comienzo de la siguiente
+                    System.out.println("⏱️ Timeout in the middle of a frame. Closing socket.");
+                    return;
                 }
+                if (inFlight.availablePermits() < maxInFlight) continue;
+                System.out.println("⏱️ Client idle for " + idleTimeoutMs + " ms. Closing socket.");
+                return;
+            } catch (IOException eof) {
+                System.out.println("👋 Client disconnected.");
+                return;
+            }
+
+            BinaryFrames.Request req;
+            try {
+                req = BinaryFrames.decode(ByteBuffer.wrap(buf, 0, len), len);
+            } catch (ProtocolException bad) {
+                sendFrame(dos, BinaryFrames.encodeResponse(0, "ERROR;bad_frame;" + bad.getMessage()));
+                continue;
+            }
+            System.out.println("📩 Received (binary): " + req.command + " #" + req.correlationId);
+
+            if (req.isExit()) {
+                inFlight.acquire(maxInFlight);
+                sendFrame(dos, BinaryFrames.encodeResponse(req.correlationId, "BYE"));
+                System.out.println("👋 Client requested exit. Closing socket.");
+                return;
+            }
 
-                // Procesar comando
-                String response = protocol.processMessage(message);
+            inFlight.acquire();
+            sequencer.submit(KeyedSequencer.keyOf(req.fields), () -> {
+                AuditLogger.setRemote(remote);
+                try {
+                    String response = protocol.processFields(req.command, req.fields);
+                    sendFrame(dos, BinaryFrames.encodeResponse(req.correlationId, response));
+                    System.out.println("📤 Sent (binary): #" + req.correlationId + " " + response);
+                } catch (IOException e) {
+                    System.out.println("⚠️ Worker error: " + e.getMessage());
+                } finally {
+                    inFlight.release();
+                    AuditLogger.clearRemote();
+                }
+            }, task -> {
+                pipeline.execute(task);
+                return true;
+            });
+        }
+    }
 
-                // Responder
-                dos.writeUTF(response);
-                dos.flush();
+    // Un pedido en modo pipeline; false cuando el cliente pidió salir
+    private boolean pipelined(String message, DataOutputStream dos) throws IOException, InterruptedException {
+        String id = Pipeline.idOf(message);
+        if (id == null) {
+            if (Pipeline.isExit(message)) {
+                inFlight.acquire(maxInFlight); // se esperan las respuestas pendientes antes del BYE
+                send(dos, "BYE");
+                System.out.println("👋 Client requested exit. Closing socket.");
+                return false;
+            }
+            send(dos, Pipeline.isPipelineCommand(message) ? Pipeline.enabledResponse(maxInFlight) : Pipeline.missingId());
+            return true;
+        }
+        String command = Pipeline.commandOf(message, id);
+        if (Pipeline.isExit(command)) {
+            inFlight.acquire(maxInFlight);
+            send(dos, Pipeline.tag(id, "BYE"));
+            System.out.println("👋 Client requested exit. Closing socket.");
+            return false;
+        }
+
+        // Con max_in_flight pedidos en curso se deja de leer: el cliente queda frenado por TCP
+        inFlight.acquire();
+        String remote = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        pipeline.execute(() -> {
+            AuditLogger.setRemote(remote);
+            try {
+                String response = sendResponse(dos, Pipeline.tag(id, protocol.processMessage(command)), id);
                 System.out.println("📤 Sent: " + response);
+            } catch (IOException e) {
+                System.out.println("⚠️ Worker error: " + e.getMessage());
+            } finally {
+                inFlight.release();
+                AuditLogger.clearRemote();
             }
+        });
+        return true;
+    }
 
-        } catch (IOException e) {
-            System.out.println("⚠️ Worker error: " + e.getMessage());
-        } finally {
-            try { socket.close(); } catch (IOException ignored) {}
-            System.out.println("🛑 Client socket closed.");
+    private void send(DataOutputStream dos, String response) throws IOException {
+        synchronized (writeLock) {
+            dos.writeUTF(response);
+            dos.flush();
+        }
+    }
+
+    // writeUTF rechaza un texto de más de 65535 bytes antes de escribir nada, así que el socket sigue sano:
+    // el cliente recibe ERROR;response_too_large (con su id en pipeline) y puede seguir mandando pedidos
+    private String sendResponse(DataOutputStream dos, String response, String id) throws IOException {
+        try {
+            send(dos, response);
+            return response;
+        } catch (UTFDataFormatException tooLarge) {
+            System.out.println("⚠️ Worker error: response too long for writeUTF (" + response.length() + " chars)");
+            String error = Pipeline.responseTooLarge(id);
+            send(dos, error);
+            return error;
+        }
+    }
+
+    private void sendFrame(DataOutputStream dos, byte[] frame) throws IOException {
+        synchronized (writeLock) {
+            dos.write(frame);
+            dos.flush();
         }
     }
 }
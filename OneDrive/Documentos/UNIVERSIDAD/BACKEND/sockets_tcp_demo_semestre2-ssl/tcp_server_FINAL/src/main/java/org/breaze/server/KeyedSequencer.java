@@ -0,0 +1,63 @@
+package org.breaze.server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+// Orden por clave en el protocolo binario (uno por conexión). Los pedidos corren a la vez, salvo los que tocan
+// lo mismo: los FASTA_CHUNK/FASTA_END de una subida (stream_id) o los pedidos de un paciente (patient_id)
+// se ejecutan uno detrás del otro en el orden en que llegaron. El que termina sigue en el mismo hilo con el
+// siguiente de su clave, así la cadena no vuelve a pasar por el ejecutor (que puede estar lleno o cerrándose).
+// submit() lo llama solo el hilo que lee la conexión; las cadenas corren en los hilos del ejecutor.
+final class KeyedSequencer {
+    private final Map<String, ArrayDeque<Runnable>> waiting = new HashMap<>(); // clave en curso -> pedidos detrás
+
+    // Clave de orden de un pedido; null si no comparte nada con otros (corre apenas llega)
+    static String keyOf(Map<String, String> fields) {
+        String stream = fields.get("stream_id");
+        if (stream != null && !stream.isBlank()) return "stream:" + stream.trim();
+        String patient = fields.get("patient_id");
+        if (patient != null && !patient.isBlank()) return "patient:" + patient.trim();
+        return null;
+    }
+
+    // 'start' entrega la tarea al ejecutor y devuelve false si no la aceptó. Un pedido que queda detrás de otro
+    // de su clave siempre se acepta: va a correr cuando termine el anterior.
+    boolean submit(String key, Runnable task, Predicate<Runnable> start) {
+        if (key == null) return start.test(task);
+        synchronized (this) {
+            ArrayDeque<Runnable> queue = waiting.get(key);
+            if (queue != null) {
+                queue.add(task);
+                return true;
+            }
+            waiting.put(key, new ArrayDeque<>());
+        }
+        if (start.test(() -> runChain(key, task))) return true;
+        synchronized (this) {
+            waiting.remove(key); // solo este hilo encola, así que la cola sigue vacía
+        }
+        return false;
+    }
+
+    // Un pedido que falla no deja colgados a los de atrás: se siguen ejecutando y el error sale al final
+    private void runChain(String key, Runnable first) {
+        RuntimeException failure = null;
+        for (Runnable task = first; task != null; task = next(key)) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    private synchronized Runnable next(String key) {
+        ArrayDeque<Runnable> queue = waiting.get(key);
+        Runnable task = queue.poll();
+        if (task == null) waiting.remove(key);
+        return task;
+    }
+}
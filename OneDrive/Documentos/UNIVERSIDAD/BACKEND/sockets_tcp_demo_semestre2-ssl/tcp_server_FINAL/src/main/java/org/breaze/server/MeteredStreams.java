@@ -0,0 +1,64 @@
+package org.breaze.server;
+
+import org.breaze.metrics.ServerMetrics;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Streams del socket TLS (modo bloqueante) que suman a ServerMetrics los bytes de aplicación leídos y escritos
+final class MeteredStreams {
+    private MeteredStreams() {}
+
+    static CountingInput in(InputStream in) {
+        return new CountingInput(in);
+    }
+
+    // Lleva la cuenta de lo leído: así el worker sabe si un timeout cortó un mensaje a la mitad
+    static final class CountingInput extends FilterInputStream {
+        private long bytesRead;
+
+        private CountingInput(InputStream in) {
+            super(in);
+        }
+
+        long bytesRead() { return bytesRead; }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                bytesRead++;
+                ServerMetrics.bytesIn(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) bytesRead += n;
+            ServerMetrics.bytesIn(n);
+            return n;
+        }
+    }
+
+    static OutputStream out(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                ServerMetrics.bytesOut(1);
+            }
+
+            // FilterOutputStream escribe byte por byte por defecto; se pasa el bloque entero al socket
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                ServerMetrics.bytesOut(len);
+            }
+        };
+    }
+}
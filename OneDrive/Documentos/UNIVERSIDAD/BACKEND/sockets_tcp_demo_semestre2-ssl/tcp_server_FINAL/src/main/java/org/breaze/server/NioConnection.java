@@ -0,0 +1,457 @@
+package org.breaze.server;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import org.breaze.metrics.ServerMetrics;
+import org.breaze.protocol.BinaryFrames;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+// Una conexión del modo NIO. Habla el mismo protocolo que ClientWorker (tramas writeUTF/readUTF sobre TLS),
+// pero sin hilo propio: el loop la despierta cuando hay bytes y el comando se ejecuta en el ejecutor del servidor.
+// Igual que en el modo bloqueante se atiende un comando a la vez por conexión, salvo que el cliente active PIPELINE
+// o negocie el protocolo binario con HELLO|protocol=2.
+// Todos los métodos corren en el hilo del loop; los workers entregan la respuesta con respondLater().
+final class NioConnection {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final String SERVER_BUSY = "ERROR;server_busy;try again later";
+
+    private final TCPServer server;
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final String remote;
+    private final int maxInFlight;
+    private final int maxFrameBytes;  // pedido binario más grande que se acepta
+    private final KeyedSequencer sequencer = new KeyedSequencer(); // orden por stream_id/patient_id en binario
+    private SelectionKey key;
+
+    // Restos entre eventos; null mientras no haya nada pendiente (lo normal en un cliente inactivo)
+    private ByteBuffer pendingIn;   // registro TLS incompleto
+    private ByteBuffer pendingOut;  // bytes cifrados que el socket no aceptó todavía
+    private ByteBuffer frames;      // texto descifrado que aún no forma una trama completa
+    private ByteBuffer response;    // respuesta en claro que se está cifrando
+    private final ArrayDeque<ByteBuffer> outbox = new ArrayDeque<>(1); // respuestas en espera, en orden de llegada
+
+    private int inFlight;           // comandos en el ejecutor
+    private boolean pipelined;
+    private boolean binary;         // después de HELLO|protocol=2
+    private boolean exitRequested;  // EXIT en modo pipeline: se responde BYE cuando terminen los pendientes
+    private String exitId;
+    private int exitCorrelation;
+    private boolean closeAfterResponse;
+    private boolean closed;
+    private long lastActivity = System.currentTimeMillis();
+
+    NioConnection(TCPServer server, NioEventLoop loop, SocketChannel channel, SSLEngine engine, String remote,
+                  int maxInFlight, int maxFrameBytes) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.engine = engine;
+        this.remote = remote;
+        this.maxInFlight = maxInFlight;
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    String remote() { return remote; }
+
+    void register() {
+        try {
+            key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+            engine.beginHandshake();
+        } catch (IOException e) {
+            close(e.getMessage());
+        }
+    }
+
+    long idleSince(long now) {
+        return inFlight > 0 || response != null || !outbox.isEmpty() ? 0 : now - lastActivity;
+    }
+
+    void onReadable() {
+        ByteBuffer buf = loop.netIn;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        if (buf.capacity() < packetSize) buf = loop.netIn = ByteBuffer.allocateDirect(packetSize);
+        buf.clear();
+        int n;
+        try {
+            n = channel.read(buf);
+        } catch (IOException e) {
+            System.out.println("👋 Client disconnected.");
+            close(null);
+            return;
+        }
+        if (n < 0) {
+            System.out.println("👋 Client disconnected.");
+            close(null);
+            return;
+        }
+        if (n == 0) return;
+        lastActivity = System.currentTimeMillis();
+        buf.flip();
+        ByteBuffer in = pendingIn == null ? buf : concat(pendingIn, buf);
+        pendingIn = null;
+        drive(in);
+    }
+
+    void onWritable() {
+        resume();
+    }
+
+    // Lo llama el worker al terminar el comando; 'frame' ya está codificado para el socket
+    private void respondLater(byte[] frame, String message) {
+        loop.execute(() -> {
+            inFlight--;
+            if (closed) return;
+            outbox.add(ByteBuffer.wrap(frame));
+            System.out.println("📤 Sent: " + message);
+            resume();
+        });
+    }
+
+    void closeLater(String error) {
+        loop.execute(() -> close(error));
+    }
+
+    private void resume() {
+        ByteBuffer in = pendingIn;
+        pendingIn = null;
+        drive(in);
+    }
+
+    // Avanza el handshake, descifra lo recibido, despacha tramas y cifra la respuesta hasta que no quede nada por hacer
+    private void drive(ByteBuffer in) {
+        try {
+            while (!closed) {
+                if (!flushPending()) break; // el socket está lleno: se sigue en OP_WRITE
+                HandshakeStatus hs = engine.getHandshakeStatus();
+                if (hs == HandshakeStatus.NEED_TASK) {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) task.run();
+                    continue;
+                }
+                if (hs == HandshakeStatus.NEED_WRAP) {
+                    wrap(EMPTY);
+                    continue;
+                }
+                if (hs == HandshakeStatus.NOT_HANDSHAKING && (response != null || !outbox.isEmpty())) {
+                    if (response == null) response = outbox.poll();
+                    if (response.hasRemaining()) {
+                        wrap(response);
+                        continue;
+                    }
+                    response = null;
+                    if (closeAfterResponse && outbox.isEmpty()) {
+                        System.out.println("👋 Client requested exit. Closing socket.");
+                        close(null);
+                        return;
+                    }
+                    continue;
+                }
+                if (exitRequested && inFlight == 0) {
+                    exitRequested = false;
+                    closeAfterResponse = true;
+                    if (binary) queueFrame(BinaryFrames.encodeResponse(exitCorrelation, "BYE"));
+                    else queueResponse(exitId == null ? "BYE" : Pipeline.tag(exitId, "BYE"));
+                    continue;
+                }
+                if (in != null && in.hasRemaining() && unwrap(in)) continue;
+                if (acceptsCommands() && hs == HandshakeStatus.NOT_HANDSHAKING && nextRequest()) continue;
+                break;
+            }
+        } catch (IOException e) {
+            System.out.println("⚠️ Worker error: " + e.getMessage());
+            close(e.getMessage());
+        }
+        if (closed) return;
+        // Lo que quede es un registro incompleto; el buffer del loop se reutiliza, así que se copia
+        if (in != null && in.hasRemaining()) pendingIn = in == loop.netIn ? copy(in) : in;
+        updateInterest();
+    }
+
+    // false si hace falta leer más del socket para completar el registro
+    private boolean unwrap(ByteBuffer in) throws IOException {
+        ByteBuffer app = loop.appIn;
+        app.clear();
+        SSLEngineResult result = engine.unwrap(in, app);
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                loop.appIn = ByteBuffer.allocate(Math.max(app.capacity() * 2, engine.getSession().getApplicationBufferSize()));
+                return true;
+            case BUFFER_UNDERFLOW:
+                return false;
+            case CLOSED:
+                System.out.println("👋 Client disconnected.");
+                close(null);
+                return false;
+            default:
+                ServerMetrics.bytesIn(result.bytesProduced()); // bytes de aplicación ya descifrados
+                app.flip();
+                if (app.hasRemaining()) frames = frames == null ? copy(app) : append(frames, app);
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+    }
+
+    private void wrap(ByteBuffer src) throws IOException {
+        ByteBuffer out = loop.netOut;
+        out.clear();
+        SSLEngineResult result = engine.wrap(src, out);
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                loop.netOut = ByteBuffer.allocateDirect(Math.max(out.capacity() * 2, engine.getSession().getPacketBufferSize()));
+                return;
+            case CLOSED:
+                close(null);
+                return;
+            default:
+                ServerMetrics.bytesOut(result.bytesConsumed());
+                out.flip();
+                channel.write(out);
+                if (out.hasRemaining()) pendingOut = copy(out);
+        }
+    }
+
+    private boolean flushPending() throws IOException {
+        if (pendingOut == null) return true;
+        channel.write(pendingOut);
+        if (pendingOut.hasRemaining()) return false;
+        pendingOut = null;
+        return true;
+    }
+
+    // Atiende la siguiente trama completa; false si todavía no llegó entera
+    private boolean nextRequest() throws IOException {
+        if (binary) return nextBinaryRequest();
+        // Trama = 2 bytes de largo + UTF-8 modificado, exactamente lo que produce writeUTF del cliente
+        if (frames == null || frames.remaining() < 2) return false;
+        int len = frames.getShort(frames.position()) & 0xFFFF;
+        if (frames.remaining() < 2 + len) return false;
+        byte[] raw = new byte[2 + len];
+        frames.get(raw);
+        if (!frames.hasRemaining()) frames = null;
+        handle(new DataInputStream(new ByteArrayInputStream(raw)).readUTF());
+        return true;
+    }
+
+    // Trama binaria: int32 largo + pedido; los campos se decodifican directo desde 'frames'
+    private boolean nextBinaryRequest() throws IOException {
+        if (frames == null || frames.remaining() < 4) return false;
+        int len = frames.getInt(frames.position());
+        if (len <= 0 || len > maxFrameBytes) throw new ProtocolException("invalid frame length " + len);
+        if (frames.remaining() < 4 + len) return false;
+        frames.position(frames.position() + 4);
+        BinaryFrames.Request req = null;
+        try {
+            req = BinaryFrames.decode(frames, len);
+        } catch (ProtocolException bad) {
+            queueFrame(BinaryFrames.encodeResponse(0, "ERROR;bad_frame;" + bad.getMessage()));
+        }
+        if (!frames.hasRemaining()) frames = null;
+        if (req != null) handleBinary(req);
+        return true;
+    }
+
+    private void handleBinary(BinaryFrames.Request req) {
+        lastActivity = System.currentTimeMillis();
+        System.out.println("📩 Received (binary): " + req.command + " #" + req.correlationId);
+        if (req.isExit()) {
+            exitRequested = true;
+            exitCorrelation = req.correlationId;
+            return;
+        }
+        inFlight++;
+        boolean accepted = sequencer.submit(KeyedSequencer.keyOf(req.fields), () -> {
+            String response = server.protocol().processFields(req.command, req.fields);
+            respondLater(BinaryFrames.encodeResponse(req.correlationId, response), response);
+        }, task -> server.execute(this, task));
+        if (!accepted) {
+            inFlight--;
+            queueFrame(BinaryFrames.encodeResponse(req.correlationId, SERVER_BUSY));
+        }
+    }
+
+    private void handle(String message) {
+        lastActivity = System.currentTimeMillis();
+        System.out.println("📩 Received: " + message);
+
+        if (pipelined) {
+            handlePipelined(message);
+            return;
+        }
+
+        // Salida voluntaria
+        if (Pipeline.isExit(message)) {
+            closeAfterResponse = true;
+            queueResponse("BYE");
+            return;
+        }
+        if (Pipeline.isPipelineCommand(message)) {
+            pipelined = true;
+            queueResponse(Pipeline.enabledResponse(maxInFlight));
+            return;
+        }
+
+        // Negociación de versión: HELLO|protocol=2 cambia la conexión a tramas binarias
+        int version = BinaryFrames.helloVersion(message);
+        if (version == 1) {
+            queueResponse("OK;hello;protocol=1");
+            return;
+        }
+        if (version == BinaryFrames.VERSION) {
+            queueResponse("OK;hello;protocol=" + BinaryFrames.VERSION + ";max_in_flight=" + maxInFlight
+                    + ";max_frame_bytes=" + maxFrameBytes);
+            binary = true;
+            pipelined = true;
+            return;
+        }
+        if (version >= 0) {
+            queueResponse("ERROR;unsupported_protocol;supported=1," + BinaryFrames.VERSION);
+            return;
+        }
+        dispatch(message, null);
+    }
+
+    private void handlePipelined(String message) {
+        String id = Pipeline.idOf(message);
+        if (id == null) {
+            if (Pipeline.isExit(message)) {
+                exitRequested = true;
+                return;
+            }
+            queueResponse(Pipeline.isPipelineCommand(message) ? Pipeline.enabledResponse(maxInFlight) : Pipeline.missingId());
+            return;
+        }
+        String command = Pipeline.commandOf(message, id);
+        if (Pipeline.isExit(command)) {
+            exitRequested = true;
+            exitId = id;
+            return;
+        }
+        dispatch(command, id);
+    }
+
+    private void dispatch(String command, String id) {
+        inFlight++;
+        boolean accepted = server.execute(this, () -> {
+            String response = server.protocol().processMessage(command);
+            if (id != null) response = Pipeline.tag(id, response);
+            byte[] frame = encodeUtf(response);
+            if (frame == null) {
+                // Igual que en el modo bloqueante: un error en lugar de la respuesta y la conexión sigue
+                System.out.println("⚠️ Worker error: response too long for writeUTF (" + response.length() + " chars)");
+                response = Pipeline.responseTooLarge(id);
+                frame = encodeUtf(response);
+            }
+            respondLater(frame, response);
+        });
+        if (!accepted) {
+            // Cola del pool llena: se responde en vez de cerrar, la conexión ya está establecida
+            inFlight--;
+            queueResponse(id == null ? SERVER_BUSY : Pipeline.tag(id, SERVER_BUSY));
+        }
+    }
+
+    // Sin PIPELINE: un comando a la vez y no se lee el siguiente hasta enviar la respuesta.
+    // Con PIPELINE: hasta maxInFlight comandos en curso; al llegar al tope se deja de leer y TCP frena al cliente.
+    private boolean acceptsCommands() {
+        if (closeAfterResponse || exitRequested) return false;
+        if (pipelined) return inFlight < maxInFlight;
+        return inFlight == 0 && response == null && outbox.isEmpty();
+    }
+
+    // Deja la respuesta lista para cifrar; drive() la envía
+    private void queueResponse(String message) {
+        byte[] frame = encodeUtf(message);
+        if (frame == null) {
+            // Solo respuestas propias de la conexión (BYE, HELLO, PIPELINE), que nunca llegan a 64 KB
+            System.out.println("⚠️ Worker error: response too long for writeUTF");
+            close("response too long for writeUTF");
+            return;
+        }
+        outbox.add(ByteBuffer.wrap(frame));
+        System.out.println("📤 Sent: " + message);
+    }
+
+    private void queueFrame(byte[] frame) {
+        outbox.add(ByteBuffer.wrap(frame));
+    }
+
+    // Trama writeUTF; null si el texto pasa de 65535 bytes
+    private static byte[] encodeUtf(String message) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.length() + 2);
+        try {
+            new DataOutputStream(bytes).writeUTF(message);
+        } catch (IOException e) {
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
+    private void updateInterest() {
+        if (key == null || !key.isValid()) return;
+        int ops = acceptsCommands() ? SelectionKey.OP_READ : 0;
+        if (pendingOut != null) ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+
+    // error == null para cierres normales (EXIT, desconexión, inactividad)
+    void close(String error) {
+        if (closed) return;
+        closed = true;
+        try {
+            engine.closeOutbound();
+            ByteBuffer out = loop.netOut;
+            out.clear();
+            engine.wrap(EMPTY, out); // close_notify de cortesía, sin esperar al socket
+            out.flip();
+            channel.write(out);
+        } catch (IOException ignored) {
+        }
+        try { channel.close(); } catch (IOException ignored) {}
+        if (key != null) key.cancel();
+        pendingIn = pendingOut = frames = response = null;
+        outbox.clear();
+        System.out.println("🛑 Client socket closed.");
+        server.connectionClosed(remote, error);
+    }
+
+    private static ByteBuffer copy(ByteBuffer src) {
+        ByteBuffer dst = ByteBuffer.allocate(src.remaining());
+        dst.put(src).flip();
+        return dst;
+    }
+
+    // Agrega al final de 'dst' (en modo lectura); crece al doble para que una trama grande no se copie en cada registro
+    private static ByteBuffer append(ByteBuffer dst, ByteBuffer src) {
+        if (dst.capacity() - dst.limit() < src.remaining()) {
+            if (dst.capacity() - dst.remaining() >= src.remaining() && dst.remaining() < dst.capacity() / 2) {
+                dst.compact().flip();
+            } else {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(dst.capacity() * 2, dst.remaining() + src.remaining()));
+                grown.put(dst).flip();
+                dst = grown;
+            }
+        }
+        int pos = dst.position();
+        dst.position(dst.limit()).limit(dst.limit() + src.remaining());
+        dst.put(src).position(pos);
+        return dst;
+    }
+
+    private static ByteBuffer concat(ByteBuffer head, ByteBuffer tail) {
+        ByteBuffer dst = ByteBuffer.allocate(head.remaining() + tail.remaining());
+        dst.put(head).put(tail).flip();
+        return dst;
+    }
+}
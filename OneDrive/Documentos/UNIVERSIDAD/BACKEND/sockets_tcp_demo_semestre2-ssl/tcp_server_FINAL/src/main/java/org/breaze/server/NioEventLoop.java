@@ -0,0 +1,102 @@
+package org.breaze.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Hilo de selector del modo NIO: hace los handshakes TLS, el cifrado y el armado de tramas de sus conexiones.
+// Los buffers de trabajo son del loop y no de cada conexión, así un cliente inactivo no retiene memoria.
+final class NioEventLoop implements Runnable {
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final int idleTimeoutMs;
+    private volatile boolean running = true;
+
+    // Buffers compartidos por todas las conexiones del loop (solo se usan desde este hilo)
+    ByteBuffer netIn;
+    ByteBuffer netOut;
+    ByteBuffer appIn;
+
+    NioEventLoop(int idleTimeoutMs, int packetSize, int appSize) throws IOException {
+        this.selector = Selector.open();
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.netIn = ByteBuffer.allocateDirect(packetSize);
+        this.netOut = ByteBuffer.allocateDirect(packetSize);
+        this.appIn = ByteBuffer.allocate(appSize);
+    }
+
+    Selector selector() { return selector; }
+
+    // Ejecuta la tarea en el hilo del loop (registro de canales, respuestas de los workers)
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long lastSweep = System.currentTimeMillis();
+        try {
+            while (running) {
+                selector.select(idleTimeoutMs > 0 ? Math.min(SWEEP_INTERVAL_MS, idleTimeoutMs) : 0);
+                runTasks();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection conn = (NioConnection) key.attachment();
+                    if (!key.isValid()) continue;
+                    if (key.isWritable()) conn.onWritable();
+                    if (key.isValid() && key.isReadable()) conn.onReadable();
+                }
+
+                long now = System.currentTimeMillis();
+                if (idleTimeoutMs > 0 && now - lastSweep >= SWEEP_INTERVAL_MS) {
+                    lastSweep = now;
+                    closeIdle(now);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            System.out.println("⚠️ Event loop error: " + e.getMessage());
+        } finally {
+            runTasks();
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                ((NioConnection) key.attachment()).close(null);
+            }
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) task.run();
+    }
+
+    // Mismo efecto que SO_TIMEOUT en el modo bloqueante; no cuenta el tiempo de un comando en curso
+    private void closeIdle(long now) {
+        List<NioConnection> idle = new ArrayList<>();
+        for (SelectionKey key : selector.keys()) {
+            NioConnection conn = (NioConnection) key.attachment();
+            if (conn.idleSince(now) >= idleTimeoutMs) idle.add(conn);
+        }
+        for (NioConnection conn : idle) {
+            System.out.println("⏱️ Client idle for " + idleTimeoutMs + " ms. Closing socket.");
+            conn.close(null);
+        }
+    }
+}
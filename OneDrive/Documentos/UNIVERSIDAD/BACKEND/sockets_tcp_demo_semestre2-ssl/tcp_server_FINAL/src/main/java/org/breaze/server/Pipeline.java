@@ -0,0 +1,52 @@
+package org.breaze.server;
+
+import java.util.Locale;
+
+// Modo pipeline (opcional por conexión). El cliente lo activa con "PIPELINE" y desde ahí cada pedido lleva
+// un id de correlación: "#<id>|COMANDO|k=v...". Los pedidos se ejecutan a la vez (hasta max_in_flight) y cada
+// respuesta vuelve como "#<id>|<respuesta>", no necesariamente en el orden de llegada.
+// Si dos comandos dependen uno del otro (CREATE y luego GET del mismo paciente) el cliente debe esperar la primera respuesta.
+final class Pipeline {
+    static final String COMMAND = "PIPELINE";
+
+    private Pipeline() {}
+
+    static boolean isPipelineCommand(String message) {
+        return message.trim().toUpperCase(Locale.ROOT).equals(COMMAND);
+    }
+
+    static String enabledResponse(int maxInFlight) {
+        return "OK;pipeline;max_in_flight=" + maxInFlight;
+    }
+
+    static boolean isExit(String command) {
+        String upper = command.trim().toUpperCase(Locale.ROOT);
+        return upper.equals("EXIT") || upper.equals("QUIT");
+    }
+
+    // Id de correlación del pedido, o null si no viene en el formato "#<id>|..."
+    static String idOf(String message) {
+        if (message.isEmpty() || message.charAt(0) != '#') return null;
+        int bar = message.indexOf('|');
+        if (bar <= 1) return null;
+        return message.substring(1, bar);
+    }
+
+    // Pedido sin el prefijo "#<id>|"
+    static String commandOf(String message, String id) {
+        return message.substring(id.length() + 2);
+    }
+
+    static String tag(String id, String response) {
+        return "#" + id + "|" + response;
+    }
+
+    static String missingId() {
+        return "ERROR;missing_correlation_id;expected #<id>|COMMAND";
+    }
+
+    // Respuesta que no entra en un writeUTF (65535 bytes); va en lugar de la original y la conexión sigue
+    static String responseTooLarge(String id) {
+        return id == null ? "ERROR;response_too_large" : tag(id, "ERROR;response_too_large");
+    }
+}
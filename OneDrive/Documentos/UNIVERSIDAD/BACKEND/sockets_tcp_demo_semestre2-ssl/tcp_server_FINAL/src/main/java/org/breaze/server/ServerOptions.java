@@ -0,0 +1,86 @@
+package org.breaze.server;
+
+import org.breaze.protocol.BinaryFrames;
+
+import java.util.Locale;
+import java.util.Properties;
+
+// Opciones de red del servidor leídas desde configuration.properties.
+// Si una clave no existe se usa el comportamiento original (puerto 2020, un hilo por cliente, sin timeout).
+public final class ServerOptions {
+    // VIRTUAL: un hilo virtual por conexión; POOL: pool fijo de hilos de plataforma con cola acotada
+    public enum Execution { VIRTUAL, POOL }
+    // BLOCKING: SSLSocket con un hilo por conexión; NIO: selectores + SSLEngine, los comandos van al ejecutor
+    public enum Io { BLOCKING, NIO }
+
+    final int port;
+    final Execution execution;
+    final int poolSize;          // hilos del pool (solo POOL)
+    final int queueCapacity;     // conexiones esperando un hilo libre (solo POOL)
+    final int maxConnections;    // conexiones abiertas a la vez (activas + en cola); las demás se rechazan
+    final int acceptBacklog;     // backlog del ServerSocket
+    final int idleTimeoutMs;     // 0 = sin timeout
+    final Io io;
+    final int eventLoops;        // hilos de selector (solo NIO)
+    final int pipelineMaxInFlight; // comandos a la vez por conexión después de PIPELINE
+    final int binaryMaxFrameBytes; // tamaño máximo de un pedido en el protocolo binario (lo que se reserva por trama)
+
+    public ServerOptions(int port, Execution execution, int poolSize, int queueCapacity,
+                         int maxConnections, int acceptBacklog, int idleTimeoutMs) {
+        this(port, execution, poolSize, queueCapacity, maxConnections, acceptBacklog, idleTimeoutMs,
+                Io.BLOCKING, defaultEventLoops(), 16);
+    }
+
+    public ServerOptions(int port, Execution execution, int poolSize, int queueCapacity,
+                         int maxConnections, int acceptBacklog, int idleTimeoutMs, Io io, int eventLoops,
+                         int pipelineMaxInFlight) {
+        this(port, execution, poolSize, queueCapacity, maxConnections, acceptBacklog, idleTimeoutMs, io, eventLoops,
+                pipelineMaxInFlight, BinaryFrames.DEFAULT_MAX_REQUEST_BYTES);
+    }
+
+    public ServerOptions(int port, Execution execution, int poolSize, int queueCapacity,
+                         int maxConnections, int acceptBacklog, int idleTimeoutMs, Io io, int eventLoops,
+                         int pipelineMaxInFlight, int binaryMaxFrameBytes) {
+        this.port = port;
+        this.execution = execution;
+        this.poolSize = poolSize;
+        this.queueCapacity = queueCapacity;
+        this.maxConnections = maxConnections;
+        this.acceptBacklog = acceptBacklog;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.io = io;
+        this.eventLoops = Math.max(1, eventLoops);
+        this.pipelineMaxInFlight = Math.max(1, pipelineMaxInFlight);
+        this.binaryMaxFrameBytes = Math.min(BinaryFrames.MAX_FRAME_BYTES, Math.max(64 * 1024, binaryMaxFrameBytes));
+    }
+
+    public static ServerOptions defaults(int port) {
+        return new ServerOptions(port, Execution.VIRTUAL, 64, 256, Integer.MAX_VALUE, 50, 0);
+    }
+
+    public static ServerOptions fromProperties(Properties p) {
+        ServerOptions d = defaults(2020);
+        return new ServerOptions(
+                intProp(p, "SERVER_PORT", d.port),
+                Execution.valueOf(p.getProperty("SERVER_EXECUTION", d.execution.name()).trim().toUpperCase(Locale.ROOT)),
+                intProp(p, "SERVER_POOL_SIZE", d.poolSize),
+                intProp(p, "SERVER_QUEUE_CAPACITY", d.queueCapacity),
+                intProp(p, "SERVER_MAX_CONNECTIONS", d.maxConnections),
+                intProp(p, "SERVER_ACCEPT_BACKLOG", d.acceptBacklog),
+                intProp(p, "SERVER_IDLE_TIMEOUT_MS", d.idleTimeoutMs),
+                Io.valueOf(p.getProperty("SERVER_IO", d.io.name()).trim().toUpperCase(Locale.ROOT)),
+                intProp(p, "SERVER_EVENT_LOOPS", d.eventLoops),
+                intProp(p, "SERVER_PIPELINE_MAX_IN_FLIGHT", d.pipelineMaxInFlight),
+                intProp(p, "SERVER_BINARY_MAX_FRAME_BYTES", d.binaryMaxFrameBytes));
+    }
+
+    private static int defaultEventLoops() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    static int intProp(Properties p, String key, int def) {
+        String v = p.getProperty(key);
+        if (v == null || v.isBlank()) return def;
+        return Integer.parseInt(v.trim());
+    }
+}
@@ -1,69 +1,297 @@
 package org.breaze.server;
 
 import org.breaze.logging.AuditLogger;
+import org.breaze.metrics.ServerMetrics;
 import org.breaze.protocol.ServerProtocol;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSocket;
+import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
 import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TCPServer {
+    private final ServerOptions options;
     private final int serverPort;
     private final ServerProtocol protocol;
 
+    // Contadores de conexiones
+    private final AtomicInteger active = new AtomicInteger();   // atendidas por un hilo en este momento
+    private final AtomicInteger queued = new AtomicInteger();   // aceptadas esperando hilo (solo POOL)
+    private final AtomicLong rejected = new AtomicLong();       // cerradas por superar los límites
+    private final AtomicLong accepted = new AtomicLong();
+    private final Semaphore slots;                              // activas + en cola <= maxConnections
+
+    private volatile ExecutorService executor;
+    private volatile SSLServerSocket serverSocket;
+    private volatile ServerSocketChannel serverChannel; // solo NIO
+    private volatile NioEventLoop[] loops;
+
     public TCPServer(int serverPort) {
-        this.serverPort = serverPort;
-        this.protocol = new ServerProtocol();
+        this(ServerOptions.defaults(serverPort));
+    }
+
+    public TCPServer(ServerOptions options) {
+        this(options, new ServerProtocol());
     }
 
+    public TCPServer(ServerOptions options, ServerProtocol protocol) {
+        this.options = options;
+        this.serverPort = options.port;
+        this.protocol = protocol;
+        this.slots = new Semaphore(options.maxConnections);
+    }
+
+    public int activeConnections() { return active.get(); }
+    public int queuedConnections() { return queued.get(); }
+    public long rejectedConnections() { return rejected.get(); }
+    public long acceptedConnections() { return accepted.get(); }
+
     public void start() {
+        ServerMetrics.registerMBeans(); // org.breaze:type=Server y org.breaze:type=Command,name=... en jconsole
+        if (options.io == ServerOptions.Io.NIO) {
+            startNio();
+            return;
+        }
         try {
             SSLServerSocketFactory sslSocketFactory = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
-            SSLServerSocket serverSocket = (SSLServerSocket) sslSocketFactory.createServerSocket(serverPort);
-            System.out.println("✅ Server started on port: " + serverPort);
+            serverSocket = (SSLServerSocket) sslSocketFactory.createServerSocket(serverPort, options.acceptBacklog);
+            executor = newExecutor();
+            System.out.println("✅ Server started on port: " + serverPort + " (" + options.execution
+                    + ", max_connections=" + options.maxConnections + ")");
 
             while (true) {
                 // Aceptamos al cliente
                 SSLSocket clientSocket = (SSLSocket) serverSocket.accept();
                 String remote = clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
+                accepted.incrementAndGet();
+
+                // Límite de conexiones: se rechaza en vez de crear hilos sin control
+                if (!slots.tryAcquire()) {
+                    reject(clientSocket, remote, "max_connections");
+                    continue;
+                }
 
                 // Guardamos el remoto en el contexto para la auditoría
                 AuditLogger.setRemote(remote);
                 AuditLogger.info("CLIENT_CONNECTED", Map.of(
                         "remote", remote,
-                        "port", String.valueOf(serverPort)
+                        "port", String.valueOf(serverPort),
+                        "active", String.valueOf(active.get()),
+                        "queued", String.valueOf(queued.get())
                 ));
 
                 System.out.println("🔗 Client connected! " + remote);
 
-                // Lanzamos hilo por cliente
-                new Thread(() -> {
-                    try {
-                        new ClientWorker(clientSocket, protocol).run();
-                        AuditLogger.info("CLIENT_FINISHED", Map.of(
-                                "remote", remote
-                        ));
-                    } catch (Exception e) {
-                        AuditLogger.error("CLIENT_ERROR", Map.of(
-                                "remote", remote,
-                                "error", e.getMessage()
-                        ));
-                    } finally {
-                        AuditLogger.info("CLIENT_DISCONNECTED", Map.of(
-                                "remote", remote
-                        ));
-                        AuditLogger.clearRemote();
-                    }
-                }).start();
+                // Lanzamos la atención del cliente en el modelo configurado
+                queued.incrementAndGet();
+                try {
+                    executor.execute(() -> serve(clientSocket, remote));
+                } catch (RejectedExecutionException full) {
+                    queued.decrementAndGet();
+                    slots.release();
+                    reject(clientSocket, remote, "queue_full");
+                }
             }
         } catch (IOException e) {
+            if (serverSocket != null && serverSocket.isClosed()) {
+                System.out.println("🛑 Server stopped.");
+                return;
+            }
+            AuditLogger.error("SERVER_ERROR", Map.of(
+                    "port", String.valueOf(serverPort),
+                    "error", String.valueOf(e.getMessage())
+            ));
+            System.out.println("❌ Server error: " + e.getMessage());
+        } finally {
+            AuditLogger.clearRemote();
+        }
+    }
+
+    // Cierra el socket de escucha y deja de aceptar; las conexiones en curso terminan solas
+    public void stop() {
+        try { if (serverSocket != null) serverSocket.close(); } catch (IOException ignored) {}
+        try { if (serverChannel != null) serverChannel.close(); } catch (IOException ignored) {}
+        NioEventLoop[] l = loops;
+        if (l != null) for (NioEventLoop loop : l) loop.shutdown();
+        if (executor != null) executor.shutdown();
+    }
+
+    // Modo NIO: pocos hilos de selector manejan handshakes y tramas de todas las conexiones y
+    // processMessage corre en el ejecutor configurado. Un cliente inactivo no ocupa ningún hilo.
+    private void startNio() {
+        try {
+            SSLContext sslContext = SSLContext.getDefault(); // mismo keystore que SSLServerSocketFactory.getDefault()
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(serverPort), options.acceptBacklog);
+            executor = newExecutor();
+
+            SSLEngine probe = sslContext.createSSLEngine();
+            int packetSize = probe.getSession().getPacketBufferSize();
+            int appSize = probe.getSession().getApplicationBufferSize();
+            NioEventLoop[] created = new NioEventLoop[options.eventLoops];
+            for (int i = 0; i < created.length; i++) {
+                created[i] = new NioEventLoop(options.idleTimeoutMs, packetSize, appSize);
+                new Thread(created[i], "nio-loop-" + (i + 1)).start();
+            }
+            loops = created;
+            System.out.println("✅ Server started on port: " + serverPort + " (NIO, " + created.length + " event loops, "
+                    + options.execution + " workers, max_connections=" + options.maxConnections + ")");
+
+            int next = 0;
+            while (true) {
+                SocketChannel client = serverChannel.accept();
+                String remote = client.socket().getInetAddress().getHostAddress() + ":" + client.socket().getPort();
+                accepted.incrementAndGet();
+
+                if (!slots.tryAcquire()) {
+                    reject(client, remote, "max_connections");
+                    continue;
+                }
+                active.incrementAndGet();
+                ServerMetrics.connectionOpened();
+
+                AuditLogger.setRemote(remote);
+                AuditLogger.info("CLIENT_CONNECTED", Map.of(
+                        "remote", remote,
+                        "port", String.valueOf(serverPort),
+                        "active", String.valueOf(active.get()),
+                        "queued", String.valueOf(queued.get())
+                ));
+                System.out.println("🔗 Client connected! " + remote);
+
+                try {
+                    client.configureBlocking(false);
+                } catch (IOException e) {
+                    try { client.close(); } catch (IOException ignored) {}
+                    connectionClosed(remote, e.getMessage());
+                    continue;
+                }
+                SSLEngine engine = sslContext.createSSLEngine(client.socket().getInetAddress().getHostAddress(), client.socket().getPort());
+                engine.setUseClientMode(false);
+                NioEventLoop loop = created[next++ % created.length];
+                NioConnection conn = new NioConnection(this, loop, client, engine, remote, options.pipelineMaxInFlight,
+                        options.binaryMaxFrameBytes);
+                loop.execute(conn::register);
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            if (serverChannel != null && !serverChannel.isOpen()) {
+                System.out.println("🛑 Server stopped.");
+                return;
+            }
             AuditLogger.error("SERVER_ERROR", Map.of(
                     "port", String.valueOf(serverPort),
-                    "error", e.getMessage()
+                    "error", String.valueOf(e.getMessage())
             ));
             System.out.println("❌ Server error: " + e.getMessage());
+        } finally {
+            AuditLogger.clearRemote();
+        }
+    }
+
+    // NIO: corre el comando de una conexión en el ejecutor (fuera del loop); false si no acepta más trabajo
+    boolean execute(NioConnection conn, Runnable command) {
+        try {
+            executor.execute(() -> {
+                AuditLogger.setRemote(conn.remote());
+                try {
+                    command.run();
+                } catch (RuntimeException e) {
+                    conn.closeLater(String.valueOf(e.getMessage()));
+                } finally {
+                    AuditLogger.clearRemote();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException full) {
+            return false;
+        }
+    }
+
+    ServerProtocol protocol() { return protocol; }
+
+    // NIO: equivalente al finally de serve()
+    void connectionClosed(String remote, String error) {
+        active.decrementAndGet();
+        ServerMetrics.connectionClosed();
+        slots.release();
+        AuditLogger.setRemote(remote);
+        if (error == null) {
+            AuditLogger.info("CLIENT_FINISHED", Map.of(
+                    "remote", remote
+            ));
+        } else {
+            AuditLogger.error("CLIENT_ERROR", Map.of(
+                    "remote", remote,
+                    "error", error
+            ));
+        }
+        AuditLogger.info("CLIENT_DISCONNECTED", Map.of(
+                "remote", remote
+        ));
+        AuditLogger.clearRemote();
+    }
+
+    private void serve(SSLSocket clientSocket, String remote) {
+        queued.decrementAndGet();
+        active.incrementAndGet();
+        ServerMetrics.connectionOpened();
+        AuditLogger.setRemote(remote);
+        try {
+            new ClientWorker(clientSocket, protocol, options.idleTimeoutMs, options.pipelineMaxInFlight,
+                    options.binaryMaxFrameBytes).run();
+            AuditLogger.info("CLIENT_FINISHED", Map.of(
+                    "remote", remote
+            ));
+        } catch (Exception e) {
+            AuditLogger.error("CLIENT_ERROR", Map.of(
+                    "remote", remote,
+                    "error", String.valueOf(e.getMessage())
+            ));
+        } finally {
+            active.decrementAndGet();
+            ServerMetrics.connectionClosed();
+            slots.release();
+            AuditLogger.info("CLIENT_DISCONNECTED", Map.of(
+                    "remote", remote
+            ));
+            AuditLogger.clearRemote();
+        }
+    }
+
+    // El rechazo solo cierra el socket: no se hace el handshake TLS en el hilo que acepta
+    private void reject(Closeable clientSocket, String remote, String reason) {
+        rejected.incrementAndGet();
+        ServerMetrics.connectionRejected();
+        try { clientSocket.close(); } catch (IOException ignored) {}
+        AuditLogger.warn("CLIENT_REJECTED", Map.of(
+                "remote", remote,
+                "reason", reason,
+                "active", String.valueOf(active.get()),
+                "queued", String.valueOf(queued.get()),
+                "rejected", String.valueOf(rejected.get())
+        ));
+        System.out.println("⛔ Client rejected (" + reason + "): " + remote);
+    }
+
+    private ExecutorService newExecutor() {
+        if (options.execution == ServerOptions.Execution.POOL) {
+            AtomicInteger n = new AtomicInteger();
+            return new ThreadPoolExecutor(options.poolSize, options.poolSize, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, options.queueCapacity)),
+                    r -> new Thread(r, "client-worker-" + n.incrementAndGet()),
+                    new ThreadPoolExecutor.AbortPolicy());
         }
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-vt-", 0).factory());
     }
 }
@@ -0,0 +1,198 @@
+package org.breaze.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Shift-And (HAMMING) y Myers (EDIT) contra la ventana de Hamming y la tabla de Sellers hechas a mano
+class ApproximateMatcherTest {
+
+    // N en cualquiera de los dos lados coincide con todo
+    static boolean same(char s, char p) {
+        return s == 'N' || p == 'N' || s == p;
+    }
+
+    static boolean naiveHamming(String seq, String p, int k) {
+        for (int i = 0; i + p.length() <= seq.length(); i++) {
+            int errors = 0;
+            for (int j = 0; j < p.length() && errors <= k; j++) {
+                if (!same(seq.charAt(i + j), p.charAt(j))) errors++;
+            }
+            if (errors <= k) return true;
+        }
+        return false;
+    }
+
+    // Sellers: distancia de edición con comienzo libre en la secuencia
+    static boolean naiveEdit(String seq, String p, int k) {
+        int m = p.length();
+        int[] col = new int[m + 1];
+        for (int i = 0; i <= m; i++) col[i] = i;
+        for (int j = 1; j <= seq.length(); j++) {
+            int diag = col[0]; // fila 0 vale 0 en todas las columnas
+            for (int i = 1; i <= m; i++) {
+                int up = col[i];
+                col[i] = Math.min(diag + (same(seq.charAt(j - 1), p.charAt(i - 1)) ? 0 : 1),
+                        Math.min(col[i] + 1, col[i - 1] + 1));
+                diag = up;
+            }
+            if (col[m] <= k) return true;
+        }
+        return false;
+    }
+
+    static BitSet naiveScan(String seq, List<String> patterns, int[] maxErrors, ApproximateMatcher.Mode[] modes) {
+        BitSet found = new BitSet();
+        for (int id = 0; id < patterns.size(); id++) {
+            String p = patterns.get(id);
+            boolean hit;
+            if (maxErrors[id] == 0) hit = seq.contains(p); // las exactas van al autómata: N literal
+            else if (modes[id] == ApproximateMatcher.Mode.EDIT) hit = naiveEdit(seq, p, maxErrors[id]);
+            else hit = naiveHamming(seq, p, maxErrors[id]);
+            if (hit) found.set(id);
+        }
+        return found;
+    }
+
+    static BitSet scan(String seq, List<String> patterns, int[] maxErrors, ApproximateMatcher.Mode[] modes) {
+        return SignatureMatcher.compile(patterns, maxErrors, modes).scan(PackedSequence.clean(seq));
+    }
+
+    // Ronda al azar con firmas como las que deja DiseaseDB: en mayúsculas, distintas y con 0 <= k < largo
+    private static void randomRound(Random rnd, int seqLength, int maxPatternLength, int patternCount) {
+        String seq = PackedSequenceTest.randomBases(rnd, seqLength, "ACGTACGTACGTN");
+        LinkedHashSet<String> set = new LinkedHashSet<>();
+        while (set.size() < patternCount) {
+            int m = 2 + rnd.nextInt(maxPatternLength - 1);
+            if (seq.length() >= m && rnd.nextBoolean()) {
+                // Un trozo de la secuencia con algunas bases cambiadas: queda cerca del umbral
+                int from = rnd.nextInt(seq.length() - m + 1);
+                char[] p = seq.substring(from, from + m).toCharArray();
+                for (int e = rnd.nextInt(3); e > 0; e--) p[rnd.nextInt(m)] = "ACGT".charAt(rnd.nextInt(4));
+                set.add(new String(p));
+            } else {
+                set.add(PackedSequenceTest.randomBases(rnd, m, "ACGTACGTN"));
+            }
+        }
+        List<String> patterns = new ArrayList<>(set);
+        int[] maxErrors = new int[patterns.size()];
+        ApproximateMatcher.Mode[] modes = new ApproximateMatcher.Mode[patterns.size()];
+        for (int id = 0; id < patterns.size(); id++) {
+            int m = patterns.get(id).length();
+            maxErrors[id] = rnd.nextInt(4) == 0 ? 0 : 1 + rnd.nextInt(Math.min(3, m - 1));
+            modes[id] = rnd.nextBoolean() ? ApproximateMatcher.Mode.EDIT : ApproximateMatcher.Mode.HAMMING;
+        }
+        assertEquals(naiveScan(seq, patterns, maxErrors, modes), scan(seq, patterns, maxErrors, modes),
+                () -> "seq=" + seq + " patterns=" + patterns + " k=" + Arrays.toString(maxErrors)
+                        + " modes=" + Arrays.toString(modes));
+    }
+
+    @Test
+    void matchesNaiveReferenceOnShortPatterns() {
+        Random rnd = new Random(11);
+        for (int round = 0; round < 3000; round++) randomRound(rnd, rnd.nextInt(80), 8, 1 + rnd.nextInt(8));
+    }
+
+    @Test
+    void matchesNaiveReferenceWhenHammingPatternsShareWords() {
+        // Muchas firmas del mismo k: ocupan más de una palabra de 64 bits
+        Random rnd = new Random(12);
+        for (int round = 0; round < 300; round++) randomRound(rnd, 50 + rnd.nextInt(200), 30, 10 + rnd.nextInt(20));
+    }
+
+    @Test
+    void hammingWordsSplitAtSixtyFourBits() {
+        Random rnd = new Random(13);
+        for (int round = 0; round < 200; round++) {
+            String seq = PackedSequenceTest.randomBases(rnd, 300, "ACGT");
+            List<String> patterns = new ArrayList<>();
+            // 20 + 20 + 20 entran en una palabra; la cuarta ya no (64 bits) y abre otra
+            for (int i = 0; i < 4; i++) {
+                int from = rnd.nextInt(seq.length() - 20);
+                char[] p = seq.substring(from, from + 20).toCharArray();
+                p[rnd.nextInt(20)] = 'A';
+                p[rnd.nextInt(20)] = 'C';
+                if (i == 3 || rnd.nextBoolean()) p[rnd.nextInt(20)] = 'G';
+                patterns.add(new String(p));
+            }
+            if (new LinkedHashSet<>(patterns).size() < patterns.size()) continue;
+            int[] maxErrors = { 2, 2, 2, 2 };
+            ApproximateMatcher.Mode[] modes = new ApproximateMatcher.Mode[4];
+            Arrays.fill(modes, ApproximateMatcher.Mode.HAMMING);
+            assertEquals(naiveScan(seq, patterns, maxErrors, modes), scan(seq, patterns, maxErrors, modes));
+        }
+    }
+
+    @Test
+    void sixtyFourBasePatternUsesTheWholeWord() {
+        Random rnd = new Random(14);
+        String seq = PackedSequenceTest.randomBases(rnd, 500, "ACGT");
+        char[] p = seq.substring(100, 164).toCharArray();
+        p[0] = p[0] == 'A' ? 'C' : 'A';   // error en el primer bit
+        p[63] = p[63] == 'A' ? 'C' : 'A'; // y en el último
+        String pattern = new String(p);
+        for (ApproximateMatcher.Mode mode : ApproximateMatcher.Mode.values()) {
+            ApproximateMatcher.Mode[] modes = { mode };
+            assertTrue(scan(seq, List.of(pattern), new int[] { 2 }, modes).get(0), mode.name());
+            assertFalse(scan(seq, List.of(pattern), new int[] { 1 }, modes).get(0), mode.name());
+        }
+    }
+
+    @Test
+    void nMatchesAnyBaseOnBothSides() {
+        ApproximateMatcher.Mode[] hamming = { ApproximateMatcher.Mode.HAMMING };
+        ApproximateMatcher.Mode[] edit = { ApproximateMatcher.Mode.EDIT };
+        // N en la secuencia: no gasta errores, el único es la A en lugar de T
+        assertTrue(scan("TTACNTTAT", List.of("ACGTTTT"), new int[] { 1 }, hamming).get(0));
+        assertTrue(scan("TTACNTTAT", List.of("ACGTTTT"), new int[] { 1 }, edit).get(0));
+        // N en la firma
+        assertTrue(scan("GGACGTAA", List.of("ANNTAC"), new int[] { 1 }, hamming).get(0));
+        assertTrue(scan("GGACGTAA", List.of("ANNTAC"), new int[] { 1 }, edit).get(0));
+        assertFalse(scan("GGACGTAA", List.of("CNNTAC"), new int[] { 1 }, hamming).get(0));
+    }
+
+    @Test
+    void editAllowsInsertionsAndDeletionsHammingDoesNot() {
+        ApproximateMatcher.Mode[] hamming = { ApproximateMatcher.Mode.HAMMING };
+        ApproximateMatcher.Mode[] edit = { ApproximateMatcher.Mode.EDIT };
+        String seq = "TTTTACGTACGTTTTT";
+        String deletion = "ACGACGT";   // falta una T
+        String insertion = "ACGTTACGT"; // sobra una T
+        for (String p : List.of(deletion, insertion)) {
+            assertTrue(scan(seq, List.of(p), new int[] { 1 }, edit).get(0), p);
+            assertFalse(scan(seq, List.of(p), new int[] { 1 }, hamming).get(0), p);
+            assertTrue(naiveEdit(seq, p, 1), p);
+            assertFalse(naiveHamming(seq, p, 1), p);
+        }
+    }
+
+    @Test
+    void stateSurvivesChunkBoundaries() {
+        Random rnd = new Random(15);
+        for (int round = 0; round < 300; round++) {
+            String seq = PackedSequenceTest.randomBases(rnd, 200, "ACGTN");
+            List<String> patterns = List.of(seq.substring(10, 25).replace('N', 'A'), "ACGTACGT", "TTTTGGGG");
+            int[] maxErrors = { 3, 2, 1 };
+            ApproximateMatcher.Mode[] modes = {
+                    ApproximateMatcher.Mode.EDIT, ApproximateMatcher.Mode.HAMMING, ApproximateMatcher.Mode.EDIT };
+            SignatureMatcher matcher = SignatureMatcher.compile(patterns, maxErrors, modes);
+            // Cada fragmento se limpia por separado, como en FASTA_CHUNK; el estado sigue de uno a otro
+            SignatureMatcher.Scanner scanner = matcher.scanner();
+            int pos = 0;
+            while (pos < seq.length()) {
+                int end = Math.min(seq.length(), pos + 1 + rnd.nextInt(13));
+                PackedSequence chunk = PackedSequence.clean(seq.substring(pos, end));
+                for (int i = 0; i < chunk.length(); i++) scanner.step(chunk.code(i));
+                pos = end;
+            }
+            assertEquals(naiveScan(seq, patterns, maxErrors, modes), scanner.found());
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.breaze.protocol;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// CsvRecord contra el parser de Strings que usaba el servidor antes (splitCsvSimple + unquote)
+class CsvRecordTest {
+
+    @TempDir
+    Path dir;
+
+    // Referencia: separa en comas fuera de comillas y deja cada campo como venía
+    static List<String> naiveSplit(String line) {
+        List<String> out = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        boolean inQuotes = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                inQuotes = !inQuotes;
+                cur.append(c);
+            } else if (c == ',' && !inQuotes) {
+                out.add(cur.toString());
+                cur.setLength(0);
+            } else {
+                cur.append(c);
+            }
+        }
+        out.add(cur.toString());
+        return out;
+    }
+
+    // Referencia: recorta, quita comillas exteriores y "" -> "
+    static String naiveUnquote(String s) {
+        s = s.trim();
+        if (s.startsWith("\"") && s.endsWith("\"") && s.length() >= 2) {
+            s = s.substring(1, s.length() - 1).replace("\"\"", "\"");
+        }
+        return s;
+    }
+
+    static String randomValue(Random rnd) {
+        String alphabet = "abcXYZ019 ,,\"\"\táéñ€-\r";
+        StringBuilder sb = new StringBuilder();
+        for (int i = rnd.nextInt(10); i > 0; i--) sb.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+        return sb.toString();
+    }
+
+    static String randomLine(Random rnd) {
+        StringBuilder line = new StringBuilder();
+        for (int f = rnd.nextInt(8); f >= 0; f--) {
+            if (line.length() > 0) line.append(',');
+            String v = randomValue(rnd);
+            // Casi siempre como lo escribe CsvIO.csv; a veces crudo, con comillas sueltas
+            line.append(rnd.nextInt(5) > 0 ? CsvIO.csv(v) : v);
+        }
+        return line.toString();
+    }
+
+    // La línea tal como la devuelve el parser: lo que hay antes del \n, sin un \r final
+    private static String stripCr(String line) {
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    private static void assertMatchesNaive(String line, CsvRecord r) {
+        String expectedLine = stripCr(line);
+        List<String> vals = naiveSplit(expectedLine);
+        assertEquals(expectedLine, r.line());
+        assertEquals(expectedLine.getBytes(StandardCharsets.UTF_8).length, r.length());
+        for (int i = 0; i < vals.size(); i++) {
+            String expected = naiveUnquote(vals.get(i));
+            byte[] utf8 = expected.getBytes(StandardCharsets.UTF_8);
+            assertEquals(expected, r.field(i), () -> "line=" + expectedLine);
+            assertTrue(r.fieldEquals(i, utf8), () -> "line=" + expectedLine);
+            assertFalse(r.fieldEquals(i, (expected + "x").getBytes(StandardCharsets.UTF_8)));
+        }
+        assertEquals(vals.size(), r.fieldCount(), () -> "line=" + expectedLine);
+        assertEquals("", r.field(vals.size())); // campo que falta
+        assertTrue(r.fieldEquals(vals.size(), new byte[0]));
+    }
+
+    @Test
+    void scanAndReadAtMatchNaiveParser() throws IOException {
+        Random rnd = new Random(31);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) lines.add(randomLine(rnd));
+
+        // Mezcla \n y \r\n (en 'lines' queda lo que hay antes del \n); la última línea queda sin salto
+        Path file = dir.resolve("rows.csv");
+        StringBuilder content = new StringBuilder();
+        List<Long> offsets = new ArrayList<>();
+        long offset = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            offsets.add(offset);
+            if (rnd.nextBoolean()) lines.set(i, lines.get(i) + "\r");
+            String chunk = i == lines.size() - 1 ? lines.get(i) : lines.get(i) + "\n";
+            content.append(chunk);
+            offset += chunk.getBytes(StandardCharsets.UTF_8).length;
+        }
+        Files.writeString(file, content.toString(), StandardCharsets.UTF_8);
+
+        List<Long> seen = new ArrayList<>();
+        CsvRecord.scan(file, 0, false, r -> {
+            int i = seen.size();
+            assertEquals(offsets.get(i), r.offset());
+            assertMatchesNaive(lines.get(i), r);
+            seen.add(r.offset());
+        });
+        assertEquals(offsets, seen);
+
+        CsvRecord r = new CsvRecord();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int i = lines.size() - 1; i >= 0; i -= 7) {
+                assertTrue(r.readAt(ch, offsets.get(i)));
+                assertEquals(offsets.get(i), r.offset());
+                assertMatchesNaive(lines.get(i), r);
+            }
+            assertFalse(r.readAt(ch, -1));
+            assertFalse(r.readAt(ch, ch.size()));
+        }
+    }
+
+    @Test
+    void embeddedQuotesAndCommas() throws IOException {
+        String name = "Pérez, \"Juan\"";
+        String line = "7," + CsvIO.csv(name) + ", \"12,5\" ,\"\"\"\"," + CsvIO.csv("a\"\"b");
+        Path file = dir.resolve("quotes.csv");
+        Files.writeString(file, line + "\n", StandardCharsets.UTF_8);
+        CsvRecord r = new CsvRecord();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            assertTrue(r.readAt(ch, 0));
+        }
+        assertEquals(5, r.fieldCount());
+        assertEquals("7", r.field(0));
+        assertEquals(name, r.field(1));
+        assertEquals("12,5", r.field(2));
+        assertEquals("\"", r.field(3));
+        assertEquals("a\"\"b", r.field(4));
+        assertTrue(r.fieldEquals(1, name.getBytes(StandardCharsets.UTF_8)));
+        assertMatchesNaive(line, r);
+    }
+
+    @Test
+    void skipsHeaderAndStartsFromOffset() throws IOException {
+        Path file = dir.resolve("h.csv");
+        Files.writeString(file, "id,name\r\n1,a\r\n2,b\r\n", StandardCharsets.UTF_8);
+        List<String> ids = new ArrayList<>();
+        CsvRecord.scan(file, 0, true, r -> ids.add(r.field(0) + "@" + r.offset()));
+        assertEquals(List.of("1@9", "2@14"), ids);
+        ids.clear();
+        CsvRecord.scan(file, 14, false, r -> ids.add(r.field(1)));
+        assertEquals(List.of("b"), ids);
+        ids.clear();
+        CsvRecord.scan(dir.resolve("missing.csv"), 0, true, r -> ids.add(r.line()));
+        assertTrue(ids.isEmpty());
+    }
+
+    @Test
+    void linesLongerThanTheScanBuffer() throws IOException {
+        // Más larga que el búfer de 64 KiB del recorrido y que el de 1 KiB de readAt
+        String big = "x".repeat(200_000);
+        String second = "2," + CsvIO.csv(big + ",\"") + ",z";
+        String content = "1,a\n" + second + "\n3,c";
+        Path file = dir.resolve("long.csv");
+        Files.writeString(file, content, StandardCharsets.UTF_8);
+        List<String> got = new ArrayList<>();
+        CsvRecord.scan(file, 0, false, r -> {
+            got.add(r.field(0));
+            if (r.field(0).equals("2")) assertMatchesNaive(second, r);
+        });
+        assertEquals(List.of("1", "2", "3"), got);
+
+        CsvRecord r = new CsvRecord();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            assertTrue(r.readAt(ch, 4));
+            assertMatchesNaive(second, r);
+            assertTrue(r.readAt(ch, content.length() - 3));
+            assertEquals("c", r.field(1));
+        }
+    }
+
+    @Test
+    void longFieldParsesWithoutStrings() throws IOException {
+        Path file = dir.resolve("n.csv");
+        Files.writeString(file, "12, -5 ,,abc,9223372036854775807,9223372036854775808,-\n", StandardCharsets.UTF_8);
+        CsvRecord r = new CsvRecord();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            assertTrue(r.readAt(ch, 0));
+        }
+        assertEquals(12, r.longField(0));
+        assertEquals(-5, r.longField(1));
+        assertThrows(NumberFormatException.class, () -> r.longField(2));
+        assertThrows(NumberFormatException.class, () -> r.longField(3));
+        assertEquals(Long.MAX_VALUE, r.longField(4));
+        assertThrows(NumberFormatException.class, () -> r.longField(5));
+        assertThrows(NumberFormatException.class, () -> r.longField(6));
+        assertThrows(NumberFormatException.class, () -> r.longField(7));
+    }
+}
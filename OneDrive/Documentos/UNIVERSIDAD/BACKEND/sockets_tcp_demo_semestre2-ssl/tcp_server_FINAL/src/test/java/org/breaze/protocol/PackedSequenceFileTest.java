@@ -0,0 +1,166 @@
+package org.breaze.protocol;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Un .pseq escrito con Writer tiene que leerse igual que la PackedSequence de la que salió
+class PackedSequenceFileTest {
+    private static final int B = PackedSequenceFile.BLOCK_BASES;
+
+    @TempDir
+    Path dir;
+
+    private Path write(String name, PackedSequence seq) throws IOException {
+        Path file = dir.resolve(name + PackedSequenceFile.EXTENSION);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            PackedSequenceFile.Writer writer = new PackedSequenceFile.Writer(out);
+            for (int i = 0; i < seq.length(); i++) writer.append(seq.code(i));
+            assertEquals(seq.length(), writer.bases());
+            long size = writer.finish();
+            out.flush();
+            assertEquals(size, Files.size(file));
+        }
+        return file;
+    }
+
+    private static void assertSameBases(PackedSequence expected, BaseSequence actual, long from) {
+        BaseSequence.Cursor c = actual.cursor(from);
+        for (int i = (int) from; i < expected.length(); i++) assertEquals(expected.code(i), c.next(), "pos " + i);
+        assertEquals(-1, c.next());
+    }
+
+    private static PackedSequence random(Random rnd, int length, double nRate) {
+        PackedSequence.Builder b = new PackedSequence.Builder(length);
+        for (int i = 0; i < length; i++) b.append(rnd.nextDouble() < nRate ? 4 : rnd.nextInt(4));
+        return b.build();
+    }
+
+    @Test
+    void roundTripAroundBlockBoundaries() throws IOException {
+        Random rnd = new Random(21);
+        for (int length : new int[] { 0, 1, 3, 4, 5, B - 1, B, B + 1, 2 * B + 777 }) {
+            PackedSequence seq = random(rnd, length, 0.01);
+            PackedSequenceFile file = PackedSequenceFile.open(write("len" + length, seq));
+            assertEquals(length, file.baseCount());
+            assertSameBases(seq, file, 0);
+        }
+    }
+
+    @Test
+    void cursorStartsAnywhereIncludingBlockEdges() throws IOException {
+        Random rnd = new Random(22);
+        PackedSequence seq = random(rnd, 2 * B + 100, 0.05);
+        PackedSequenceFile file = PackedSequenceFile.open(write("cursor", seq));
+        long[] starts = { 0, 1, B - 1, B, B + 1, 2 * B - 1, 2 * B, 2 * B + 99, 2 * B + 100 };
+        for (long from : starts) assertSameBases(seq, file, from);
+        for (int t = 0; t < 20; t++) assertSameBases(seq, file, rnd.nextInt(seq.length() + 1));
+        assertThrows(IndexOutOfBoundsException.class, () -> file.cursor(-1));
+        assertThrows(IndexOutOfBoundsException.class, () -> file.cursor(seq.length() + 1));
+    }
+
+    @Test
+    void cursorAtTheEndOfAnExactNumberOfBlocks() throws IOException {
+        PackedSequence seq = random(new Random(23), 2 * B, 0);
+        PackedSequenceFile file = PackedSequenceFile.open(write("exact", seq));
+        assertEquals(-1, file.cursor(2 * B).next());
+        assertSameBases(seq, file, B);
+    }
+
+    @Test
+    void nRunsCrossingABlockBoundary() throws IOException {
+        // Tramo de N que empieza al final del primer bloque y sigue en el segundo, más N sueltas y al final
+        char[] bases = new char[2 * B + 10];
+        Arrays.fill(bases, 'C');
+        Arrays.fill(bases, B - 5, B + 7, 'N');
+        bases[0] = 'N';
+        bases[B / 2] = 'N';
+        bases[bases.length - 1] = 'N';
+        PackedSequence seq = PackedSequence.clean(new String(bases));
+        PackedSequenceFile file = PackedSequenceFile.open(write("nrun", seq));
+        assertSameBases(seq, file, 0);
+        assertSameBases(seq, file, B - 3);
+        assertSameBases(seq, file, B);
+        assertEquals(4, file.cursor(B - 5).next());
+        assertEquals(1, file.cursor(B + 7).next());
+    }
+
+    @Test
+    void onlyNs() throws IOException {
+        PackedSequence seq = PackedSequence.clean("N".repeat(B + 3));
+        assertSameBases(seq, PackedSequenceFile.open(write("allN", seq)), 0);
+    }
+
+    @Test
+    void rejectsTruncatedOrForeignFiles() throws IOException {
+        Path file = write("ok", PackedSequence.clean("ACGTACGTNN"));
+        byte[] bytes = Files.readAllBytes(file);
+
+        Path truncated = dir.resolve("truncated.pseq");
+        Files.write(truncated, Arrays.copyOf(bytes, bytes.length - 1));
+        assertThrows(IOException.class, () -> PackedSequenceFile.open(truncated));
+
+        Path tiny = dir.resolve("tiny.pseq");
+        Files.write(tiny, Arrays.copyOf(bytes, 10));
+        assertThrows(IOException.class, () -> PackedSequenceFile.open(tiny));
+
+        Path foreign = dir.resolve("foreign.pseq");
+        byte[] other = bytes.clone();
+        other[0] = '>';
+        Files.write(foreign, other);
+        assertThrows(IOException.class, () -> PackedSequenceFile.open(foreign));
+    }
+
+    @Test
+    void storedBlobMatchesTextFastaAndCanonicalHashes() throws IOException {
+        Random rnd = new Random(24);
+        FastaStore store = new FastaStore(dir.resolve("FASTAS"));
+        for (int length : new int[] { 0, 7, B + 1 }) {
+            PackedSequence seq = random(rnd, length, 0.02);
+            String patientId = "p" + length;
+            FastaStore.Blob blob = store.put(patientId, seq);
+
+            assertTrue(PackedSequenceFile.isPacked(blob.path()));
+            assertSameBases(seq, FastaIO.openPatientSequence(blob.path()), 0);
+            assertEquals(length, blob.bases());
+
+            // sequence_sha256: SHA-256 de una letra por base, sin header ni saltos de línea
+            String canonical = FastaStore.hex(FastaStore.sha256().digest(seq.toString().getBytes(StandardCharsets.US_ASCII)));
+            assertEquals(canonical, blob.sequenceSha256());
+            assertTrue(blob.path().getFileName().toString().startsWith(canonical));
+
+            // checksum_fasta y file_size_bytes: los del FASTA de texto que entrega EXPORT_FASTA
+            Path fasta = dir.resolve(patientId + ".fasta");
+            long fastaBytes = FastaIO.writeFasta(fasta, patientId, seq);
+            assertEquals(fastaBytes, Files.size(fasta));
+            assertEquals(fastaBytes, blob.fastaBytes());
+            assertEquals(FastaStore.hex(FastaStore.sha256().digest(Files.readAllBytes(fasta))), blob.fastaChecksum());
+
+            FastaStore.SequenceDigest digest = FastaStore.digest(patientId, PackedSequenceFile.open(blob.path()));
+            assertEquals(canonical, digest.finish());
+            assertEquals(blob.fastaChecksum(), digest.fastaChecksum());
+            assertEquals(blob.fastaBytes(), digest.fastaBytes());
+        }
+    }
+
+    @Test
+    void sameSequenceSharesOneBlob() throws IOException {
+        FastaStore store = new FastaStore(dir.resolve("FASTAS"));
+        PackedSequence seq = PackedSequence.clean("ACGTNACGT");
+        FastaStore.Blob a = store.put("a", seq), b = store.put("b", seq);
+        assertEquals(a.path(), b.path());
+        assertEquals(a.sequenceSha256(), b.sequenceSha256());
+        assertNotEquals(a.fastaChecksum(), b.fastaChecksum()); // el header del FASTA de texto es distinto
+        assertEquals(2, store.references(a.path().toString()));
+    }
+}
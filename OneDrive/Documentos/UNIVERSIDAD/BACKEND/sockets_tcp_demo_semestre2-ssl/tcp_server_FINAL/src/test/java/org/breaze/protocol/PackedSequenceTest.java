@@ -0,0 +1,151 @@
+package org.breaze.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// La secuencia empaquetada tiene que comportarse igual que el String limpio que reemplaza
+class PackedSequenceTest {
+
+    // Largos alrededor de los límites de palabra: 32 bases por long en bits, 64 por long en la máscara de N
+    private static final int[] LENGTHS = { 0, 1, 2, 31, 32, 33, 63, 64, 65, 95, 96, 97, 127, 128, 129, 200, 1000 };
+
+    static String randomBases(Random rnd, int length, String alphabet) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) sb.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+        return sb.toString();
+    }
+
+    static long naiveKmer(String s, int pos, int k) {
+        long v = 0;
+        for (int i = pos; i < pos + k; i++) {
+            int c = "ACGT".indexOf(s.charAt(i));
+            if (c < 0) return -1;
+            v = (v << 2) | c;
+        }
+        return v;
+    }
+
+    @Test
+    void cleanKeepsOnlyAcgtnInUppercase() {
+        String raw = "ac gT\nNn>x-1*ACgt\r";
+        String expected = "ACGTNNACGT";
+        assertEquals(expected, PackedSequence.clean(raw).toString());
+        byte[] bytes = ("__" + raw + "__").getBytes(StandardCharsets.US_ASCII);
+        assertEquals(expected, PackedSequence.clean(bytes, 2, raw.length()).toString());
+    }
+
+    @Test
+    void emptyAndFullyInvalidInputsAreEmpty() {
+        assertSame(PackedSequence.EMPTY, PackedSequence.clean(""));
+        assertSame(PackedSequence.EMPTY, PackedSequence.clean((CharSequence) null));
+        assertSame(PackedSequence.EMPTY, PackedSequence.clean("xyz 123\n"));
+        assertEquals(0, PackedSequence.EMPTY.length());
+        assertEquals("", PackedSequence.EMPTY.toString());
+        assertEquals(-1, PackedSequence.EMPTY.cursor(0).next());
+        assertEquals(0, PackedSequence.EMPTY.indexOf("", 5));
+        assertEquals(-1, PackedSequence.EMPTY.indexOf("A", 0));
+    }
+
+    @Test
+    void codesAndSubstringsMatchStringAcrossWordBoundaries() {
+        Random rnd = new Random(1);
+        for (int length : LENGTHS) {
+            for (String alphabet : new String[] { "ACGT", "ACGTN", "N", "AN" }) {
+                String s = randomBases(rnd, length, alphabet);
+                PackedSequence seq = PackedSequence.clean(s);
+                assertEquals(length, seq.length());
+                assertEquals(length, seq.baseCount());
+                assertEquals(s, seq.toString());
+                for (int i = 0; i < length; i++) {
+                    assertEquals(s.charAt(i), seq.baseAt(i), "pos " + i);
+                    assertEquals("ACGTN".indexOf(s.charAt(i)), seq.code(i), "pos " + i);
+                }
+                for (int t = 0; t < 20 && length > 0; t++) {
+                    int from = rnd.nextInt(length + 1), to = from + rnd.nextInt(length - from + 1);
+                    assertEquals(s.substring(from, to), seq.substring(from, to));
+                }
+            }
+        }
+    }
+
+    @Test
+    void nAfterManyBasesGrowsTheMask() {
+        // La primera N aparece lejos del principio: la máscara se reserva tarde y tiene que alcanzar
+        String s = "ACGT".repeat(300) + "N" + "T".repeat(70) + "N";
+        PackedSequence.Builder b = new PackedSequence.Builder(4);
+        for (int i = 0; i < s.length(); i++) b.append(PackedSequence.codeOf(s.charAt(i)));
+        assertEquals(s, b.build().toString());
+    }
+
+    @Test
+    void builderIgnoresNegativeCodes() {
+        PackedSequence seq = new PackedSequence.Builder(0).append(0).append(-1).append(4).append(3).build();
+        assertEquals("ANT", seq.toString());
+    }
+
+    @Test
+    void kmerMatchesNaiveEncodingAndRejectsN() {
+        Random rnd = new Random(2);
+        String s = randomBases(rnd, 300, "ACGTACGTACGTN");
+        PackedSequence seq = PackedSequence.clean(s);
+        for (int k = 1; k <= 32; k++) {
+            for (int pos = 0; pos + k <= s.length(); pos += 7) {
+                assertEquals(naiveKmer(s, pos, k), seq.kmer(pos, k), "pos " + pos + " k " + k);
+            }
+        }
+        assertThrows(IndexOutOfBoundsException.class, () -> seq.kmer(0, 33));
+        assertThrows(IndexOutOfBoundsException.class, () -> seq.kmer(290, 11));
+    }
+
+    @Test
+    void indexOfMatchesStringIndexOf() {
+        Random rnd = new Random(3);
+        for (int round = 0; round < 3000; round++) {
+            String s = randomBases(rnd, rnd.nextInt(150), "ACGTN");
+            PackedSequence seq = PackedSequence.clean(s);
+            String pattern = randomBases(rnd, 1 + rnd.nextInt(4), "ACGTN");
+            int from = rnd.nextInt(s.length() + 3) - 1;
+            // N solo coincide con N, como en String
+            assertEquals(s.indexOf(pattern, Math.max(0, from)), seq.indexOf(pattern, from), s + " / " + pattern);
+            assertEquals(s.contains(pattern), seq.contains(pattern));
+        }
+    }
+
+    @Test
+    void indexOfEdgeCases() {
+        PackedSequence seq = PackedSequence.clean("ACGTACGT");
+        assertEquals(3, seq.indexOf("", 3));
+        assertEquals(8, seq.indexOf("", 20));
+        assertEquals(0, seq.indexOf("", -4));
+        assertEquals(-1, seq.indexOf("AXG", 0));
+        assertEquals(4, seq.indexOf("acg", 1));
+        assertEquals(-1, seq.indexOf("ACGTACGTA", 0));
+    }
+
+    @Test
+    void cursorWalksFromAnyPosition() {
+        String s = randomBases(new Random(4), 130, "ACGTN");
+        PackedSequence seq = PackedSequence.clean(s);
+        for (int from = 0; from <= s.length(); from++) {
+            BaseSequence.Cursor c = seq.cursor(from);
+            for (int i = from; i < s.length(); i++) assertEquals("ACGTN".indexOf(s.charAt(i)), c.next());
+            assertEquals(-1, c.next());
+        }
+        assertThrows(IndexOutOfBoundsException.class, () -> seq.cursor(-1));
+        assertThrows(IndexOutOfBoundsException.class, () -> seq.cursor(s.length() + 1));
+    }
+
+    @Test
+    void writeToProducesTheBasesAsAscii() throws IOException {
+        String s = randomBases(new Random(5), 20000, "ACGTN");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PackedSequence.clean(s).writeTo(out);
+        assertEquals(s, out.toString(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,177 @@
+package org.breaze.protocol;
+
+import org.breaze.logging.AuditLogger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Después de compactar, cada offset del índice tiene que apuntar a la última versión de su paciente
+class PatientLogCompactorTest {
+    private static final String HEADER = "patient_id,full_name,document_id,notes";
+    private static final int ID = 0, DOC = 2, COLS = 4;
+
+    @TempDir
+    Path dir;
+
+    private Path csv;
+    private final Object csvLock = new Object();
+    private PatientIndex index;
+    private final Map<String, String> latest = new HashMap<>(); // referencia: patient_id -> última línea escrita
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Properties p = new Properties();
+        p.setProperty("AUDIT_LOG_PATH", dir.resolve("server.log").toString()); // fuera de data_storage
+        AuditLogger.configure(p);
+        csv = dir.resolve("patiens.csv");
+        Files.writeString(csv, HEADER + System.lineSeparator(), StandardCharsets.UTF_8);
+        index = PatientIndex.build(csv, ID, DOC, COLS);
+    }
+
+    // Escribe una versión como lo hace el servidor: agrega al final y mueve el índice bajo el lock del CSV
+    private void writeRow(String id, String name, String doc, String notes) throws IOException {
+        String line = String.join(",", CsvIO.csv(id), CsvIO.csv(name), CsvIO.csv(doc), CsvIO.csv(notes));
+        synchronized (csvLock) {
+            long off = CsvIO.appendLineAt(csv, line);
+            index.put(id, doc, off);
+            latest.put(id, line);
+        }
+    }
+
+    private PatientLogCompactor compactor() {
+        return new PatientLogCompactor(csv, HEADER, csvLock, index, ID, DOC, COLS);
+    }
+
+    private long dataLines() throws IOException {
+        try (var lines = Files.lines(csv, StandardCharsets.UTF_8)) {
+            return lines.count() - 1;
+        }
+    }
+
+    // Cada offset del índice lee la última versión escrita de su paciente, y un índice nuevo desde el archivo coincide
+    private void assertIndexPointsToLatest() throws IOException {
+        assertEquals(latest.size(), index.size());
+        CsvRecord r = new CsvRecord();
+        try (FileChannel ch = FileChannel.open(csv, StandardOpenOption.READ)) {
+            for (Map.Entry<String, String> e : latest.entrySet()) {
+                Long off = index.offsetOf(e.getKey());
+                assertNotNull(off, e.getKey());
+                assertTrue(r.readAt(ch, off), e.getKey());
+                assertEquals(e.getValue(), r.line(), e.getKey());
+            }
+        }
+        PatientIndex rebuilt = PatientIndex.build(csv, ID, DOC, COLS);
+        assertEquals(index.snapshotOffsets(), rebuilt.snapshotOffsets());
+    }
+
+    @Test
+    void keepsOnlyLatestVersionsAndRelocatesOffsets() throws IOException {
+        for (int v = 0; v < 3; v++) {
+            for (int i = 0; i < 200; i++) {
+                // Nombres con comas y comillas: las filas se copian tal cual, sin volver a armarlas
+                writeRow("P" + i, "Pérez, \"v" + v + "\"", "D" + (i % 50), v == 2 && i % 3 == 0 ? "" : "nota " + v);
+            }
+        }
+        assertEquals(400, index.staleRecords());
+        long before = Files.size(csv);
+
+        compactor().compact();
+
+        assertEquals(200, dataLines());
+        assertTrue(Files.size(csv) < before);
+        assertEquals(0, index.staleRecords());
+        assertFalse(Files.exists(dir.resolve("patiens.csv.compact")));
+        assertEquals(HEADER, CsvIO.readLineAt(csv, 0));
+        assertIndexPointsToLatest();
+        assertEquals(List.of("P0", "P100", "P150", "P50"), index.idsByDocument("D0"));
+    }
+
+    @Test
+    void rowWrittenDuringCompactionIsKept() throws Exception {
+        for (int i = 0; i < 20_000; i++) writeRow("P" + i, "nombre " + i, "D" + i, "vieja");
+        for (int i = 0; i < 20_000; i++) writeRow("P" + i, "nombre " + i, "D" + i, "vigente, \"v1\"");
+        Path tmp = dir.resolve("patiens.csv.compact");
+
+        // El temporal existe desde que empieza la copia hasta el reemplazo (que se hace con el lock tomado):
+        // si con el lock tomado el temporal todavía está, la escritura cae en medio de la compactación
+        boolean during = false;
+        for (int attempt = 0; attempt < 20 && !during; attempt++) {
+            String updated = "P" + (attempt * 97), created = "NEW" + attempt;
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread t = new Thread(() -> {
+                try {
+                    compactor().compact();
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            t.start();
+            while (t.isAlive() && !during) {
+                if (!Files.exists(tmp)) continue;
+                synchronized (csvLock) {
+                    if (Files.exists(tmp)) {
+                        during = true;
+                        writeRow(updated, "actualizado " + attempt, "D" + (attempt * 97), "durante");
+                        writeRow(created, "nuevo, \"" + attempt + "\"", "DN" + attempt, "durante");
+                    }
+                }
+            }
+            t.join();
+            if (failure.get() != null) throw new AssertionError(failure.get());
+            assertIndexPointsToLatest();
+            if (!during) {
+                // La compactación terminó antes de poder escribir: se vuelve a ensuciar el log y se reintenta
+                for (int i = 0; i < 2_000; i++) writeRow("P" + i, "nombre " + i, "D" + i, "otra " + attempt);
+            }
+        }
+        assertTrue(during, "no se pudo escribir durante la compactación");
+        // La versión de 'updated' que se copió antes de la escritura queda obsoleta hasta la próxima compactación
+        assertEquals(latest.size() + 1, dataLines());
+        assertEquals(1, index.staleRecords());
+        assertFalse(Files.exists(tmp));
+    }
+
+    @Test
+    void abortsWhenALiveOffsetDoesNotHoldItsRow() throws IOException {
+        for (int i = 0; i < 50; i++) writeRow("P" + i, "n", "D", "v0");
+        for (int i = 0; i < 50; i++) writeRow("P" + i, "n", "D", "v1");
+        // Un offset que apunta a la fila de otro paciente: copiarla dejaría al índice apuntando a datos ajenos
+        index.put("GHOST", "D", index.offsetOf("P7"));
+        byte[] before = Files.readAllBytes(csv);
+        Map<String, Long> offsets = index.snapshotOffsets();
+
+        assertThrows(IOException.class, () -> compactor().compact());
+
+        assertArrayEquals(before, Files.readAllBytes(csv));
+        assertEquals(offsets, index.snapshotOffsets());
+        assertFalse(Files.exists(dir.resolve("patiens.csv.compact")));
+    }
+
+    @Test
+    void needsCompactionOnlyPastThresholds() throws IOException {
+        for (int i = 0; i < 10; i++) writeRow("P" + i, "n", "D", "v0");
+        for (int i = 0; i < 10; i++) writeRow("P" + i, "n", "D", "v1");
+        assertFalse(compactor().needsCompaction()); // pocas versiones viejas
+        for (int v = 0; v < PatientLogCompactor.MIN_STALE_RECORDS / 10; v++) {
+            for (int i = 0; i < 10; i++) writeRow("P" + i, "n", "D", "v" + (v + 2));
+        }
+        assertTrue(compactor().needsCompaction());
+        compactor().compact();
+        assertFalse(compactor().needsCompaction());
+        assertIndexPointsToLatest();
+    }
+}
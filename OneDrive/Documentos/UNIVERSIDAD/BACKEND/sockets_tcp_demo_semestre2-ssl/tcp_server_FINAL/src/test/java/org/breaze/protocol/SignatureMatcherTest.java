@@ -0,0 +1,130 @@
+package org.breaze.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// El autómata tiene que reportar exactamente las firmas que encuentra String.contains sobre la secuencia limpia
+class SignatureMatcherTest {
+
+    // Referencia ingenua: mayúsculas y solo ACGTN, igual que PackedSequence.clean
+    static String naiveClean(String raw) {
+        StringBuilder sb = new StringBuilder();
+        for (char c : raw.toUpperCase(Locale.ROOT).toCharArray()) {
+            if ("ACGTN".indexOf(c) >= 0) sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    static BitSet naiveScan(String cleaned, List<String> patterns) {
+        BitSet found = new BitSet();
+        for (int id = 0; id < patterns.size(); id++) {
+            String p = patterns.get(id);
+            // Una firma vacía o con caracteres fuera del alfabeto no coincide nunca
+            if (p.isEmpty() || !naiveClean(p).equals(p.toUpperCase(Locale.ROOT))) continue;
+            if (cleaned.contains(p.toUpperCase(Locale.ROOT))) found.set(id);
+        }
+        return found;
+    }
+
+    static String randomBases(Random rnd, int length, String alphabet) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) sb.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+        return sb.toString();
+    }
+
+    @Test
+    void matchesNaiveSearchOnRandomInputs() {
+        Random rnd = new Random(42);
+        for (int round = 0; round < 2000; round++) {
+            String raw = randomBases(rnd, rnd.nextInt(200), "ACGTACGTNacgt \n>x");
+            String cleaned = naiveClean(raw);
+            // DiseaseDB entrega firmas distintas (las claves de un mapa), así que aquí tampoco se repiten
+            LinkedHashSet<String> set = new LinkedHashSet<>();
+            int count = 1 + rnd.nextInt(15);
+            while (set.size() < count) {
+                if (!cleaned.isEmpty() && rnd.nextBoolean()) {
+                    int from = rnd.nextInt(cleaned.length());
+                    set.add(cleaned.substring(from, Math.min(cleaned.length(), from + 1 + rnd.nextInt(8))));
+                } else {
+                    set.add(randomBases(rnd, rnd.nextInt(7), "ACGTN"));
+                }
+            }
+            List<String> patterns = new ArrayList<>(set);
+
+            BitSet found = SignatureMatcher.compile(patterns).scan(PackedSequence.clean(raw));
+            assertEquals(naiveScan(cleaned, patterns), found, () -> "seq=" + cleaned + " patterns=" + patterns);
+        }
+    }
+
+    @Test
+    void reportsOverlappingAndSuffixPatterns() {
+        List<String> patterns = List.of("ACGT", "CGT", "GT", "T", "TTT", "GTA", "ACGTACGT");
+        BitSet found = SignatureMatcher.compile(patterns).scan(PackedSequence.clean("ACGTTT"));
+        assertEquals(naiveScan("ACGTTT", patterns), found);
+        assertTrue(found.get(0) && found.get(1) && found.get(2) && found.get(3) && found.get(4));
+        assertFalse(found.get(5) || found.get(6));
+    }
+
+    @Test
+    void emptySignatureNeverMatches() {
+        SignatureMatcher matcher = SignatureMatcher.compile(List.of("", "AC"));
+        assertEquals(BitSet.valueOf(new long[] { 0b10 }), matcher.scan(PackedSequence.clean("ACGT")));
+        assertTrue(matcher.scan(PackedSequence.EMPTY).isEmpty());
+    }
+
+    @Test
+    void signatureWithInvalidCharacterNeverMatches() {
+        SignatureMatcher matcher = SignatureMatcher.compile(List.of("AXG", "A-C", "AC"));
+        // La secuencia limpia descarta X y -, pero la firma no se limpia: no puede coincidir
+        BitSet found = matcher.scan(PackedSequence.clean("AXGA-C"));
+        assertEquals(BitSet.valueOf(new long[] { 0b100 }), found);
+    }
+
+    @Test
+    void nIsMatchedLiterally() {
+        SignatureMatcher matcher = SignatureMatcher.compile(List.of("ANG", "ACG", "NN"));
+        assertEquals(BitSet.valueOf(new long[] { 0b001 }), matcher.scan(PackedSequence.clean("TTANGTT")));
+        assertEquals(BitSet.valueOf(new long[] { 0b010 }), matcher.scan(PackedSequence.clean("TTACGTT")));
+        assertEquals(BitSet.valueOf(new long[] { 0b100 }), matcher.scan(PackedSequence.clean("annA")));
+    }
+
+    @Test
+    void lowercasePatternsMatchLikeUppercase() {
+        SignatureMatcher matcher = SignatureMatcher.compile(List.of("acg", "TtA"));
+        assertEquals(BitSet.valueOf(new long[] { 0b11 }), matcher.scan(PackedSequence.clean("GGACGTTAC")));
+    }
+
+    @Test
+    void scannerAcrossChunksEqualsWholeScan() {
+        Random rnd = new Random(7);
+        for (int round = 0; round < 500; round++) {
+            String raw = randomBases(rnd, rnd.nextInt(300), "ACGTN");
+            List<String> patterns = new ArrayList<>(new LinkedHashSet<>(List.of(
+                    randomBases(rnd, 1 + rnd.nextInt(5), "ACGT"),
+                    randomBases(rnd, 1 + rnd.nextInt(5), "ACGTN"),
+                    randomBases(rnd, 2 + rnd.nextInt(5), "ACGT"))));
+            SignatureMatcher matcher = SignatureMatcher.compile(patterns);
+
+            // Las subidas por partes cortan la secuencia en cualquier lugar, incluso en medio de una firma
+            SignatureMatcher.Scanner scanner = matcher.scanner();
+            int pos = 0;
+            while (pos < raw.length()) {
+                int end = Math.min(raw.length(), pos + 1 + rnd.nextInt(17));
+                PackedSequence chunk = PackedSequence.clean(raw.substring(pos, end));
+                for (int i = 0; i < chunk.length(); i++) scanner.step(chunk.code(i));
+                pos = end;
+            }
+            BitSet whole = matcher.scan(PackedSequence.clean(raw));
+            assertEquals(whole, scanner.found());
+            assertEquals(naiveScan(raw, patterns), whole);
+        }
+    }
+}